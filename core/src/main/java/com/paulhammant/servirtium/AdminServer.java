@@ -0,0 +1,179 @@
+package com.paulhammant.servirtium;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An HTTP listener on a port of its own, for a harness outside the JVM to watch and drive a long
+ * running ServirtiumServer. Bound to the loopback address. See ServirtiumServer.withAdminPort().
+ * <pre>
+ * GET  /metrics                   counters, in Prometheus text format
+ * GET  /health                    {"status":"UP"}
+ * GET  /session                   context, script filename, interaction number and the like, as JSON
+ * POST /script                    switch to the script named in the body - see ServirtiumServer.switchScript(),
+ *                                 409 if interactions are yet to be written to the current one - flush first
+ * POST /context                   set the context to the body
+ * POST /interaction-number/reset  start counting interactions from the beginning again
+ * POST /flush                     ServirtiumServer.finishedScript() - writes the recording, or checks the
+ *                                 replay got to the end, 409 and why if it didn't
+ * </pre>
+ */
+public class AdminServer {
+
+    private final ServirtiumServer servirtiumServer;
+    private final HttpServer httpServer;
+
+    /**
+     * @param port the port, or 0 for any free one - see getPort()
+     */
+    public AdminServer(ServirtiumServer servirtiumServer, int port) {
+        this.servirtiumServer = servirtiumServer;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Can't listen on admin port " + port, e);
+        }
+        httpServer.createContext("/metrics", exchange -> handle(exchange, "GET", this::metrics));
+        httpServer.createContext("/health", exchange -> handle(exchange, "GET", this::health));
+        httpServer.createContext("/session", exchange -> handle(exchange, "GET", this::session));
+        httpServer.createContext("/script", exchange -> handle(exchange, "POST", this::script));
+        httpServer.createContext("/context", exchange -> handle(exchange, "POST", this::context));
+        httpServer.createContext("/interaction-number/reset", exchange -> handle(exchange, "POST", this::resetInteractionNumber));
+        httpServer.createContext("/flush", exchange -> handle(exchange, "POST", this::flush));
+    }
+
+    public AdminServer start() {
+        httpServer.start();
+        return this;
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        try {
+            if (!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())) {
+                respond(exchange, 404, "text/plain", "Not found");
+            } else if (!exchange.getRequestMethod().equals(method)) {
+                exchange.getResponseHeaders().add("Allow", method);
+                respond(exchange, 405, "text/plain", "Use " + method);
+            } else {
+                handler.handle(exchange);
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 500, "text/plain", String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        ServirtiumServerStats stats = servirtiumServer.getStats();
+        PrettifiedBodyCache prettifiedBodies = servirtiumServer.getPrettifiedBodies();
+        StringBuilder sb = new StringBuilder();
+        metric(sb, "servirtium_interactions_served_total", "counter", "Interactions served to the client", stats.getInteractionsServed());
+        metric(sb, "servirtium_failures_total", "counter", "Interactions that failed", stats.getFailures());
+        metric(sb, "servirtium_in_flight", "gauge", "Interactions being served now", stats.getInFlight());
+        metric(sb, "servirtium_request_body_bytes_total", "counter", "Request body bytes read from the client", stats.getBytesIn());
+        metric(sb, "servirtium_response_body_bytes_total", "counter", "Response body bytes written to the client", stats.getBytesOut());
+        metric(sb, "servirtium_pending_recorder_interactions", "gauge", "Interactions not yet written to the recording", stats.getPendingRecorderInteractions());
+        metric(sb, "servirtium_interaction_number", "gauge", "Number of the latest interaction in the script", servirtiumServer.getInteractionNum());
+        metric(sb, "servirtium_prettified_body_cache_hits_total", "counter", "Bodies found already prettified", prettifiedBodies.getHits());
+        metric(sb, "servirtium_prettified_body_cache_misses_total", "counter", "Bodies prettified", prettifiedBodies.getMisses());
+        metric(sb, "servirtium_journal_interactions_total", "counter", "Interactions added to the journal", servirtiumServer.getJournal().getAdded());
+        respond(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", sb.toString());
+    }
+
+    private static void metric(StringBuilder sb, String name, String type, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "application/json", "{\"status\":\"UP\"}");
+    }
+
+    private void session(HttpExchange exchange) throws IOException {
+        ServirtiumServerStats stats = servirtiumServer.getStats();
+        StringBuilder sb = new StringBuilder("{\"context\":");
+        Tracing.jsonString(sb, servirtiumServer.getContext());
+        sb.append(",\"scriptFilename\":");
+        if (stats.getScriptFilename() == null) {
+            sb.append("null");
+        } else {
+            Tracing.jsonString(sb, stats.getScriptFilename());
+        }
+        sb.append(",\"interactionNum\":").append(servirtiumServer.getInteractionNum())
+                .append(",\"inFlight\":").append(stats.getInFlight())
+                .append(",\"pendingRecorderInteractions\":").append(stats.getPendingRecorderInteractions())
+                .append(",\"interactionsServed\":").append(stats.getInteractionsServed())
+                .append(",\"failures\":").append(stats.getFailures())
+                .append('}');
+        respond(exchange, 200, "application/json", sb.toString());
+    }
+
+    private void script(HttpExchange exchange) throws IOException {
+        String filename = body(exchange);
+        if (filename.isEmpty()) {
+            respond(exchange, 400, "text/plain", "The body should be the script's filename");
+            return;
+        }
+        try {
+            servirtiumServer.switchScript(filename);
+        } catch (IllegalStateException e) {
+            respond(exchange, 409, "text/plain", e.getMessage());
+            return;
+        }
+        respond(exchange, 200, "text/plain", "Switched to " + filename);
+    }
+
+    private void context(HttpExchange exchange) throws IOException {
+        String context = body(exchange);
+        servirtiumServer.setContext(context);
+        respond(exchange, 200, "text/plain", "Context set to " + context);
+    }
+
+    private void resetInteractionNumber(HttpExchange exchange) throws IOException {
+        servirtiumServer.resetInteractionNumber();
+        respond(exchange, 200, "text/plain", "Interaction number reset");
+    }
+
+    private void flush(HttpExchange exchange) throws IOException {
+        try {
+            servirtiumServer.finishedScript();
+        } catch (AssertionError e) {
+            respond(exchange, 409, "text/plain", String.valueOf(e.getMessage()));
+            return;
+        }
+        respond(exchange, 200, "text/plain", "Flushed");
+    }
+
+    private static String body(HttpExchange exchange) throws IOException {
+        return new String(ServirtiumServer.readFully(exchange.getRequestBody()), StandardCharsets.UTF_8).trim();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
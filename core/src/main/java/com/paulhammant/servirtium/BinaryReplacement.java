@@ -0,0 +1,90 @@
+package com.paulhammant.servirtium;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Search and replace of a sequence of bytes in a binary body, for redacting tokens embedded in
+ * protobuf or other binary payloads from a changeBinaryBody..() method of InteractionManipulations.
+ * The search is Boyer-Moore-Horspool, so skips ahead by up to the length of the target for each
+ * byte compared. Make one and reuse it for every body.
+ */
+public final class BinaryReplacement {
+
+    private final byte[] target;
+    private final byte[] replacement;
+    private final int[] shifts = new int[256];
+
+    public BinaryReplacement(byte[] target, byte[] replacement) {
+        if (target.length == 0) {
+            throw new IllegalArgumentException("Nothing to replace");
+        }
+        this.target = target.clone();
+        this.replacement = replacement.clone();
+        Arrays.fill(shifts, target.length);
+        for (int i = 0; i < target.length - 1; i++) {
+            shifts[target[i] & 0xff] = target.length - 1 - i;
+        }
+    }
+
+    /**
+     * For text embedded in a binary body, as UTF-8.
+     */
+    public static BinaryReplacement of(String target, String replacement) {
+        return new BinaryReplacement(target.getBytes(StandardCharsets.UTF_8), replacement.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the absolute index of the next occurrence at or after from, or -1
+     */
+    public int indexIn(ByteBuffer body, int from) {
+        int last = target.length - 1;
+        int end = body.limit() - last;
+        int ix = from;
+        while (ix < end) {
+            int j = last;
+            while (body.get(ix + j) == target[j]) {
+                if (j-- == 0) {
+                    return ix;
+                }
+            }
+            ix += shifts[body.get(ix + last) & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * @param body the bytes from position to limit are searched - position and limit are left as they were
+     * @return the same buffer if the target isn't in it, else a new buffer with every occurrence replaced
+     */
+    public ByteBuffer replaceAllIn(ByteBuffer body) {
+        int ix = indexIn(body, body.position());
+        if (ix == -1) {
+            return body;
+        }
+        ByteBuffer from = body.duplicate();
+        ByteBuffer to = ByteBuffer.allocate(Math.max(body.remaining(), body.remaining() + replacement.length - target.length));
+        do {
+            from.limit(ix);
+            to = ensureRemaining(to, from.remaining() + replacement.length);
+            to.put(from).put(replacement);
+            from.limit(body.limit()).position(ix + target.length);
+            ix = indexIn(body, from.position());
+        } while (ix != -1);
+        to = ensureRemaining(to, from.remaining());
+        to.put(from);
+        to.flip();
+        return to;
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        return bigger.put(buffer);
+    }
+
+}
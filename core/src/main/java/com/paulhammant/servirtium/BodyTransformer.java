@@ -0,0 +1,61 @@
+package com.paulhammant.servirtium;
+
+import java.io.IOException;
+
+/**
+ * Changes a text body a chunk at a time, as it is decoded, writing what it changes it to as it
+ * goes - so a redaction or rewrite over a very large body doesn't need the whole of it as a String,
+ * and then another whole String for the result. One is made for each body, via
+ * StreamingInteractionManipulations, so it can hold back the end of a chunk that might be the
+ * start of something to change that spans into the next one.
+ */
+public interface BodyTransformer {
+
+    /**
+     * @param chunk the next part of the body - only valid for the duration of the call, as the
+     *              buffer behind it is reused
+     * @param out where to write the (potentially) changed text
+     */
+    void transform(CharSequence chunk, Appendable out) throws IOException;
+
+    /**
+     * Called after the last chunk, to write anything held back.
+     */
+    default void finish(Appendable out) throws IOException {
+    }
+
+    /**
+     * @return a transformer that replaces every occurrence of the target, including ones that span chunks
+     */
+    static BodyTransformer replacing(String target, String replacement) {
+        if (target.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to replace");
+        }
+        return new BodyTransformer() {
+
+            private final StringBuilder pending = new StringBuilder();
+
+            @Override
+            public void transform(CharSequence chunk, Appendable out) throws IOException {
+                pending.append(chunk);
+                int from = 0;
+                int ix;
+                while ((ix = pending.indexOf(target, from)) != -1) {
+                    out.append(pending, from, ix).append(replacement);
+                    from = ix + target.length();
+                }
+                // Keep back what could be the start of a target that finishes in the next chunk
+                int keep = Math.max(from, pending.length() - target.length() + 1);
+                out.append(pending, from, keep);
+                pending.delete(0, keep);
+            }
+
+            @Override
+            public void finish(Appendable out) throws IOException {
+                out.append(pending);
+                pending.setLength(0);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,575 @@
+package com.paulhammant.servirtium;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Wraps another ServiceInteroperation with an HTTP cache for GET requests, honouring
+ * Cache-Control (no-store, no-cache, private, max-age, s-maxage), Expires, ETag/Last-Modified
+ * revalidation and Vary. As Servirtium sits between many clients and the real service, this
+ * behaves as a shared cache would. Entries are held in memory up to a byte limit, least recently
+ * used first out; evicted entries can overflow to a directory on disk, itself size-bounded.
+ * Overflow files are read and written outside the lock, so that other requests aren't held up
+ * by disk IO. Responses served from the cache carry an Age header.
+ * <p>
+ * Intended for NonRecordingPassThrough. Don't use it while recording - each interaction there
+ * must be a real exchange with the service.
+ */
+public class CachingServiceInterop implements ServiceInteroperation {
+
+    private static final List<Integer> CACHEABLE_STATUSES = Arrays.asList(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+
+    private final ServiceInteroperation delegate;
+    private final long maxMemoryBytes;
+    private final LongSupplier clock;
+    private File overflowDirectory;
+    private long maxDiskBytes;
+
+    private final LinkedHashMap<String, Entry> inMemory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Spilled> onDisk = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, List<String>> varyByUrl = new ConcurrentHashMap<>();
+    private long memoryBytes;
+    private long diskBytes;
+    private long generation;
+    private final AtomicLong spillFileNum = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+
+    public CachingServiceInterop(ServiceInteroperation delegate, long maxMemoryBytes) {
+        this(delegate, maxMemoryBytes, System::currentTimeMillis);
+    }
+
+    CachingServiceInterop(ServiceInteroperation delegate, long maxMemoryBytes, LongSupplier clock) {
+        this.delegate = delegate;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.clock = clock;
+    }
+
+    /**
+     * Entries evicted from memory are written to files in a directory, rather than discarded.
+     * @param overflowDirectory the directory, which must exist
+     * @param maxDiskBytes the most to write there before the least recently used files are deleted
+     * @return this
+     */
+    public CachingServiceInterop withDiskOverflow(File overflowDirectory, long maxDiskBytes) {
+        if (!overflowDirectory.isDirectory()) {
+            throw new UnsupportedOperationException("Can't overflow cache entries to " + overflowDirectory + ". Does the directory exist?");
+        }
+        this.overflowDirectory = overflowDirectory;
+        this.maxDiskBytes = maxDiskBytes;
+        return this;
+    }
+
+    @Override
+    public ServiceResponse invokeServiceEndpoint(String method, HttpBody clientRequestBody,
+                                                 String clientRequestContentType,
+                                                 String url, List<String> clientRequestHeaders,
+                                                 InteractionManipulations interactionManipulations,
+                                                 boolean forceHeadersToLowerCase) throws ServiceInteroperationFailed {
+
+        Directives requestDirectives = new Directives(clientRequestHeaders);
+        if (!method.equals("GET") || requestDirectives.has("no-store") || isConditionalOrRanged(clientRequestHeaders)) {
+            return delegate.invokeServiceEndpoint(method, clientRequestBody, clientRequestContentType, url,
+                    clientRequestHeaders, interactionManipulations, forceHeadersToLowerCase);
+        }
+
+        boolean mustRevalidate = requestDirectives.has("no-cache") || "0".equals(requestDirectives.value("max-age"))
+                || "no-cache".equalsIgnoreCase(headerValue(clientRequestHeaders, "Pragma"));
+
+        Entry cached = lookup(keyFor(url, varyByUrl.get(url), clientRequestHeaders));
+
+        long requestTime = clock.getAsLong();
+        if (cached != null && !mustRevalidate && cached.isFresh(requestTime)) {
+            hits.incrementAndGet();
+            HttpHeaders headers = cached.response.headers.copy();
+            headers.removeNamed("Age");
+            headers.add(name("Age", forceHeadersToLowerCase), String.valueOf(cached.currentAge(requestTime) / 1000));
+            return cached.response.withRevisedHeaders(headers);
+        }
+
+        List<String> headersForService = clientRequestHeaders;
+        if (cached != null && cached.hasValidators()) {
+            HttpHeaders conditional = HttpHeaders.of(clientRequestHeaders);
+            if (cached.etag != null) {
+                conditional.add(name("If-None-Match", forceHeadersToLowerCase), cached.etag);
+            }
+            if (cached.lastModified != null) {
+                conditional.add(name("If-Modified-Since", forceHeadersToLowerCase), cached.lastModified);
+            }
+            headersForService = conditional;
+        }
+
+        ServiceResponse serviceResponse = delegate.invokeServiceEndpoint(method, clientRequestBody,
+                clientRequestContentType, url, headersForService, interactionManipulations, forceHeadersToLowerCase);
+        long responseTime = clock.getAsLong();
+
+        if (cached != null && serviceResponse.statusCode == 304) {
+            revalidations.incrementAndGet();
+            Entry refreshed = cached.refreshedBy(serviceResponse, requestTime, responseTime);
+            store(refreshed);
+            return copyOf(refreshed.response);
+        }
+
+        misses.incrementAndGet();
+        Entry received = new Entry(url, copyOf(serviceResponse), requestTime, responseTime);
+        if (received.isStorable(requestDirectives, clientRequestHeaders)) {
+            List<String> varyNames = received.varyNames();
+            varyByUrl.put(url, varyNames);
+            received.key = keyFor(url, varyNames, clientRequestHeaders);
+            store(received);
+        } else if (cached != null) {
+            synchronized (this) {
+                remove(cached.key);
+            }
+        }
+        return serviceResponse;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Forget everything cached, deleting any overflow files.
+     */
+    public synchronized void clear() {
+        for (Spilled spilled : onDisk.values()) {
+            spilled.file.delete();
+        }
+        onDisk.clear();
+        inMemory.clear();
+        varyByUrl.clear();
+        memoryBytes = 0;
+        diskBytes = 0;
+        generation++;
+    }
+
+    /**
+     * An entry on disk is taken out of the index under the lock, read without it, and stored again.
+     * Another request for it meanwhile misses.
+     */
+    private Entry lookup(String key) {
+        Spilled spilled;
+        synchronized (this) {
+            Entry entry = inMemory.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            spilled = onDisk.remove(key);
+            if (spilled == null) {
+                return null;
+            }
+            diskBytes -= spilled.size;
+        }
+        Entry entry;
+        try {
+            entry = readEntry(spilled.file);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            spilled.file.delete();
+        }
+        store(entry);
+        return entry;
+    }
+
+    private void store(Entry entry) {
+        List<Entry> evicted = new ArrayList<>();
+        long storedInGeneration;
+        synchronized (this) {
+            storedInGeneration = generation;
+            remove(entry.key);
+            if (entry.size > maxMemoryBytes) {
+                evicted.add(entry);
+            } else {
+                inMemory.put(entry.key, entry);
+                memoryBytes += entry.size;
+                Iterator<Entry> lru = inMemory.values().iterator();
+                while (memoryBytes > maxMemoryBytes && lru.hasNext()) {
+                    Entry eldest = lru.next();
+                    lru.remove();
+                    memoryBytes -= eldest.size;
+                    evicted.add(eldest);
+                }
+            }
+        }
+        for (Entry eldest : evicted) {
+            spill(eldest, storedInGeneration);
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = inMemory.remove(key);
+        if (entry != null) {
+            memoryBytes -= entry.size;
+        }
+        Spilled spilled = onDisk.remove(key);
+        if (spilled != null) {
+            diskBytes -= spilled.size;
+            spilled.file.delete();
+        }
+    }
+
+    /**
+     * Written without the lock, then indexed with it - unless the key was stored again, or the cache
+     * cleared, while the file was being written.
+     */
+    private void spill(Entry entry, long storedInGeneration) {
+        if (overflowDirectory == null || entry.size > maxDiskBytes) {
+            return;
+        }
+        File file = new File(overflowDirectory, "servirtium-cache-" + spillFileNum.getAndIncrement() + ".bin");
+        try {
+            writeEntry(entry, file);
+        } catch (IOException e) {
+            file.delete();
+            return;
+        }
+        synchronized (this) {
+            if (generation != storedInGeneration || inMemory.containsKey(entry.key) || onDisk.containsKey(entry.key)) {
+                file.delete();
+                return;
+            }
+            onDisk.put(entry.key, new Spilled(file, entry.size));
+            diskBytes += entry.size;
+            Iterator<Spilled> lru = onDisk.values().iterator();
+            while (diskBytes > maxDiskBytes && lru.hasNext()) {
+                Spilled eldest = lru.next();
+                lru.remove();
+                diskBytes -= eldest.size;
+                eldest.file.delete();
+            }
+        }
+    }
+
+    private static String keyFor(String url, List<String> varyNames, List<String> clientRequestHeaders) {
+        if (varyNames == null || varyNames.isEmpty()) {
+            return url;
+        }
+        StringBuilder sb = new StringBuilder(url);
+        for (String varyName : varyNames) {
+            sb.append('\n').append(varyName).append(": ").append(headerValue(clientRequestHeaders, varyName));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isConditionalOrRanged(List<String> clientRequestHeaders) {
+        return headerValue(clientRequestHeaders, "If-None-Match") != null
+                || headerValue(clientRequestHeaders, "If-Modified-Since") != null
+                || headerValue(clientRequestHeaders, "Range") != null;
+    }
+
+    private static String headerValue(List<String> headers, String name) {
+        if (headers instanceof HttpHeaders) {
+            return ((HttpHeaders) headers).joined(name);
+        }
+        String rv = null;
+        for (String header : headers) {
+            int ix = header.indexOf(": ");
+            if (ix == name.length() && header.regionMatches(true, 0, name, 0, ix)) {
+                String value = header.substring(ix + 2);
+                rv = rv == null ? value : rv + ", " + value;
+            }
+        }
+        return rv;
+    }
+
+    private static String name(String headerName, boolean lowerCase) {
+        return lowerCase ? headerName.toLowerCase() : headerName;
+    }
+
+    private static long epochMillis(String httpDate) {
+        if (httpDate == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static long seconds(String deltaSeconds) {
+        try {
+            return Long.parseLong(deltaSeconds.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    private static ServiceResponse copyOf(ServiceResponse sr) {
+        return sr.withRevisedHeaders(sr.headers.copy());
+    }
+
+    /**
+     * Cache-Control directives, lower-cased, from one or more headers.
+     */
+    static class Directives {
+
+        private final Map<String, String> directives = new HashMap<>();
+
+        Directives(List<String> headers) {
+            String cacheControl = headerValue(headers, "Cache-Control");
+            if (cacheControl == null) {
+                return;
+            }
+            for (String directive : cacheControl.split(",")) {
+                int eq = directive.indexOf('=');
+                if (eq == -1) {
+                    directives.put(directive.trim().toLowerCase(), "");
+                } else {
+                    directives.put(directive.substring(0, eq).trim().toLowerCase(),
+                            directive.substring(eq + 1).trim().replace("\"", ""));
+                }
+            }
+        }
+
+        boolean has(String directive) {
+            return directives.containsKey(directive);
+        }
+
+        String value(String directive) {
+            return directives.get(directive);
+        }
+    }
+
+    private static class Spilled {
+        private final File file;
+        private final long size;
+
+        private Spilled(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private static class Entry {
+
+        private String key;
+        private final String url;
+        private final ServiceResponse response;
+        private final long responseTime;
+        private final long initialAge;
+        private final long size;
+        private final Directives directives;
+        private final String etag;
+        private final String lastModified;
+        private final long freshnessLifetime;
+
+        private Entry(String url, ServiceResponse response, long requestTime, long responseTime) {
+            this(url, url, response, responseTime,
+                    Math.max(0, seconds(headerValue(response.headers, "Age")) * 1000) + (responseTime - requestTime));
+        }
+
+        private Entry(String key, String url, ServiceResponse response, long responseTime, long initialAge) {
+            this.key = key;
+            this.url = url;
+            this.response = response;
+            this.responseTime = responseTime;
+            this.initialAge = initialAge;
+            this.directives = new Directives(response.headers);
+            this.etag = headerValue(response.headers, "ETag");
+            this.lastModified = headerValue(response.headers, "Last-Modified");
+            this.freshnessLifetime = freshnessLifetime();
+            long size = 64 + key.length() * 2;
+            for (int i = 0; i < response.headers.size(); i++) {
+                size += (response.headers.name(i).length() + response.headers.value(i).length() + 2) * 2;
+            }
+            size += response.body.byteLength();
+            this.size = size;
+        }
+
+        private long freshnessLifetime() {
+            if (directives.has("no-cache")) {
+                return 0;
+            }
+            long sMaxAge = seconds(directives.value("s-maxage"));
+            if (sMaxAge >= 0) {
+                return sMaxAge * 1000;
+            }
+            long maxAge = seconds(directives.value("max-age"));
+            if (maxAge >= 0) {
+                return maxAge * 1000;
+            }
+            String expires = headerValue(response.headers, "Expires");
+            if (expires != null) {
+                long date = epochMillis(headerValue(response.headers, "Date"));
+                return Math.max(0, epochMillis(expires) - (date == -1 ? responseTime : date));
+            }
+            return 0;
+        }
+
+        /**
+         * @return the current_age of RFC 9111 section 4.2.3, in millis
+         */
+        private long currentAge(long now) {
+            return initialAge + (now - responseTime);
+        }
+
+        private boolean isFresh(long now) {
+            return freshnessLifetime > currentAge(now);
+        }
+
+        private boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        private boolean isStorable(Directives requestDirectives, List<String> clientRequestHeaders) {
+            if (!CACHEABLE_STATUSES.contains(response.statusCode) || directives.has("no-store")
+                    || directives.has("private") || requestDirectives.has("no-store")) {
+                return false;
+            }
+            if ("*".equals(headerValue(response.headers, "Vary"))) {
+                return false;
+            }
+            if (headerValue(clientRequestHeaders, "Authorization") != null && !directives.has("public")
+                    && !directives.has("s-maxage") && !directives.has("must-revalidate")) {
+                return false;
+            }
+            return freshnessLifetime > 0 || hasValidators();
+        }
+
+        private List<String> varyNames() {
+            String vary = headerValue(response.headers, "Vary");
+            if (vary == null) {
+                return Collections.emptyList();
+            }
+            List<String> names = new ArrayList<>();
+            for (String name : vary.split(",")) {
+                names.add(name.trim().toLowerCase());
+            }
+            Collections.sort(names);
+            return names;
+        }
+
+        /**
+         * A 304 from the service refreshes the stored headers it carries, and resets the age.
+         */
+        private Entry refreshedBy(ServiceResponse notModified, long requestTime, long responseTime) {
+            HttpHeaders headers = response.headers.copy();
+            HttpHeaders updates = notModified.headers;
+            for (int i = 0; i < updates.size(); i++) {
+                String updateName = updates.lowerCaseName(i);
+                if (updateName.equals("content-length") || updateName.equals("transfer-encoding")) {
+                    continue;
+                }
+                headers.removeNamed(updateName);
+            }
+            for (int i = 0; i < updates.size(); i++) {
+                String updateName = updates.lowerCaseName(i);
+                if (!updateName.equals("content-length") && !updateName.equals("transfer-encoding")) {
+                    headers.add(updates.name(i), updates.value(i));
+                }
+            }
+            ServiceResponse revised = response.withRevisedHeaders(headers);
+            long age = Math.max(0, seconds(headerValue(notModified.headers, "Age")) * 1000) + (responseTime - requestTime);
+            return new Entry(key, url, revised, responseTime, age);
+        }
+    }
+
+    private static void writeEntry(Entry entry, File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            writeString(out, entry.key);
+            writeString(out, entry.url);
+            out.writeLong(entry.responseTime);
+            out.writeLong(entry.initialAge);
+            out.writeInt(entry.response.statusCode);
+            writeString(out, entry.response.contentType);
+            out.writeInt(entry.response.headers.size());
+            for (String header : entry.response.headers) {
+                writeString(out, header);
+            }
+            Charset charset = entry.response.body.charset();
+            writeString(out, charset == null ? null : charset.name());
+            writeBytes(out, entry.response.body.array());
+        }
+    }
+
+    private static Entry readEntry(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            String key = readString(in);
+            String url = readString(in);
+            long responseTime = in.readLong();
+            long initialAge = in.readLong();
+            int statusCode = in.readInt();
+            String contentType = readString(in);
+            String[] headers = new String[in.readInt()];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = readString(in);
+            }
+            String charset = readString(in);
+            byte[] bytes = readBytes(in);
+            HttpBody body = charset == null ? HttpBody.ofBytes(bytes) : HttpBody.ofEncodedText(bytes, Charset.forName(charset));
+            return new Entry(key, url, new ServiceResponse(body, contentType, statusCode, headers), responseTime, initialAge);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+}
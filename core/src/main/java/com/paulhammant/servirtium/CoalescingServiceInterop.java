@@ -0,0 +1,145 @@
+package com.paulhammant.servirtium;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps another ServiceInteroperation so that concurrent identical GET (and HEAD) requests
+ * share a single call to the real service. The first caller for a given method, URL and set of
+ * headers goes upstream; callers arriving while that is in flight wait for, and receive a copy
+ * of, the same ServiceResponse. Nothing is cached once the upstream call completes.
+ * <p>
+ * Headers that differ on every request - request and correlation IDs, trace context, Date - are
+ * left out when deciding if requests are identical, else nothing would ever be coalesced. Only the
+ * first caller's values for those are sent upstream. See withHeadersIgnoredInKey(..).
+ * <p>
+ * Intended for NonRecordingPassThrough with many parallel test clients. Don't use it while
+ * recording - each interaction there must be a real exchange with the service.
+ */
+public class CoalescingServiceInterop implements ServiceInteroperation {
+
+    private final ServiceInteroperation delegate;
+    private final ServiceMonitor monitor;
+    private final ConcurrentHashMap<String, CompletableFuture<ServiceResponse>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong upstreamCalls = new AtomicLong();
+    private final AtomicLong coalescedCalls = new AtomicLong();
+    private Set<String> headersIgnoredInKey = lowerCased("X-Request-Id", "X-Correlation-Id", "Request-Id",
+            "Correlation-Id", "X-B3-TraceId", "X-B3-SpanId", "X-B3-ParentSpanId", "X-Amzn-Trace-Id",
+            "traceparent", "tracestate", "Date");
+
+    public CoalescingServiceInterop(ServiceInteroperation delegate) {
+        this(delegate, new ServiceMonitor.Default());
+    }
+
+    public CoalescingServiceInterop(ServiceInteroperation delegate, ServiceMonitor monitor) {
+        this.delegate = delegate;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Requests differing only in these headers are treated as identical, and share an upstream call.
+     * Replaces the default set of per-request ID, trace and Date headers. Pass none to key on every header.
+     * @param headerNames case-insensitive header names
+     * @return this
+     */
+    public CoalescingServiceInterop withHeadersIgnoredInKey(String... headerNames) {
+        headersIgnoredInKey = lowerCased(headerNames);
+        return this;
+    }
+
+    @Override
+    public ServiceResponse invokeServiceEndpoint(String method, HttpBody clientRequestBody,
+                                                 String clientRequestContentType,
+                                                 String url, List<String> clientRequestHeaders,
+                                                 InteractionManipulations interactionManipulations,
+                                                 boolean forceHeadersToLowerCase) throws ServiceInteroperationFailed {
+
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            upstreamCalls.incrementAndGet();
+            return delegate.invokeServiceEndpoint(method, clientRequestBody, clientRequestContentType, url,
+                    clientRequestHeaders, interactionManipulations, forceHeadersToLowerCase);
+        }
+
+        final String key = flightKey(method, url, clientRequestHeaders, forceHeadersToLowerCase);
+        CompletableFuture<ServiceResponse> ours = new CompletableFuture<>();
+        CompletableFuture<ServiceResponse> theirs = inFlight.putIfAbsent(key, ours);
+
+        if (theirs != null) {
+            coalescedCalls.incrementAndGet();
+            monitor.upstreamCallCoalesced(method, url);
+            try {
+                return copyOf(theirs.join());
+            } catch (CompletionException e) {
+                throw rethrowable(method, url, e.getCause());
+            }
+        }
+
+        upstreamCalls.incrementAndGet();
+        try {
+            ours.complete(delegate.invokeServiceEndpoint(method, clientRequestBody, clientRequestContentType, url,
+                    clientRequestHeaders, interactionManipulations, forceHeadersToLowerCase));
+        } catch (Throwable t) {
+            ours.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, ours);
+        }
+        // The response in the future stays pristine, as callers (including this one) are free to change theirs.
+        return copyOf(ours.join());
+    }
+
+    /**
+     * @return the number of calls that were actually made to the real service
+     */
+    public long getUpstreamCalls() {
+        return upstreamCalls.get();
+    }
+
+    /**
+     * @return the number of calls that were satisfied by sharing another caller's upstream call
+     */
+    public long getCoalescedCalls() {
+        return coalescedCalls.get();
+    }
+
+    private String flightKey(String method, String url, List<String> clientRequestHeaders, boolean lowerCase) {
+        StringBuilder sb = new StringBuilder(method).append(' ').append(url).append(lowerCase ? "\nlc" : "\n");
+        for (String h : clientRequestHeaders) {
+            int colon = h.indexOf(':');
+            String name = colon == -1 ? h : h.substring(0, colon).trim();
+            if (!headersIgnoredInKey.contains(name.toLowerCase(Locale.ROOT))) {
+                sb.append('\n').append(h);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Set<String> lowerCased(String... headerNames) {
+        Set<String> names = new HashSet<>();
+        for (String name : headerNames) {
+            names.add(name.toLowerCase(Locale.ROOT));
+        }
+        return names;
+    }
+
+    private static ServiceResponse copyOf(ServiceResponse sr) {
+        return sr.withRevisedHeaders(sr.headers.copy());
+    }
+
+    private static RuntimeException rethrowable(String method, String url, Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new ServiceInteroperationFailed("Coalesced " + method + " to " + url + " failed", cause);
+    }
+
+}
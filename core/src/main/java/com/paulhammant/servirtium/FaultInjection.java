@@ -0,0 +1,164 @@
+package com.paulhammant.servirtium;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Faults for a ServirtiumServer to inject into the responses it sends back to the client, to see
+ * how the client's retry, timeout and circuit-breaker logic copes with a degraded service. Faults
+ * can be for particular interactions, or happen at random with a given probability. Mostly for
+ * playback with MarkdownReplayer - in recording, the real service's response is recorded as-is
+ * and only what goes back to the client is affected.
+ * <p>
+ * See ServirtiumServer.withFaultInjection().
+ */
+public class FaultInjection {
+
+    private final Map<Integer, Fault> forInteractions = new HashMap<>();
+    private final List<Fault> faults = new ArrayList<>();
+    private final List<Double> probabilities = new ArrayList<>();
+    private Random random = new Random();
+
+    /**
+     * @param fault the fault
+     * @param probability between 0 and 1, the chance of it happening for any one interaction
+     * @return this
+     */
+    public FaultInjection withFault(Fault fault, double probability) {
+        faults.add(fault);
+        probabilities.add(probability);
+        return this;
+    }
+
+    /**
+     * @param interactionNum the interaction, from zero
+     * @param fault the fault that will always happen for it, overriding those with probabilities
+     * @return this
+     */
+    public FaultInjection withFaultForInteraction(int interactionNum, Fault fault) {
+        forInteractions.put(interactionNum, fault);
+        return this;
+    }
+
+    /**
+     * @param seed for a repeatable sequence of random faults
+     * @return this
+     */
+    public FaultInjection withRandomSeed(long seed) {
+        random = new Random(seed);
+        return this;
+    }
+
+    /**
+     * @return the fault to inject for the interaction, or null for none.
+     */
+    public Fault faultFor(int interactionNum) {
+        Fault fault = forInteractions.get(interactionNum);
+        if (fault != null) {
+            return fault;
+        }
+        for (int i = 0; i < faults.size(); i++) {
+            if (random.nextDouble() < probabilities.get(i)) {
+                return faults.get(i);
+            }
+        }
+        return null;
+    }
+
+    public static class Fault {
+
+        private final String description;
+        private final int statusCode;
+        private final long stallNanos;
+        private final long bytesPerSecond;
+        private final boolean resetBeforeHeaders;
+        private final double fractionOfBodyBeforeReset;
+
+        private Fault(String description, int statusCode, long stallNanos, long bytesPerSecond,
+                      boolean resetBeforeHeaders, double fractionOfBodyBeforeReset) {
+            this.description = description;
+            this.statusCode = statusCode;
+            this.stallNanos = stallNanos;
+            this.bytesPerSecond = bytesPerSecond;
+            this.resetBeforeHeaders = resetBeforeHeaders;
+            this.fractionOfBodyBeforeReset = fractionOfBodyBeforeReset;
+        }
+
+        /**
+         * Drop the connection without sending any response at all.
+         */
+        public static Fault connectionReset() {
+            return new Fault("connection reset", 0, 0, 0, true, -1);
+        }
+
+        /**
+         * Send the headers, with the Content-Length of the whole body, then only part of the body
+         * before dropping the connection.
+         * @param fractionSent between 0 and 1, how much of the body to send
+         */
+        public static Fault truncatedBody(double fractionSent) {
+            return new Fault("body truncated at " + fractionSent, 0, 0, 0, false, fractionSent);
+        }
+
+        /**
+         * Wait before sending the status line and headers.
+         */
+        public static Fault stalledHeaders(long stall, TimeUnit unit) {
+            return new Fault("headers stalled for " + unit.toMillis(stall) + "ms", 0, unit.toNanos(stall), 0, false, -1);
+        }
+
+        /**
+         * Send a plain text error with the given status instead of the response.
+         * @param statusCode like 500 or 503
+         */
+        public static Fault serverError(int statusCode) {
+            return new Fault("status " + statusCode + " substituted", statusCode, 0, 0, false, -1);
+        }
+
+        /**
+         * Send the body no faster than the given rate, so the client's reads are slow to complete.
+         */
+        public static Fault slowReads(long bytesPerSecond) {
+            return new Fault("body sent at " + bytesPerSecond + " bytes/sec", 0, 0, bytesPerSecond, false, -1);
+        }
+
+        /**
+         * @return the response to send instead, for a substituted error status, else the same response.
+         */
+        public ServiceResponse applyTo(ServiceResponse serviceResponse) {
+            if (statusCode == 0) {
+                return serviceResponse;
+            }
+            return new ServiceResponse("Servirtium injected fault: " + description, "text/plain", statusCode,
+                    "Content-Type: text/plain");
+        }
+
+        /**
+         * @return the pacing for the response, with this fault's stall, rate limit or reset added.
+         */
+        public ResponsePacing applyTo(ResponsePacing pacing) {
+            if (stallNanos > 0) {
+                pacing = pacing.withHeadersDelay(Math.max(stallNanos, pacing.headersDelayNanos), TimeUnit.NANOSECONDS);
+            }
+            if (bytesPerSecond > 0) {
+                pacing = pacing.withBandwidthLimit(bytesPerSecond, 0);
+            }
+            if (resetBeforeHeaders) {
+                pacing = pacing.withConnectionResetBeforeHeaders();
+            } else if (fractionOfBodyBeforeReset >= 0) {
+                pacing = pacing.withConnectionResetPartWayThroughBody(fractionOfBodyBeforeReset);
+            }
+            return pacing;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+}
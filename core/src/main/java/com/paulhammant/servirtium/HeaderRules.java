@@ -0,0 +1,158 @@
+package com.paulhammant.servirtium;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * Declarative changes to headers going in one direction - removals, renames and value rewrites -
+ * applied in a single pass over them. Rules for a header name are looked up once per header, by
+ * its lower-cased name, rather than each rule looping over all the headers.
+ * <p>
+ * See SimpleInteractionManipulations.withClientRequestHeaderRules() and
+ * withServiceResponseHeaderRules().
+ */
+public final class HeaderRules {
+
+    private final Map<String, ForName> byName = new HashMap<>();
+    private final List<String> linePrefixesToRemove = new ArrayList<>();
+
+    /**
+     * Remove headers with the name, any case.
+     */
+    public HeaderRules remove(String name) {
+        forName(name).removed = true;
+        return this;
+    }
+
+    /**
+     * Remove headers whose "Name: value" line starts with the prefix, case-sensitively - like "x-"
+     * or "Expires:".
+     */
+    public HeaderRules removeWithPrefix(String linePrefix) {
+        linePrefixesToRemove.add(linePrefix);
+        return this;
+    }
+
+    /**
+     * Rename headers with the name, any case, after any changes to their values.
+     */
+    public HeaderRules rename(String name, String newName) {
+        forName(name).renamedTo = newName;
+        return this;
+    }
+
+    public HeaderRules setValue(String name, String value) {
+        return changeValue(name, v -> value);
+    }
+
+    /**
+     * Replace text in the values of headers with the name, any case.
+     */
+    public HeaderRules replaceInValue(String name, String target, String replacement) {
+        return changeValue(name, v -> v.replace(target, replacement));
+    }
+
+    /**
+     * Replace matches of the regex in the values of headers with the name, any case.
+     */
+    public HeaderRules replaceAllInValue(String name, String regex, String replacement) {
+        Pattern pattern = Pattern.compile(regex);
+        return changeValue(name, v -> pattern.matcher(v).replaceAll(replacement));
+    }
+
+    /**
+     * Change the values of headers with the name, any case. Changes for the same name are made in
+     * the order they were added.
+     */
+    public HeaderRules changeValue(String name, UnaryOperator<String> change) {
+        forName(name).valueChanges.add(change);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return byName.isEmpty() && linePrefixesToRemove.isEmpty();
+    }
+
+    /**
+     * Add all the other rules to these ones.
+     */
+    public HeaderRules addAll(HeaderRules other) {
+        linePrefixesToRemove.addAll(other.linePrefixesToRemove);
+        other.byName.forEach((key, rules) -> {
+            ForName mine = byName.computeIfAbsent(key, k -> new ForName());
+            mine.removed |= rules.removed;
+            if (rules.renamedTo != null) {
+                mine.renamedTo = rules.renamedTo;
+            }
+            mine.valueChanges.addAll(rules.valueChanges);
+        });
+        return this;
+    }
+
+    /**
+     * @return a copy of the headers with the rules applied
+     */
+    public HttpHeaders applyTo(HttpHeaders headers) {
+        HttpHeaders changed = new HttpHeaders(headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            addTo(changed, headers.name(i), headers.value(i));
+        }
+        return changed;
+    }
+
+    /**
+     * Apply the rules to the header, adding it to the headers unless it is removed.
+     * @return whether it was added
+     */
+    public boolean addTo(HttpHeaders headers, String name, String value) {
+        for (String prefix : linePrefixesToRemove) {
+            if (lineStartsWith(name, value, prefix)) {
+                return false;
+            }
+        }
+        ForName rules = byName.get(HttpHeaders.lowerCase(name));
+        if (rules == null) {
+            headers.add(name, value);
+            return true;
+        }
+        if (rules.removed) {
+            return false;
+        }
+        for (UnaryOperator<String> change : rules.valueChanges) {
+            value = change.apply(value);
+        }
+        headers.add(rules.renamedTo != null ? rules.renamedTo : name, value);
+        return true;
+    }
+
+    private ForName forName(String name) {
+        return byName.computeIfAbsent(HttpHeaders.lowerCase(name), k -> new ForName());
+    }
+
+    // Whether name + ": " + value starts with the prefix, without making that string
+    private static boolean lineStartsWith(String name, String value, String prefix) {
+        int n = name.length();
+        if (prefix.length() <= n) {
+            return name.startsWith(prefix);
+        }
+        if (!prefix.startsWith(name)) {
+            return false;
+        }
+        int afterName = prefix.length() - n;
+        if (!prefix.regionMatches(n, ": ", 0, Math.min(afterName, 2))) {
+            return false;
+        }
+        return afterName <= 2 || value.regionMatches(0, prefix, n + 2, afterName - 2);
+    }
+
+    private static class ForName {
+        private boolean removed;
+        private String renamedTo;
+        private final List<UnaryOperator<String>> valueChanges = new ArrayList<>();
+    }
+
+}
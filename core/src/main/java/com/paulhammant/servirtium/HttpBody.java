@@ -0,0 +1,252 @@
+package com.paulhammant.servirtium;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * An immutable request or response body. It holds bytes, plus the charset they are in if the body
+ * is text. Text is decoded from the bytes only when something asks for it - a manipulation, a
+ * pretty-printer, the recording - and bytes are encoded from revised text only when they're
+ * sent, so a body that nothing changes goes from one side to the other without transcoding.
+ */
+public final class HttpBody {
+
+    public static final HttpBody EMPTY = ofText("", StandardCharsets.UTF_8);
+
+    private static final int CHUNK_CHARS = 8192;
+
+    private final Charset charset;
+    private volatile byte[] bytes;
+    private volatile String text;
+
+    private HttpBody(byte[] bytes, String text, Charset charset) {
+        this.bytes = bytes;
+        this.text = text;
+        this.charset = charset;
+    }
+
+    /**
+     * @param bytes not copied, and not to be changed afterwards
+     */
+    public static HttpBody ofBytes(byte[] bytes) {
+        return new HttpBody(bytes, null, null);
+    }
+
+    /**
+     * @param bytes copied from position to limit, which is left as it was
+     */
+    public static HttpBody ofBytes(ByteBuffer bytes) {
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        return ofBytes(copy);
+    }
+
+    /**
+     * @param bytes not copied, and not to be changed afterwards
+     * @param charset what they are text in, or null if not text
+     */
+    public static HttpBody ofEncodedText(byte[] bytes, Charset charset) {
+        return new HttpBody(bytes, null, charset);
+    }
+
+    public static HttpBody ofText(String text, Charset charset) {
+        return new HttpBody(null, text, charset);
+    }
+
+    /**
+     * For bodies still held the old way: a String, a byte[] (binary), or null for empty.
+     * @param contentType for the charset of a String
+     */
+    public static HttpBody of(Object body, String contentType) {
+        if (body == null) {
+            return ofText("", charsetOf(contentType));
+        }
+        if (body instanceof HttpBody) {
+            return (HttpBody) body;
+        }
+        if (body instanceof byte[]) {
+            return ofBytes((byte[]) body);
+        }
+        return ofText((String) body, charsetOf(contentType));
+    }
+
+    /**
+     * @param bytes as read from the wire
+     * @param contentType if a text type, the bytes are text in its charset, or in the default one given
+     */
+    public static HttpBody fromWire(byte[] bytes, String contentType, Charset defaultCharset) {
+        if (contentType == null || !ServirtiumServer.isText(contentType)) {
+            return ofBytes(bytes);
+        }
+        Charset charset = charsetOf(contentType, null);
+        return ofEncodedText(bytes, charset == null ? defaultCharset : charset);
+    }
+
+    /**
+     * @return the charset in the content type, or else UTF-8.
+     */
+    public static Charset charsetOf(String contentType) {
+        return charsetOf(contentType, StandardCharsets.UTF_8);
+    }
+
+    private static Charset charsetOf(String contentType, Charset defaultCharset) {
+        int csIx = contentType == null ? -1 : contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (csIx > -1) {
+            try {
+                return Charset.forName(contentType.substring(csIx + 8).split(";")[0].trim().replace("\"", ""));
+            } catch (IllegalArgumentException e) {
+                // unknown charset
+            }
+        }
+        return defaultCharset;
+    }
+
+    public boolean isText() {
+        return charset != null;
+    }
+
+    /**
+     * @return the charset of a text body, or null for binary
+     */
+    public Charset charset() {
+        return charset;
+    }
+
+    /**
+     * @return the body decoded, which is done once, on the first call.
+     * @throws IllegalStateException for a binary body
+     */
+    public String text() {
+        String t = text;
+        if (t == null) {
+            if (charset == null) {
+                throw new IllegalStateException("Binary body of " + byteLength() + " bytes is not text");
+            }
+            text = t = new String(bytes, charset);
+        }
+        return t;
+    }
+
+    /**
+     * @return the number of bytes, as for Content-Length - not the number of chars
+     */
+    public int byteLength() {
+        return array().length;
+    }
+
+    public boolean isEmpty() {
+        String t = text;
+        return t != null ? t.isEmpty() : bytes.length == 0;
+    }
+
+    /**
+     * @param text null for empty
+     * @return a body in the same charset, with the given text - or this, if that's the same text.
+     */
+    public HttpBody withText(String text) {
+        if (charset == null) {
+            throw new IllegalStateException("Binary body of " + byteLength() + " bytes is not text");
+        }
+        if (text == null) {
+            text = "";
+        }
+        if (text.equals(this.text)) {
+            return this;
+        }
+        return ofText(text, charset);
+    }
+
+    /**
+     * Decode the bytes a chunk at a time, passing each to the transformer, and encode what it writes
+     * as it goes - the body's text is never a String as a whole, either before or after. If the text
+     * was already decoded, it is passed as one chunk.
+     * @return a body in the same charset, of what the transformer wrote
+     */
+    public HttpBody transformedBy(BodyTransformer transformer) {
+        if (charset == null) {
+            throw new IllegalStateException("Binary body of " + byteLength() + " bytes is not text");
+        }
+        ByteArrayOutputStream transformed = new ByteArrayOutputStream(byteLength());
+        try (Writer out = new OutputStreamWriter(transformed, charset)) {
+            String t = text;
+            if (t != null) {
+                transformer.transform(t, out);
+            } else {
+                Reader in = new InputStreamReader(new ByteArrayInputStream(bytes), charset);
+                char[] chunk = new char[CHUNK_CHARS];
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    transformer.transform(CharBuffer.wrap(chunk, 0, read), out);
+                }
+            }
+            transformer.finish(out);
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Can't transform body", e);
+        }
+        return ofEncodedText(transformed.toByteArray(), charset);
+    }
+
+    public byte[] toByteArray() {
+        return array().clone();
+    }
+
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(array()).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(array());
+    }
+
+    /**
+     * @return the bytes themselves, encoded once on the first call - not to be changed.
+     */
+    byte[] array() {
+        byte[] b = bytes;
+        if (b == null) {
+            bytes = b = text.getBytes(charset);
+        }
+        return b;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HttpBody)) {
+            return false;
+        }
+        HttpBody other = (HttpBody) o;
+        if (charset == null || other.charset == null) {
+            return charset == other.charset && Arrays.equals(array(), other.array());
+        }
+        // text in different charsets is never equal, as hashCode() hashes the decoded text
+        return charset.equals(other.charset) && text().equals(other.text());
+    }
+
+    @Override
+    public int hashCode() {
+        return charset == null ? Arrays.hashCode(array()) : text().hashCode();
+    }
+
+    /**
+     * @return the text, or for a binary body, how many bytes it is
+     */
+    @Override
+    public String toString() {
+        return charset == null ? "[" + byteLength() + " bytes]" : text();
+    }
+}
@@ -0,0 +1,288 @@
+package com.paulhammant.servirtium;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTTP headers in the order they were received, as names and values held in parallel arrays.
+ * Lookups by name are case-insensitive, against lower-cased names that are interned so that the
+ * same few dozen header names are not allocated again for every interaction.
+ * <p>
+ * It is also a List of "Name: value" lines, rendered and parsed on demand, so that it can be
+ * handed as-is to InteractionManipulations and ServiceInteroperation implementations written
+ * for headers as strings.
+ */
+public final class HttpHeaders extends AbstractList<String> implements RandomAccess {
+
+    private static final int MAX_INTERNED_NAMES = 1024;
+    private static final ConcurrentHashMap<String, String> LOWER_CASE_NAMES = new ConcurrentHashMap<>();
+
+    private String[] names;
+    private String[] keys;
+    private String[] values;
+    private int size;
+
+    public HttpHeaders() {
+        this(16);
+    }
+
+    public HttpHeaders(int capacity) {
+        names = new String[Math.max(capacity, 1)];
+        keys = new String[names.length];
+        values = new String[names.length];
+    }
+
+    /**
+     * @param lines like "Content-Type: text/plain" - blank lines are ignored
+     */
+    public static HttpHeaders of(String... lines) {
+        return of(Arrays.asList(lines));
+    }
+
+    public static HttpHeaders of(Collection<String> lines) {
+        if (lines instanceof HttpHeaders) {
+            return ((HttpHeaders) lines).copy();
+        }
+        HttpHeaders headers = new HttpHeaders(lines.size());
+        for (String line : lines) {
+            if (!line.isEmpty()) {
+                headers.add(line);
+            }
+        }
+        return headers;
+    }
+
+    public HttpHeaders add(String name, String value) {
+        insert(size, name, value);
+        return this;
+    }
+
+    public String name(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    /**
+     * @return the name, lower-cased (and interned, for common ones)
+     */
+    public String lowerCaseName(int index) {
+        checkIndex(index);
+        return keys[index];
+    }
+
+    public String value(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    public void setValue(int index, String value) {
+        checkIndex(index);
+        values[index] = value;
+    }
+
+    /**
+     * @return the index of the first header with the name, any case, or -1
+     */
+    public int indexOf(String name, int from) {
+        String key = lowerCase(name);
+        for (int i = from; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of the first header with the name, any case, or null
+     */
+    public String first(String name) {
+        int ix = indexOf(name, 0);
+        return ix == -1 ? null : values[ix];
+    }
+
+    /**
+     * @return the values of all the headers with the name, any case, comma separated - or null
+     */
+    public String joined(String name) {
+        String rv = null;
+        for (int ix = indexOf(name, 0); ix != -1; ix = indexOf(name, ix + 1)) {
+            rv = rv == null ? values[ix] : rv + ", " + values[ix];
+        }
+        return rv;
+    }
+
+    public List<String> all(String name) {
+        List<String> rv = new ArrayList<>();
+        for (int ix = indexOf(name, 0); ix != -1; ix = indexOf(name, ix + 1)) {
+            rv.add(values[ix]);
+        }
+        return rv;
+    }
+
+    public boolean has(String name) {
+        return indexOf(name, 0) != -1;
+    }
+
+    /**
+     * Replace the value of the first header with the name, any case, or add one if there is none.
+     */
+    public HttpHeaders set(String name, String value) {
+        int ix = indexOf(name, 0);
+        if (ix == -1) {
+            return add(name, value);
+        }
+        values[ix] = value;
+        for (int next = indexOf(name, ix + 1); next != -1; next = indexOf(name, next)) {
+            remove(next);
+        }
+        return this;
+    }
+
+    /**
+     * @return how many headers with the name, any case, were removed
+     */
+    public int removeNamed(String name) {
+        int removed = 0;
+        for (int ix = indexOf(name, 0); ix != -1; ix = indexOf(name, ix)) {
+            remove(ix);
+            removed++;
+        }
+        return removed;
+    }
+
+    public HttpHeaders copy() {
+        HttpHeaders copy = new HttpHeaders(size);
+        System.arraycopy(names, 0, copy.names, 0, size);
+        System.arraycopy(keys, 0, copy.keys, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * @return a copy, ordered as the "Name: value" lines would sort
+     */
+    public HttpHeaders sorted() {
+        String[] lines = toLines();
+        Arrays.sort(lines);
+        return of(lines);
+    }
+
+    public String[] toLines() {
+        return toArray(new String[size]);
+    }
+
+    // The List<String> view, of "Name: value" lines
+
+    @Override
+    public String get(int index) {
+        checkIndex(index);
+        return names[index] + ": " + values[index];
+    }
+
+    @Override
+    public String set(int index, String line) {
+        String previous = get(index);
+        int ix = separator(line);
+        names[index] = line.substring(0, ix);
+        keys[index] = lowerCase(names[index]);
+        values[index] = valueAfter(line, ix);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, String line) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        int ix = separator(line);
+        insert(index, line.substring(0, ix), valueAfter(line, ix));
+    }
+
+    @Override
+    public String remove(int index) {
+        String previous = get(index);
+        int moved = size - index - 1;
+        System.arraycopy(names, index + 1, names, index, moved);
+        System.arraycopy(keys, index + 1, keys, index, moved);
+        System.arraycopy(values, index + 1, values, index, moved);
+        size--;
+        names[size] = keys[size] = values[size] = null;
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void insert(int index, String name, String value) {
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        int moved = size - index;
+        System.arraycopy(names, index, names, index + 1, moved);
+        System.arraycopy(keys, index, keys, index + 1, moved);
+        System.arraycopy(values, index, values, index + 1, moved);
+        names[index] = name;
+        keys[index] = lowerCase(name);
+        values[index] = value;
+        size++;
+        modCount++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private static int separator(String line) {
+        int ix = line.indexOf(": ");
+        if (ix == -1) {
+            ix = line.indexOf(':');
+        }
+        if (ix == -1) {
+            throw new IllegalArgumentException("Not a 'Name: value' header line: " + line);
+        }
+        return ix;
+    }
+
+    private static String valueAfter(String line, int separator) {
+        return line.startsWith(": ", separator) ? line.substring(separator + 2) : line.substring(separator + 1);
+    }
+
+    static String lowerCase(String name) {
+        String key = LOWER_CASE_NAMES.get(name);
+        if (key != null) {
+            return key;
+        }
+        key = name.toLowerCase(Locale.ROOT);
+        if (LOWER_CASE_NAMES.size() < MAX_INTERNED_NAMES) {
+            key = key.intern();
+            LOWER_CASE_NAMES.putIfAbsent(name, key);
+        }
+        return key;
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.paulhammant.servirtium;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * The last so many interactions a ServirtiumServer handled - method, URL, status, body sizes and
+ * timings, and the bodies too if asked for - for tests to query rather than reading the recording
+ * back. Entries go into a ring without locks, the oldest being overwritten when it is full. They
+ * are added before the response is sent, so are there when the client has it - except for paced
+ * responses (see ResponsePacing), which are added when the last of the body has gone.
+ * <pre>
+ * assertEquals(2, servirtiumServer.getJournal().query().method("GET").urlContains("/todos").count());
+ * </pre>
+ */
+public class InteractionJournal {
+
+    private final int capacity;
+    private final boolean bodies;
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong written = new AtomicLong();
+    private volatile long clearedAt;
+
+    /**
+     * @param capacity how many of the latest interactions to keep, or 0 for none
+     * @param bodies whether to keep request and response bodies too
+     */
+    public InteractionJournal(int capacity, boolean bodies) {
+        this.capacity = capacity;
+        this.bodies = bodies;
+        this.ring = new AtomicReferenceArray<>(capacity);
+    }
+
+    public void add(int interactionNum, String context, String method, String url, int statusCode,
+                    InteractionTimings timings, HttpBody requestBody, HttpBody responseBody, boolean failed) {
+        if (capacity == 0) {
+            return;
+        }
+        long sequence = written.getAndIncrement();
+        ring.set((int) (sequence % capacity), new Entry(sequence, System.currentTimeMillis(), interactionNum, context,
+                method, url, statusCode, timings, bodies ? requestBody : null, bodies ? responseBody : null, failed));
+    }
+
+    /**
+     * @return the entries, oldest first
+     */
+    public List<Entry> getEntries() {
+        long end = written.get();
+        long start = Math.max(clearedAt, end - capacity);
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = ring.get((int) (sequence % capacity));
+            // not there yet, or already overwritten
+            if (entry != null && entry.sequence == sequence) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return how many interactions were added, including those no longer kept
+     */
+    public long getAdded() {
+        return written.get();
+    }
+
+    /**
+     * Forget the entries so far - between tests, say.
+     */
+    public void clear() {
+        clearedAt = written.get();
+    }
+
+    public boolean hasBodies() {
+        return bodies;
+    }
+
+    public Query query() {
+        return new Query(this);
+    }
+
+    public static final class Entry {
+        private final long sequence;
+        public final long timestamp;
+        public final int interactionNum;
+        public final String context;
+        public final String method;
+        public final String url;
+        public final int statusCode;
+        public final long requestBytes;
+        public final long responseBytes;
+        /** a copy, as they were when the entry was added */
+        public final InteractionTimings timings;
+        /** null unless the journal keeps bodies, or if there was none */
+        public final HttpBody requestBody;
+        /** null unless the journal keeps bodies */
+        public final HttpBody responseBody;
+        public final boolean failed;
+
+        private Entry(long sequence, long timestamp, int interactionNum, String context, String method, String url,
+                      int statusCode, InteractionTimings timings, HttpBody requestBody, HttpBody responseBody, boolean failed) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.interactionNum = interactionNum;
+            this.context = context;
+            this.method = method;
+            this.url = url;
+            this.statusCode = statusCode;
+            this.requestBytes = timings.getRequestBodyBytes();
+            this.responseBytes = failed ? 0 : timings.getResponseBodyBytes();
+            this.timings = timings.copy();
+            this.requestBody = requestBody;
+            this.responseBody = responseBody;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return interactionNum + " " + method + " " + url + " " + statusCode + (failed ? " FAILED" : "");
+        }
+    }
+
+    /**
+     * Entries that match all the conditions given.
+     */
+    public static final class Query {
+        private final InteractionJournal journal;
+        private Predicate<Entry> conditions = entry -> true;
+
+        private Query(InteractionJournal journal) {
+            this.journal = journal;
+        }
+
+        public Query method(String method) {
+            return where(entry -> entry.method.equalsIgnoreCase(method));
+        }
+
+        public Query urlContains(String part) {
+            return where(entry -> entry.url.contains(part));
+        }
+
+        public Query urlMatches(String regex) {
+            Pattern pattern = Pattern.compile(regex);
+            return where(entry -> pattern.matcher(entry.url).find());
+        }
+
+        public Query status(int statusCode) {
+            return where(entry -> entry.statusCode == statusCode);
+        }
+
+        public Query context(String context) {
+            return where(entry -> context.equals(entry.context));
+        }
+
+        public Query failed() {
+            return where(entry -> entry.failed);
+        }
+
+        public Query where(Predicate<Entry> condition) {
+            conditions = conditions.and(condition);
+            return this;
+        }
+
+        public List<Entry> list() {
+            List<Entry> matching = new ArrayList<>();
+            for (Entry entry : journal.getEntries()) {
+                if (conditions.test(entry)) {
+                    matching.add(entry);
+                }
+            }
+            return matching;
+        }
+
+        public int count() {
+            return list().size();
+        }
+
+        public boolean any() {
+            return count() > 0;
+        }
+
+        /**
+         * @return the oldest matching entry, or null
+         */
+        public Entry first() {
+            List<Entry> matching = list();
+            return matching.isEmpty() ? null : matching.get(0);
+        }
+
+        /**
+         * @return the latest matching entry, or null
+         */
+        public Entry last() {
+            List<Entry> matching = list();
+            return matching.isEmpty() ? null : matching.get(matching.size() - 1);
+        }
+    }
+}
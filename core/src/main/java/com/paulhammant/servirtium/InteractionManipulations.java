@@ -31,6 +31,7 @@
 
 package com.paulhammant.servirtium;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public interface InteractionManipulations {
@@ -53,6 +54,29 @@ public interface InteractionManipulations {
     default void changeAnyHeadersReturnedBackFromRealServiceForRecording(List<String> serviceResponseHeaders) {
     }
 
+    /**
+     * Change the headers returned from the server before recording them. By default this passes each
+     * one, as a "Name: value" line, to changeSingleHeaderReturnedBackFromRealServiceForRecording(),
+     * and then all of them to changeAnyHeadersReturnedBackFromRealServiceForRecording().
+     *
+     * @param headersBackFromService the headers returned from the server, which are left as they are
+     * @return the headers for the recording
+     */
+    default HttpHeaders changeHeadersReturnedBackFromRealServiceForRecording(HttpHeaders headersBackFromService) {
+        HttpHeaders headers = new HttpHeaders(headersBackFromService.size());
+        for (int i = 0; i < headersBackFromService.size(); i++) {
+            String header = headersBackFromService.get(i);
+            String potentiallyChangedHeader = changeSingleHeaderReturnedBackFromRealServiceForRecording(i, header);
+            if (potentiallyChangedHeader == header) {
+                headers.add(headersBackFromService.name(i), headersBackFromService.value(i));
+            } else if (potentiallyChangedHeader != null) {
+                headers.add(potentiallyChangedHeader);
+            }
+        }
+        changeAnyHeadersReturnedBackFromRealServiceForRecording(headers);
+        return headers;
+    }
+
     /**
      * Change things in the body returned from the server before: a) making a recording, and b) playing back a recording.
      * If you're using the same InteractionManipulations instance for record and playback, there could be some
@@ -82,14 +106,74 @@ public interface InteractionManipulations {
         return headers;
     }
 
+    /**
+     * Change the headers as recorded, before responding to the client. By default this passes them,
+     * as "Name: value" lines, to changeHeadersForClientResponseAfterRecording(String[]).
+     */
+    default HttpHeaders changeHeadersForClientResponseAfterRecording(HttpHeaders headers) {
+        String[] lines = headers.toLines();
+        String[] potentiallyChangedLines = changeHeadersForClientResponseAfterRecording(lines);
+        return potentiallyChangedLines == lines ? headers : HttpHeaders.of(potentiallyChangedLines);
+    }
+
+    /**
+     * Change the client's request headers before sending them to the real service. By default this passes
+     * each value to headerValueManipulation(), and then each header, as a "Name: value" line, to
+     * changeSingleHeaderForRequestToRealService().
+     *
+     * @param clientRequestHeaders the headers from the client, which are left as they are
+     * @param lowerCaseHeaders whether to lower-case the header names
+     * @return the headers for the real service
+     */
+    default HttpHeaders changeHeadersForRequestToRealService(HttpHeaders clientRequestHeaders, boolean lowerCaseHeaders) {
+        HttpHeaders headers = new HttpHeaders(clientRequestHeaders.size());
+        for (int i = 0; i < clientRequestHeaders.size(); i++) {
+            String hdrName = lowerCaseHeaders ? clientRequestHeaders.lowerCaseName(i) : clientRequestHeaders.name(i);
+            headers.add(hdrName, headerValueManipulation(clientRequestHeaders.name(i), clientRequestHeaders.value(i)));
+            changeSingleHeaderForRequestToRealService(headers.get(headers.size() - 1), headers);
+        }
+        return headers;
+    }
+
     default void changeAnyHeadersForRequestToRealService(List<String> clientRequestHeaders) {
     }
 
-    /** This may be Base84 encoded binary, but you're seldom going to want to change that */
+    /** For text bodies only - binary ones go to changeBinaryBodyForRequestToRealService() */
     default String changeBodyForRequestToRealService(String body) {
         return body;
     }
 
+    /**
+     * The binary counterpart of changeBodyReturnedBackFromRealServiceForRecording(String), for bodies
+     * that aren't text, like images or protobuf. See BinaryReplacement for search and replace over bytes.
+     *
+     * @param bodyFromService the bytes returned from the server - read-only
+     * @return the same buffer if unchanged, else a buffer of the changed bytes from position to limit
+     */
+    default ByteBuffer changeBinaryBodyReturnedBackFromRealServiceForRecording(ByteBuffer bodyFromService) {
+        return bodyFromService;
+    }
+
+    /**
+     * The binary counterpart of changeBodyForClientResponseAfterRecording(String).
+     *
+     * @param bodyAsRecorded the bytes as recorded - read-only
+     * @return the same buffer if unchanged, else a buffer of the changed bytes from position to limit
+     */
+    default ByteBuffer changeBinaryBodyForClientResponseAfterRecording(ByteBuffer bodyAsRecorded) {
+        return bodyAsRecorded;
+    }
+
+    /**
+     * The binary counterpart of changeBodyForRequestToRealService(String).
+     *
+     * @param body the bytes of the client's request - read-only
+     * @return the same buffer if unchanged, else a buffer of the changed bytes from position to limit
+     */
+    default ByteBuffer changeBinaryBodyForRequestToRealService(ByteBuffer body) {
+        return body;
+    }
+
     class NullObject implements InteractionManipulations {
 
     }
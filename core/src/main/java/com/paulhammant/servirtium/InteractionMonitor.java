@@ -32,7 +32,6 @@
 package com.paulhammant.servirtium;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 public interface InteractionMonitor {
@@ -45,6 +44,20 @@ public interface InteractionMonitor {
      */
     default void setScriptFilename(String filename) {}
 
+    /**
+     * @return the filename of the source (or destination) of the conversation, or null if not known
+     */
+    default String getScriptFilename() {
+        return null;
+    }
+
+    /**
+     * @return interactions that are complete but not yet written to the script
+     */
+    default int getPendingInteractionCount() {
+        return 0;
+    }
+
     ServiceResponse getServiceResponseForRequest(String method, String url,
                                                  Interaction interaction,
                                                  boolean lowerCaseHeaders) throws IOException;
@@ -59,8 +72,8 @@ public interface InteractionMonitor {
 
         final int interactionNum;
         public final String context;
-        List<String> clientRequestHeaders;
-        Object clientRequestBody;
+        HttpHeaders clientRequestHeaders;
+        HttpBody clientRequestBody;
         String clientRequestContentType;
 
         Interaction(int interactionNum, String context) {
@@ -70,43 +83,85 @@ public interface InteractionMonitor {
 
         public void complete() {}
 
+        /**
+         * @return the request body for the real service, as noted - or null if there was none
+         */
+        public HttpBody getClientRequestBody() {
+            return clientRequestBody;
+        }
+
 
         public abstract List<String> noteClientRequestHeadersAndBody(InteractionManipulations interactionManipulations,
                                                                      List<String> clientRequestHeaders,
-                                                                     Object clientRequestBody, String clientRequestContentType,
+                                                                     HttpBody clientRequestBody, String clientRequestContentType,
                                                                      String method, boolean lowerCaseHeaders);
 
-        protected void setClientRequestBodyAndContentType(Object clientRequestBody, String clientRequestContentType) {
+        /**
+         * @param clientRequestBody a String, byte[] (binary) or null (empty)
+         */
+        public final List<String> noteClientRequestHeadersAndBody(InteractionManipulations interactionManipulations,
+                                                                  List<String> clientRequestHeaders,
+                                                                  Object clientRequestBody, String clientRequestContentType,
+                                                                  String method, boolean lowerCaseHeaders) {
+            return noteClientRequestHeadersAndBody(interactionManipulations, clientRequestHeaders,
+                    HttpBody.of(clientRequestBody, clientRequestContentType), clientRequestContentType, method, lowerCaseHeaders);
+        }
+
+        protected void setClientRequestBodyAndContentType(HttpBody clientRequestBody, String clientRequestContentType) {
             this.clientRequestBody = clientRequestBody;
             this.clientRequestContentType = clientRequestContentType;
         }
 
-        protected List<String> changeRequestHeadersIfNeeded(InteractionManipulations interactionManipulations, List<String> clientRequestHeaders, String method, boolean lowerCaseHeaders) {
-            List<String> clientRequestHeaders2 = new ArrayList<>();
-            for (String s : clientRequestHeaders) {
-                String hdrName = s.split(": ")[0];
-                String hdrVal = s.split(": ")[1];
-                hdrVal = interactionManipulations.headerValueManipulation(hdrName, hdrVal);
-                final String fullHeader = (lowerCaseHeaders ? hdrName.toLowerCase() : hdrName) + ": " + hdrVal;
-                clientRequestHeaders2.add(fullHeader);
-                interactionManipulations.changeSingleHeaderForRequestToRealService(fullHeader, clientRequestHeaders2);
-            }
-            return clientRequestHeaders2;
+        protected HttpHeaders changeRequestHeadersIfNeeded(InteractionManipulations interactionManipulations, List<String> clientRequestHeaders, String method, boolean lowerCaseHeaders) {
+            HttpHeaders headers = clientRequestHeaders instanceof HttpHeaders
+                    ? (HttpHeaders) clientRequestHeaders : HttpHeaders.of(clientRequestHeaders);
+            return interactionManipulations.changeHeadersForRequestToRealService(headers, lowerCaseHeaders);
+        }
+
+        public void debugOriginalServiceResponseHeaders(HttpHeaders headers) {}
+
+        public final void debugOriginalServiceResponseHeaders(String... headers) {
+            debugOriginalServiceResponseHeaders(HttpHeaders.of(headers));
         }
 
-        public void debugOriginalServiceResponseHeaders(String... headers) {}
+        public void debugOriginalServiceResponseBody(HttpBody body, int statusCode, String contentType) {}
 
-        public void debugOriginalServiceResponseBody(Object body, int statusCode, String contentType) {}
+        public final void debugOriginalServiceResponseBody(Object body, int statusCode, String contentType) {
+            debugOriginalServiceResponseBody(HttpBody.of(body, contentType), statusCode, contentType);
+        }
 
-        public void debugClientsServiceResponseHeaders(String... headers) {}
+        public void debugClientsServiceResponseHeaders(HttpHeaders headers) {}
 
-        public void debugClientsServiceResponseBody(Object body, int statusCode, String contentType) {}
+        public final void debugClientsServiceResponseHeaders(String... headers) {
+            debugClientsServiceResponseHeaders(HttpHeaders.of(headers));
+        }
 
-        public void noteServiceResponseHeaders(String... headers) {}
+        public void debugClientsServiceResponseBody(HttpBody body, int statusCode, String contentType) {}
 
-        public void noteServiceResponseBody(Object body, int statusCode, String contentType) {}
+        public final void debugClientsServiceResponseBody(Object body, int statusCode, String contentType) {
+            debugClientsServiceResponseBody(HttpBody.of(body, contentType), statusCode, contentType);
+        }
+
+        public void noteServiceResponseHeaders(HttpHeaders headers) {}
+
+        public final void noteServiceResponseHeaders(String... headers) {
+            noteServiceResponseHeaders(HttpHeaders.of(headers));
+        }
+
+        public void noteServiceResponseBody(HttpBody body, int statusCode, String contentType) {}
+
+        public final void noteServiceResponseBody(Object body, int statusCode, String contentType) {
+            noteServiceResponseBody(HttpBody.of(body, contentType), statusCode, contentType);
+        }
 
         public void noteChangedResourceForRequestToClient(String from, String to) {}
+
+        /**
+         * @return how the server should pace sending this interaction's response back to the client
+         */
+        public ResponsePacing getResponsePacing() {
+            return ResponsePacing.IMMEDIATE;
+        }
     }
 
     public class NullObject implements InteractionMonitor {
@@ -0,0 +1,119 @@
+package com.paulhammant.servirtium;
+
+import java.util.Locale;
+
+/**
+ * Where a ServirtiumServer spent its time handling one interaction, stage by stage, and how many
+ * body bytes went each way. The server calls lap() as each stage ends, and the time since the
+ * previous lap (or since construction, for the first) is added to that stage - stages can come
+ * round more than once. Durations are in nanoseconds.
+ */
+public class InteractionTimings {
+
+    public enum Stage {
+        /** Reading the client's request body */
+        BODY_READ("body-read-ms"),
+        /** Headers, URL and body changes for the request to the real service */
+        REQUEST_MANIPULATION("request-manipulation-ms"),
+        /** The lookup in the recording when replaying, the call to the real service otherwise */
+        SERVICE("service-ms"),
+        /** Headers and body changes for the response, fault injection too */
+        RESPONSE_MANIPULATION("response-manipulation-ms"),
+        /** Pretty printing of JSON and XML bodies, both ways */
+        PRETTIFICATION("prettification-ms"),
+        /** Noting the interaction for the InteractionMonitor, and it finishing that */
+        RECORDING("recording-ms"),
+        /** Sending the status, headers and body to the client */
+        RESPONSE_WRITE("response-write-ms");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private final long[] nanos = new long[Stage.values().length];
+    private long lastLap;
+    private long requestBodyBytes;
+    private long responseBodyBytes;
+
+    public InteractionTimings() {
+        lastLap = System.nanoTime();
+    }
+
+    private InteractionTimings(InteractionTimings timings) {
+        System.arraycopy(timings.nanos, 0, nanos, 0, nanos.length);
+        lastLap = timings.lastLap;
+        requestBodyBytes = timings.requestBodyBytes;
+        responseBodyBytes = timings.responseBodyBytes;
+    }
+
+    /**
+     * @return the timings so far, which later laps won't change
+     */
+    public InteractionTimings copy() {
+        return new InteractionTimings(this);
+    }
+
+    /**
+     * The stage has just ended.
+     * @return this
+     */
+    public InteractionTimings lap(Stage stage) {
+        long now = System.nanoTime();
+        nanos[stage.ordinal()] += now - lastLap;
+        lastLap = now;
+        return this;
+    }
+
+    public void setRequestBodyBytes(long requestBodyBytes) {
+        this.requestBodyBytes = requestBodyBytes;
+    }
+
+    public void setResponseBodyBytes(long responseBodyBytes) {
+        this.responseBodyBytes = responseBodyBytes;
+    }
+
+    public long nanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    /**
+     * @return all the stages together
+     */
+    public long totalNanos() {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        return total;
+    }
+
+    public long getRequestBodyBytes() {
+        return requestBodyBytes;
+    }
+
+    public long getResponseBodyBytes() {
+        return responseBodyBytes;
+    }
+
+    /**
+     * @return one "stage-ms: n.nnn" line per stage, then the total and the byte counts, for debug output.
+     */
+    public String toLines() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            line(sb, stage.label, nanos(stage));
+        }
+        line(sb, "total-ms", totalNanos());
+        sb.append("request-body-bytes: ").append(requestBodyBytes).append("\n");
+        sb.append("response-body-bytes: ").append(responseBodyBytes).append("\n");
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, long nanos) {
+        sb.append(name).append(": ").append(String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0)).append("\n");
+    }
+
+}
@@ -1,6 +1,5 @@
 package com.paulhammant.servirtium;
 
-import com.github.underscore.lodash.U;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.hamcrest.Factory;
@@ -8,10 +7,15 @@ import org.hamcrest.Matcher;
 
 public class JsonAndXmlUtilities extends BaseMatcher<String> {
 
+    /**
+     * Prettified JSON for jsonEqualTo() matchers, which often see the same docs many times in a test run.
+     */
+    public static final PrettifiedBodyCache PRETTIFIED_JSON_FOR_MATCHERS = new PrettifiedBodyCache(4_000_000, JsonAndXmlUtilities::prettifyJson);
+
     private final String expectedValue;
 
     public JsonAndXmlUtilities(String equalArg) {
-        expectedValue = prettifyJson(equalArg);
+        expectedValue = PRETTIFIED_JSON_FOR_MATCHERS.prettify(equalArg);
     }
 
     @Override
@@ -20,7 +24,7 @@ public class JsonAndXmlUtilities extends BaseMatcher<String> {
             return expectedValue == null;
         }
 
-        String actual = prettifyJson((String) actualValue);
+        String actual = PRETTIFIED_JSON_FOR_MATCHERS.prettify((String) actualValue);
         final boolean equals = actual.equals(expectedValue);
         return equals;
     }
@@ -32,9 +36,9 @@ public class JsonAndXmlUtilities extends BaseMatcher<String> {
 
     public static String prettifyJson(String doc) {
         try {
-            return U.formatJson(doc);
-        } catch (Exception e2) {
-            throw new AssertionError("Underscore-Java didn't think that was JSON");
+            return JsonFormatter.prettify(doc);
+        } catch (IllegalArgumentException e) {
+            throw new AssertionError("JsonFormatter didn't think that was JSON", e);
         }
     }
 
@@ -45,19 +49,40 @@ public class JsonAndXmlUtilities extends BaseMatcher<String> {
         char firstNonBlankChar = doc.trim().charAt(0);
         if (firstNonBlankChar == '{' || firstNonBlankChar == '[') {
             try {
-                return U.formatJson(doc);
-            } catch (Exception e) {
+                return JsonFormatter.prettify(doc);
+            } catch (IllegalArgumentException e) {
             }
         }
         if (firstNonBlankChar == '<') {
             try {
-                return U.formatXml(doc);
-            } catch (Exception e) {
+                return XmlFormatter.prettify(doc);
+            } catch (IllegalArgumentException e) {
             }
         }
         return doc;
     }
 
+    /**
+     * @return the JSON or XML document in a canonical form (see JsonFormatter.canonicalize() and
+     * XmlFormatter.canonicalize()), or null if it is neither.
+     */
+    public static String canonicalizeDocOrNull(String doc) {
+        if (doc == null || "".equals(doc)) {
+            return null;
+        }
+        char firstNonBlankChar = doc.trim().charAt(0);
+        try {
+            if (firstNonBlankChar == '{' || firstNonBlankChar == '[') {
+                return JsonFormatter.canonicalize(doc);
+            }
+            if (firstNonBlankChar == '<') {
+                return XmlFormatter.canonicalize(doc);
+            }
+        } catch (IllegalArgumentException e) {
+        }
+        return null;
+    }
+
     @Factory
     public static Matcher<String> jsonEqualTo(String operand) {
         return new JsonAndXmlUtilities(operand);
@@ -0,0 +1,505 @@
+package com.paulhammant.servirtium;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Pretty-prints JSON in a single pass over the text, writing as it parses, without building a tree
+ * of Maps and Lists first. The output is the same as Underscore-Java's U.formatJson(): three space
+ * indents, numbers as Underscore parses them to Long, Double, BigInteger or BigDecimal and back,
+ * strings re-escaped the way it escapes them, and a later duplicate key's value replacing the
+ * earlier one in place.
+ * <p>
+ * There's also a canonical form for comparisons, with no whitespace and with each object's keys
+ * in order.
+ */
+public final class JsonFormatter {
+
+    private static final String INDENT = "   ";
+
+    private final CharSequence in;
+    private final int length;
+    private final boolean canonical;
+    private final StringBuilder out;
+    private final List<Members> membersByDepth = new ArrayList<>();
+    private int pos;
+
+    private JsonFormatter(CharSequence in, boolean canonical) {
+        this.in = in;
+        this.length = in.length();
+        this.canonical = canonical;
+        this.out = new StringBuilder(canonical ? length : length + (length >> 1));
+    }
+
+    /**
+     * @return the object or array, pretty printed as U.formatJson() would
+     * @throws IllegalArgumentException if it isn't a JSON object or array
+     */
+    public static String prettify(CharSequence json) {
+        return new JsonFormatter(json, false).format();
+    }
+
+    /**
+     * @return the object or array with no whitespace, keys in order within each object, and numbers
+     * and strings as prettify() has them - so that JSON documents that mean the same are equal.
+     * @throws IllegalArgumentException if it isn't a JSON object or array
+     */
+    public static String canonicalize(CharSequence json) {
+        return new JsonFormatter(json, true).format();
+    }
+
+    private String format() {
+        skipWhiteSpace();
+        char c = peek();
+        if (c != '{' && c != '[') {
+            throw notJson("object or array");
+        }
+        value(0);
+        skipWhiteSpace();
+        if (pos < length) {
+            throw notJson("end of input");
+        }
+        return out.toString();
+    }
+
+    private void value(int depth) {
+        switch (peek()) {
+            case '{':
+                object(depth);
+                break;
+            case '[':
+                array(depth);
+                break;
+            case '"':
+                pos++;
+                out.append('"');
+                string();
+                out.append('"');
+                break;
+            case 't':
+                literal("true");
+                break;
+            case 'f':
+                literal("false");
+                break;
+            case 'n':
+                literal("null");
+                break;
+            default:
+                number();
+        }
+    }
+
+    private void object(int depth) {
+        pos++;
+        out.append('{');
+        Members members = membersAt(depth);
+        members.clear();
+        skipWhiteSpace();
+        if (peek() != '}') {
+            do {
+                skipWhiteSpace();
+                if (peek() != '"') {
+                    throw notJson("name");
+                }
+                pos++;
+                int separatorStart = out.length();
+                if (members.count > 0) {
+                    out.append(',');
+                }
+                if (!canonical) {
+                    out.append('\n');
+                    indent(depth + 1);
+                }
+                int memberStart = out.length();
+                out.append('"');
+                int keyStart = out.length();
+                string();
+                String key = out.substring(keyStart);
+                out.append(canonical ? "\":" : "\": ");
+                skipWhiteSpace();
+                expect(':');
+                skipWhiteSpace();
+                int valueStart = out.length();
+                value(depth + 1);
+                members.add(key, separatorStart, memberStart, valueStart, out.length(), out);
+                skipWhiteSpace();
+            } while (read(','));
+        }
+        expect('}');
+        if (canonical) {
+            members.sort(out);
+        } else {
+            out.append('\n');
+            indent(depth);
+        }
+        out.append('}');
+    }
+
+    private void array(int depth) {
+        pos++;
+        out.append('[');
+        skipWhiteSpace();
+        if (peek() != ']') {
+            boolean first = true;
+            do {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                if (!canonical) {
+                    out.append('\n');
+                    indent(depth + 1);
+                }
+                skipWhiteSpace();
+                value(depth + 1);
+                skipWhiteSpace();
+            } while (read(','));
+        }
+        expect(']');
+        if (!canonical) {
+            out.append('\n');
+            indent(depth);
+        }
+        out.append(']');
+    }
+
+    // After the opening quote, through the closing one, re-escaped as Underscore does
+    private void string() {
+        int start = pos;
+        while (true) {
+            if (pos >= length) {
+                throw notJson("end of string");
+            }
+            char c = in.charAt(pos);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\' || needsEscaping(c)) {
+                out.append(in, start, pos);
+                escapedString();
+                return;
+            }
+            pos++;
+        }
+        out.append(in, start, pos++);
+    }
+
+    private void escapedString() {
+        while (true) {
+            if (pos >= length) {
+                throw notJson("end of string");
+            }
+            char c = in.charAt(pos++);
+            if (c == '"') {
+                return;
+            }
+            if (c < 0x20) {
+                throw notJson("valid string character");
+            }
+            if (c == '\\') {
+                if (pos >= length) {
+                    throw notJson("valid escape sequence");
+                }
+                char e = in.charAt(pos++);
+                switch (e) {
+                    case '"':
+                    case '/':
+                    case '\\':
+                        c = e;
+                        break;
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u':
+                        unicodeEscape();
+                        continue;
+                    default:
+                        throw notJson("valid escape sequence");
+                }
+            }
+            appendEscaped(c);
+        }
+    }
+
+    // Not four hex digits is kept as a backslash, a 'u' and the four chars, as Underscore does
+    private void unicodeEscape() {
+        if (pos + 4 > length) {
+            throw notJson("hexadecimal digit");
+        }
+        int cp = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(in.charAt(pos + i), 16);
+            if (digit == -1) {
+                appendEscaped('\\');
+                appendEscaped('u');
+                for (int j = 0; j < 4; j++) {
+                    appendEscaped(in.charAt(pos++));
+                }
+                return;
+            }
+            cp = (cp << 4) + digit;
+        }
+        pos += 4;
+        appendEscaped((char) cp);
+    }
+
+    private static boolean needsEscaping(char c) {
+        return c < 0x20 || (c >= 0x7f && c <= 0x9f) || (c >= 0x2000 && c <= 0x20ff && c != '\u20ac');
+    }
+
+    private void appendEscaped(char c) {
+        switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\b':
+                out.append("\\b");
+                break;
+            case '\f':
+                out.append("\\f");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (needsEscaping(c)) {
+                    String hex = Integer.toHexString(c).toUpperCase();
+                    out.append("\\u");
+                    for (int i = hex.length(); i < 4; i++) {
+                        out.append('0');
+                    }
+                    out.append(hex);
+                } else {
+                    out.append(c);
+                }
+        }
+    }
+
+    // Underscore reads numbers with a '.' or exponent as Double, or BigDecimal if over 9 chars, and
+    // others as Long, or BigInteger if over 19 chars. Then writes them with toString().
+    private void number() {
+        int start = pos;
+        read('-');
+        int firstDigit = pos;
+        if (!readDigit()) {
+            throw notJson("value");
+        }
+        if (in.charAt(firstDigit) != '0') {
+            while (readDigit()) {
+            }
+        }
+        boolean decimal = false;
+        if (read('.')) {
+            decimal = true;
+            if (!readDigit()) {
+                throw notJson("digit");
+            }
+            while (readDigit()) {
+            }
+        }
+        if (read('e') || read('E')) {
+            decimal = true;
+            if (!read('+')) {
+                read('-');
+            }
+            if (!readDigit()) {
+                throw notJson("digit");
+            }
+            while (readDigit()) {
+            }
+        }
+        int chars = pos - start;
+        if (!decimal && chars < 19 && !(chars == 2 && firstDigit > start && in.charAt(firstDigit) == '0')) {
+            out.append(in, start, pos);
+            return;
+        }
+        String number = in.subSequence(start, pos).toString();
+        try {
+            if (decimal) {
+                if (chars > 9) {
+                    out.append(new BigDecimal(number).toString());
+                } else {
+                    Double d = Double.valueOf(number);
+                    out.append(d.isInfinite() ? "null" : d.toString());
+                }
+            } else {
+                out.append(chars > 19 ? new BigInteger(number).toString() : Long.valueOf(number).toString());
+            }
+        } catch (NumberFormatException e) {
+            throw notJson("number in range");
+        }
+    }
+
+    private void literal(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (!read(literal.charAt(i))) {
+                throw notJson("value");
+            }
+        }
+        out.append(literal);
+    }
+
+    private void indent(int depth) {
+        for (int i = 0; i < depth; i++) {
+            out.append(INDENT);
+        }
+    }
+
+    private void skipWhiteSpace() {
+        while (pos < length) {
+            char c = in.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private char peek() {
+        if (pos >= length) {
+            throw notJson("value");
+        }
+        return in.charAt(pos);
+    }
+
+    private boolean read(char c) {
+        if (pos < length && in.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean readDigit() {
+        if (pos < length && in.charAt(pos) >= '0' && in.charAt(pos) <= '9') {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!read(c)) {
+            throw notJson("'" + c + "'");
+        }
+    }
+
+    private IllegalArgumentException notJson(String expected) {
+        return new IllegalArgumentException("Not JSON: expected " + expected + " at char " + pos);
+    }
+
+    private Members membersAt(int depth) {
+        while (membersByDepth.size() <= depth) {
+            membersByDepth.add(new Members());
+        }
+        return membersByDepth.get(depth);
+    }
+
+    /**
+     * Where each member of the object being written is in the output, for merging duplicate keys
+     * and, in canonical form, putting keys in order. One is kept per depth, and reused.
+     */
+    private static final class Members {
+
+        private final HashMap<String, Integer> indexOfKey = new HashMap<>();
+        private String[] keys = new String[8];
+        private int[] starts = new int[8];
+        private int[] valueStarts = new int[8];
+        private int[] ends = new int[8];
+        private int count;
+
+        void clear() {
+            if (count > 0) {
+                indexOfKey.clear();
+                count = 0;
+            }
+        }
+
+        /**
+         * Note the member just written - or if its key was already in the object, move its value to
+         * where the earlier member's value is, and remove it from the end.
+         */
+        void add(String key, int separatorStart, int start, int valueStart, int end, StringBuilder out) {
+            Integer existing = indexOfKey.putIfAbsent(key, count);
+            if (existing != null) {
+                String value = out.substring(valueStart, end);
+                out.setLength(separatorStart);
+                int ix = existing;
+                int delta = value.length() - (ends[ix] - valueStarts[ix]);
+                out.replace(valueStarts[ix], ends[ix], value);
+                ends[ix] += delta;
+                for (int i = ix + 1; i < count; i++) {
+                    starts[i] += delta;
+                    valueStarts[i] += delta;
+                    ends[i] += delta;
+                }
+                return;
+            }
+            if (count == keys.length) {
+                int capacity = count * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                valueStarts = Arrays.copyOf(valueStarts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            keys[count] = key;
+            starts[count] = start;
+            valueStarts[count] = valueStart;
+            ends[count] = end;
+            count++;
+        }
+
+        /**
+         * Rewrite the members, which are separated by single commas, in key order - if not already.
+         */
+        void sort(StringBuilder out) {
+            boolean sorted = true;
+            for (int i = 1; i < count && sorted; i++) {
+                sorted = keys[i - 1].compareTo(keys[i]) < 0;
+            }
+            if (sorted) {
+                return;
+            }
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> keys[a].compareTo(keys[b]));
+            StringBuilder members = new StringBuilder(ends[count - 1] - starts[0]);
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    members.append(',');
+                }
+                members.append(out, starts[order[i]], ends[order[i]]);
+            }
+            out.replace(starts[0], ends[count - 1], members.toString());
+        }
+    }
+
+}
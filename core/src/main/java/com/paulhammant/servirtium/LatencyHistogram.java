@@ -0,0 +1,101 @@
+package com.paulhammant.servirtium;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, thread-safe histogram of durations in nanoseconds. Buckets are log-linear - sixteen
+ * to each power of two - so any percentile is accurate to about 6%, whatever the range of values,
+ * and recording is a couple of atomic increments with no allocation.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketFor(Long.MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketFor(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public long getMeanNanos() {
+        long c = count.get();
+        return c == 0 ? 0 : total.get() / c;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the duration that percentile of recorded values are at or under, or 0 if none recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(c * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return count, mean, 50th, 90th, 99th percentiles and max, in milliseconds.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                getCount(), millis(getMeanNanos()), millis(getPercentileNanos(50)),
+                millis(getPercentileNanos(90)), millis(getPercentileNanos(99)), millis(getMaxNanos()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    static int bucketFor(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long top = bucket - shift * SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+}
@@ -31,27 +31,33 @@
 
 package com.paulhammant.servirtium;
 
+import com.paulhammant.servirtium.jfr.RecordingFlushEvent;
+import com.paulhammant.servirtium.jfr.UpstreamCallEvent;
+
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class MarkdownRecorder implements InteractionMonitor {
 
     private final ServiceInteroperation serviceInteroperation;
     private final InteractionManipulations interactionManipulations;
     private PrintStream out;
-    private Map<Integer, String> interactions = new HashMap<>();
+    private String filename;
+    private Map<Integer, String> interactions = new ConcurrentHashMap<>(); // counted from the admin thread too
     private Map<Integer, List<Note>> notes = new HashMap<>();
     private Map<String, String> replacements = new HashMap<>();
     private boolean alphaSortHeaders;
     private boolean extraDebugOutput;
+    private boolean upstreamTimingsInRecording;
 
     public static class Note  {
         String title;
@@ -79,12 +85,38 @@ public class MarkdownRecorder implements InteractionMonitor {
         return this;
     }
 
+    /**
+     * Record how long each interaction took the real service, in an additional section
+     * at the end of the interaction. MarkdownReplayer.withRecordedLatency() can reproduce
+     * that in playback. Timings vary run to run, so recordings made this way will always
+     * differ a little from the previous recording.
+     * @return this
+     */
+    public MarkdownRecorder withUpstreamTimingsInRecording() {
+        upstreamTimingsInRecording = true;
+        return this;
+    }
+
     public ServiceResponse getServiceResponseForRequest(String method, String url,
                                                         Interaction interaction, boolean lowerCaseHeaders) {
 
-        return serviceInteroperation.invokeServiceEndpoint(method, interaction.clientRequestBody,
+        UpstreamCallEvent event = new UpstreamCallEvent();
+        event.begin();
+        long start = System.nanoTime();
+        ServiceResponse serviceResponse = serviceInteroperation.invokeServiceEndpoint(method, interaction.clientRequestBody,
                 interaction.clientRequestContentType, url, ((RecordingInteraction) interaction).clientRequestHeaders,
                 interactionManipulations, lowerCaseHeaders);
+        event.end(interaction.interactionNum, interaction.context, method, url, serviceResponse.statusCode,
+                serviceResponse.body.byteLength());
+        UpstreamTimings timings = serviceResponse.upstreamTimings;
+        ((RecordingInteraction) interaction).measuredUpstreamTimings = timings;
+        if (upstreamTimingsInRecording) {
+            if (timings == null) {
+                timings = new UpstreamTimings(-1, System.nanoTime() - start);
+            }
+            ((RecordingInteraction) interaction).upstreamTimings = timings;
+        }
+        return serviceResponse;
     }
 
     /**
@@ -134,6 +166,8 @@ public class MarkdownRecorder implements InteractionMonitor {
     public class RecordingInteraction extends Interaction {
 
         private StringBuilder recording = new StringBuilder();
+        private UpstreamTimings upstreamTimings;
+        private UpstreamTimings measuredUpstreamTimings;
 
         RecordingInteraction(int interactionNumber, String context) {
             super(interactionNumber, context);
@@ -141,15 +175,30 @@ public class MarkdownRecorder implements InteractionMonitor {
 
         @Override
         public void complete() {
+            if (extraDebugOutput && measuredUpstreamTimings != null) {
+                blockStart("DEBUG: Upstream call timings, by phase");
+                this.recording.append(measuredUpstreamTimings.toLines());
+                blockEnd();
+            }
+            if (upstreamTimings != null) {
+                blockStart("Upstream timings recorded for playback");
+                if (upstreamTimings.timeToFirstByteNanos != -1) {
+                    this.recording.append("time-to-first-byte-ms: ")
+                            .append(TimeUnit.NANOSECONDS.toMillis(upstreamTimings.timeToFirstByteNanos)).append("\n");
+                }
+                this.recording.append("total-ms: ")
+                        .append(TimeUnit.NANOSECONDS.toMillis(upstreamTimings.totalNanos)).append("\n");
+                blockEnd();
+            }
             MarkdownRecorder.this.addInteraction(this);
         }
 
         public List<String> noteClientRequestHeadersAndBody(InteractionManipulations interactionManipulations,
-                                                            List<String> clientRequestHeaders, Object clientRequestBody,
+                                                            List<String> clientRequestHeaders, HttpBody clientRequestBody,
                                                             String clientRequestContentType, String method, boolean lowerCaseHeaders) {
 
             if (clientRequestBody == null) {
-                clientRequestBody = "";
+                clientRequestBody = HttpBody.EMPTY;
             }
 
             guardOut();
@@ -167,37 +216,37 @@ public class MarkdownRecorder implements InteractionMonitor {
 
             // Headers recorded for playback
 
-            List<String> clientRequestHeaders2 = changeRequestHeadersIfNeeded(interactionManipulations, clientRequestHeaders, method, lowerCaseHeaders);
+            HttpHeaders clientRequestHeaders2 = changeRequestHeadersIfNeeded(interactionManipulations, clientRequestHeaders, method, lowerCaseHeaders);
 
             interactionManipulations.changeAnyHeadersForRequestToRealService(clientRequestHeaders2);
 
-            final String[] headersToRecord = clientRequestHeaders2.toArray(new String[0]);
+            final HttpHeaders headersToRecord = alphaSortHeaders ? clientRequestHeaders2.sorted() : clientRequestHeaders2;
 
-            if (alphaSortHeaders) {
-                Arrays.sort(headersToRecord);
-            }
-            final List<String> headersToRecord2 = new ArrayList<>();
-            for (String h : headersToRecord) {
-                for (String replacementRegex : replacements.keySet()) {
-                    h = h.replaceAll(replacementRegex, replacements.get(replacementRegex));
-                }
-                if (lowerCaseHeaders) {
-                    h = h.toLowerCase();
-                    // Redo replacements for case change scenario
+            HttpHeaders headersToRecord2 = headersToRecord;
+            if (!replacements.isEmpty() || lowerCaseHeaders) {
+                headersToRecord2 = new HttpHeaders(headersToRecord.size());
+                for (String h : headersToRecord) {
                     for (String replacementRegex : replacements.keySet()) {
                         h = h.replaceAll(replacementRegex, replacements.get(replacementRegex));
                     }
-                    // Redo case change in case of replacement above
-                    h = h.toLowerCase();
+                    if (lowerCaseHeaders) {
+                        h = h.toLowerCase();
+                        // Redo replacements for case change scenario
+                        for (String replacementRegex : replacements.keySet()) {
+                            h = h.replaceAll(replacementRegex, replacements.get(replacementRegex));
+                        }
+                        // Redo case change in case of replacement above
+                        h = h.toLowerCase();
+                    }
+                    headersToRecord2.add(h);
                 }
-                headersToRecord2.add(h);
             }
 
             this.clientRequestHeaders = headersToRecord2;
 
             blockStart("Request headers recorded for playback");
-            for (String s : headersToRecord2) {
-                this.recording.append(s).append("\n");
+            for (int i = 0; i < headersToRecord2.size(); i++) {
+                this.recording.append(headersToRecord2.name(i)).append(": ").append(headersToRecord2.value(i)).append("\n");
             }
             blockEnd();
 
@@ -205,38 +254,35 @@ public class MarkdownRecorder implements InteractionMonitor {
 
             if (extraDebugOutput) {
                 blockStart("DEBUG: Request body as received from client (" + clientRequestContentType + "), WITHOUT REDACTIONS, ETC");
-                if (clientRequestBody instanceof String) {
-                    this.recording.append(clientRequestBody).append("\n");
+                if (clientRequestBody.isText()) {
+                    this.recording.append(clientRequestBody.text()).append("\n");
 
                 } else {
-                    this.recording.append(objectToStringForRecording((byte[]) clientRequestBody)).append("\n");
+                    this.recording.append(objectToStringForRecording(clientRequestBody.array())).append("\n");
                 }
                 blockEnd();
             }
 
-            if (clientRequestBody instanceof String) {
-                clientRequestBody = interactionManipulations.changeBodyForRequestToRealService((String) clientRequestBody);
-            }
+            clientRequestBody = StreamingInteractionManipulations.changeBodyForRequestToRealService(
+                    interactionManipulations, clientRequestBody);
 
             super.setClientRequestBodyAndContentType(clientRequestBody, clientRequestContentType);
 
             String forRecording = null;
-            if (clientRequestBody == null) {
-                forRecording = "";
-            } else if (clientRequestBody instanceof String) {
-                forRecording = (String) clientRequestBody;
+            if (clientRequestBody.isText()) {
+                forRecording = clientRequestBody.text();
                 for (String redactionRegex : replacements.keySet()) {
                     forRecording = forRecording.replaceAll(redactionRegex, replacements.get(redactionRegex));
                 }
             } else {
-                forRecording = objectToStringForRecording((byte[]) clientRequestBody);
+                forRecording = objectToStringForRecording(clientRequestBody.array());
             }
 
             blockStart("Request body recorded for playback (" + clientRequestContentType + ")");
             this.recording.append(forRecording).append("\n");
             blockEnd();
 
-            return Arrays.asList(headersToRecord);
+            return headersToRecord;
         }
 
         private String objectToStringForRecording(byte[] clientRequestBody) {
@@ -256,42 +302,42 @@ public class MarkdownRecorder implements InteractionMonitor {
         }
 
         @Override
-        public void debugOriginalServiceResponseHeaders(String[] headers) {
+        public void debugOriginalServiceResponseHeaders(HttpHeaders headers) {
             if (extraDebugOutput) {
                 doServiceResponseHeaders(headers, "DEBUG: Response headers from real service, unchanged");
             }
         }
 
         @Override
-        public void debugClientsServiceResponseHeaders(String[] headers) {
+        public void debugClientsServiceResponseHeaders(HttpHeaders headers) {
             if (extraDebugOutput) {
                 doServiceResponseHeaders(headers, "DEBUG: Response Headers for client, possibly changed after recording");
             }
         }
 
         @Override
-        public void debugOriginalServiceResponseBody(Object serviceResponseBody, int statusCode, String serviceResponseContentType) {
+        public void debugOriginalServiceResponseBody(HttpBody serviceResponseBody, int statusCode, String serviceResponseContentType) {
             if (extraDebugOutput) {
                 doServiceResponseBody(serviceResponseBody, statusCode, serviceResponseContentType, "DEBUG: Response body from real service, unchanged");
             }
         }
 
         @Override
-        public void debugClientsServiceResponseBody(Object serviceResponseBody, int statusCode, String serviceResponseContentType) {
+        public void debugClientsServiceResponseBody(HttpBody serviceResponseBody, int statusCode, String serviceResponseContentType) {
             if (extraDebugOutput) {
                 doServiceResponseBody(serviceResponseBody, statusCode, serviceResponseContentType, "DEBUG: Response body for client, possibly changed after recording");
             }
         }
 
         @Override
-        public void noteServiceResponseHeaders(String[] headers) {
+        public void noteServiceResponseHeaders(HttpHeaders headers) {
 
             doServiceResponseHeaders(headers, "Response headers recorded for playback");
 
         }
 
         @Override
-        public void noteServiceResponseBody(Object serviceResponseBody, int statusCode,
+        public void noteServiceResponseBody(HttpBody serviceResponseBody, int statusCode,
                                             String serviceResponseContentType) {
 
             doServiceResponseBody(serviceResponseBody, statusCode, serviceResponseContentType, "Response body recorded for playback");
@@ -307,24 +353,30 @@ public class MarkdownRecorder implements InteractionMonitor {
             }
         }
 
-        private void doServiceResponseHeaders(String[] headers, String title) {
+        private void doServiceResponseHeaders(HttpHeaders headers, String title) {
 
             guardOut();
 
             blockStart(title);
 
             if (alphaSortHeaders) {
-                Arrays.sort(headers);
+                headers = headers.sorted();
             }
 
-            for (String hdrLine : headers) {
-                int ix = hdrLine.indexOf(": ");
-                for (String next : replacements.keySet()) {
-                    hdrLine = hdrLine.replaceAll(next, replacements.get(next));
+            for (int i = 0; i < headers.size(); i++) {
+                String hdrKey = headers.name(i);
+                String hdrVal = headers.value(i);
+                if (!replacements.isEmpty()) {
+                    String hdrLine = headers.get(i);
+                    for (String next : replacements.keySet()) {
+                        hdrLine = hdrLine.replaceAll(next, replacements.get(next));
+                    }
+                    int ix = hdrLine.indexOf(": ");
+                    hdrKey = hdrLine.substring(0, ix);
+                    hdrVal = hdrLine.substring(ix + 2);
                 }
-                String hdrKey = hdrLine.substring(0, ix);
                 this.recording.append(hdrKey).append(": ")
-                        .append(interactionManipulations.headerValueManipulation(hdrKey, hdrLine.substring(ix + 2)))
+                        .append(interactionManipulations.headerValueManipulation(hdrKey, hdrVal))
                         .append("\n");
             }
 
@@ -332,26 +384,25 @@ public class MarkdownRecorder implements InteractionMonitor {
 
         }
 
-        private void doServiceResponseBody(Object serviceResponseBody, int statusCode, String serviceResponseContentType, String title) {
+        private void doServiceResponseBody(HttpBody serviceResponseBody, int statusCode, String serviceResponseContentType, String title) {
 
             guardOut();
 
             String xtra = "";
-            if (serviceResponseBody instanceof byte[]) {
+            if (!serviceResponseBody.isText()) {
                 xtra = " - Base64 below";
             }
 
             blockStart(title + " (" + statusCode + ": " + serviceResponseContentType + xtra + ")");
 
-            if (serviceResponseBody instanceof String) {
+            if (serviceResponseBody.isText()) {
+                String text = serviceResponseBody.text();
                 for (String next : replacements.keySet()) {
-                    serviceResponseBody = ((String) serviceResponseBody).replaceAll(next, replacements.get(next));
+                    text = text.replaceAll(next, replacements.get(next));
                 }
-                this.recording.append(serviceResponseBody).append("\n");
-            } else if (serviceResponseBody instanceof byte[]) {
-                this.recording.append(Base64.getEncoder().encodeToString((byte[]) serviceResponseBody)).append("\n");
+                this.recording.append(text).append("\n");
             } else {
-                throw new UnsupportedOperationException();
+                this.recording.append(Base64.getEncoder().encodeToString(serviceResponseBody.array())).append("\n");
             }
 
             blockEnd();
@@ -391,6 +442,10 @@ public class MarkdownRecorder implements InteractionMonitor {
 
     public void finishedScript(int interactionNum, boolean failed) {
         if (this.out != null) {
+            RecordingFlushEvent event = new RecordingFlushEvent();
+            event.begin();
+            int count = this.interactions.size();
+            long chars = 0;
             int i = 0;
             while (this.interactions.size() >0) {
 
@@ -410,6 +465,7 @@ public class MarkdownRecorder implements InteractionMonitor {
                 }
 
                 this.out.print(interaction);
+                chars += interaction.length();
             }
             if (failed) {
                 this.out.println("# Failure noted during recording.\n\nMeaning this recording may be shorter than intended. " +
@@ -417,6 +473,7 @@ public class MarkdownRecorder implements InteractionMonitor {
             }
             this.out.close();
             this.out = null;
+            event.end(filename, count, chars);
         }
     }
 
@@ -430,8 +487,22 @@ public class MarkdownRecorder implements InteractionMonitor {
 
     public void setOutputStream(String filename, OutputStream out) {
         if (out != null) {
+            if (this.out != null) {
+                this.out.close();
+            }
             this.out = new PrintStream(out);
+            this.filename = filename;
         }
     }
 
+    @Override
+    public String getScriptFilename() {
+        return filename;
+    }
+
+    @Override
+    public int getPendingInteractionCount() {
+        return interactions.size();
+    }
+
 }
@@ -30,6 +30,8 @@
 */
 package com.paulhammant.servirtium;
 
+import com.paulhammant.servirtium.jfr.ReplayLoadEvent;
+
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -38,6 +40,7 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.file.Files.readAllBytes;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -50,13 +53,20 @@ public class MarkdownReplayer implements InteractionMonitor {
 
     private final ReplayMonitor monitor;
 
-    private List<String> allMarkdownInteractions = new ArrayList<>();
+    private volatile List<String> allMarkdownInteractions = new ArrayList<>();
     private String filename;
     private boolean alphaSortHeaders = false;
     private Map<String, String> replacements = new HashMap<>();
+    private double latencyFactor;
+    private long bytesPerSecond;
+    private int chunkSize;
+    private Map<Integer, ResponsePacing> bandwidthLimitsForInteractions = new HashMap<>();
+    private boolean structuralMatchingOfRequestBodies;
+    private volatile List<String> canonicalRecordedRequestBodies = new ArrayList<>();
 
 
     public static final String SERVIRTIUM_INTERACTION = "## Interaction ";
+    private static final String BODY_SENT_TO_REAL_SERVER = "### Request body recorded for playback";
 
     public MarkdownReplayer() {
         this(new ReplayMonitor.Default());
@@ -71,17 +81,86 @@ public class MarkdownReplayer implements InteractionMonitor {
         return this;
     }
 
+    /**
+     * Where the recording has upstream timings (see MarkdownRecorder.withUpstreamTimingsInRecording()),
+     * delay responses to the client by those, multiplied by a factor. Headers are sent after the
+     * recorded time to first byte, and the body after the rest of the recorded total. Recordings
+     * without timings are played back without delay.
+     * @param factor 1 for as recorded, 0.5 for half that, 0 for no delay
+     * @return this
+     */
+    public MarkdownReplayer withRecordedLatency(double factor) {
+        latencyFactor = factor;
+        return this;
+    }
+
+    /**
+     * Send response bodies to the client no faster than a given rate, in chunks, to see how
+     * the client copes with a slow service. Waits between chunks do not hold a thread.
+     * @param bytesPerSecond the rate
+     * @param chunkSize bytes per write, or 0 to choose one to suit the rate
+     * @return this
+     */
+    public MarkdownReplayer withBandwidthLimit(long bytesPerSecond, int chunkSize) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * As withBandwidthLimit(), but for one interaction only, overriding any limit for all of them.
+     * @param interactionNum the interaction, from zero
+     * @param bytesPerSecond the rate, or 0 for no limit for this interaction
+     * @param chunkSize bytes per write, or 0 to choose one to suit the rate
+     * @return this
+     */
+    public MarkdownReplayer withBandwidthLimitForInteraction(int interactionNum, long bytesPerSecond, int chunkSize) {
+        bandwidthLimitsForInteractions.put(interactionNum, ResponsePacing.IMMEDIATE.withBandwidthLimit(bytesPerSecond, chunkSize));
+        return this;
+    }
+
+    /**
+     * Request bodies that are JSON or XML match the recording if they mean the same, even if
+     * keys or attributes are in a different order, or the whitespace is different. The recorded
+     * bodies are put in a canonical form when the recording is loaded, and each request body is
+     * put in that form in one pass, to compare. Other bodies still have to be exactly the same.
+     * @return this
+     */
+    public MarkdownReplayer withStructuralMatchingOfRequestBodies() {
+        structuralMatchingOfRequestBodies = true;
+        canonicalizeRecordedRequestBodies();
+        return this;
+    }
+
     public void setScriptFilename(String filename) {
+        ReplayLoadEvent event = new ReplayLoadEvent();
+        event.begin();
         try {
-            setPlaybackConversation(new String(readAllBytes(Paths.get(filename))));
+            String conversation = new String(readAllBytes(Paths.get(filename)));
+            splitIntoInteractions(conversation);
             this.filename = filename;
+            event.end(filename, allMarkdownInteractions.size(), conversation.length());
         } catch (IOException e) {
             throw new UnsupportedOperationException("Can't read contents of " + filename);
         }
     }
 
+    @Override
+    public String getScriptFilename() {
+        return filename;
+    }
+
     public void setPlaybackConversation(String conversation) {
+        ReplayLoadEvent event = new ReplayLoadEvent();
+        event.begin();
+        splitIntoInteractions(conversation);
+        event.end(filename, allMarkdownInteractions.size(), conversation.length());
+    }
+
+    private void splitIntoInteractions(String conversation) {
         this.filename = "no filename set";
+        // a new list, so a script switched to isn't added to the one before
+        List<String> allMarkdownInteractions = new ArrayList<>();
         int charPosn = -1;
         int ctr = 0;
         boolean again = true;
@@ -105,6 +184,30 @@ public class MarkdownReplayer implements InteractionMonitor {
         if (ctr == 0) {
             throw new UnsupportedOperationException("No '" + SERVIRTIUM_INTERACTION.trim() + "' found in conversation '" + conversation + "'. Wrong/empty script file?");
         }
+        this.allMarkdownInteractions = allMarkdownInteractions;
+        canonicalizeRecordedRequestBodies();
+    }
+
+    private void canonicalizeRecordedRequestBodies() {
+        // a new list, as request threads may be reading the one before
+        List<String> canonicalRecordedRequestBodies = new ArrayList<>();
+        if (!structuralMatchingOfRequestBodies) {
+            this.canonicalRecordedRequestBodies = canonicalRecordedRequestBodies;
+            return;
+        }
+        for (String interactionText : allMarkdownInteractions) {
+            String canonical = null;
+            int ix = interactionText.indexOf(BODY_SENT_TO_REAL_SERVER);
+            if (ix > -1) {
+                int startCodeBlock = interactionText.indexOf("\n```\n", ix);
+                int endCodeBlock = startCodeBlock == -1 ? -1 : interactionText.indexOf("\n```\n", startCodeBlock + 5);
+                if (endCodeBlock > -1) {
+                    canonical = JsonAndXmlUtilities.canonicalizeDocOrNull(interactionText.substring(startCodeBlock + 5, endCodeBlock));
+                }
+            }
+            canonicalRecordedRequestBodies.add(canonical);
+        }
+        this.canonicalRecordedRequestBodies = canonicalRecordedRequestBodies;
     }
 
     /**
@@ -167,6 +270,7 @@ public class MarkdownReplayer implements InteractionMonitor {
     public class ReplayingInteraction extends Interaction {
         private final String interactionText;
         int ix;
+        private ResponsePacing responsePacing = ResponsePacing.IMMEDIATE;
 
         ReplayingInteraction(String interactionText, int interactionNum, String context) {
             super(interactionNum, context);
@@ -174,10 +278,10 @@ public class MarkdownReplayer implements InteractionMonitor {
         }
 
         @Override
-        public List<String> noteClientRequestHeadersAndBody(InteractionManipulations interactionManipulations, List<String> clientRequestHeaders, Object clientRequestBody,
+        public List<String> noteClientRequestHeadersAndBody(InteractionManipulations interactionManipulations, List<String> clientRequestHeaders, HttpBody clientRequestBody,
                                                             String clientRequestContentType, String method, boolean lowerCaseHeaders) {
 
-            List<String> clientRequestHeaders2 = changeRequestHeadersIfNeeded(interactionManipulations, clientRequestHeaders, method, lowerCaseHeaders);
+            HttpHeaders clientRequestHeaders2 = changeRequestHeadersIfNeeded(interactionManipulations, clientRequestHeaders, method, lowerCaseHeaders);
 
             interactionManipulations.changeAnyHeadersForRequestToRealService(clientRequestHeaders2);
 
@@ -186,11 +290,10 @@ public class MarkdownReplayer implements InteractionMonitor {
             // Body
 
             if (clientRequestBody == null) {
-                clientRequestBody = "";
-            }
-            if (clientRequestBody instanceof String) {
-                clientRequestBody = interactionManipulations.changeBodyForRequestToRealService((String) clientRequestBody);
+                clientRequestBody = HttpBody.EMPTY;
             }
+            clientRequestBody = StreamingInteractionManipulations.changeBodyForRequestToRealService(
+                    interactionManipulations, clientRequestBody);
 
             super.setClientRequestBodyAndContentType(clientRequestBody, clientRequestContentType);
 
@@ -198,32 +301,32 @@ public class MarkdownReplayer implements InteractionMonitor {
         }
 
         @Override
-        public void debugOriginalServiceResponseHeaders(String[] headers) {
+        public void debugOriginalServiceResponseHeaders(HttpHeaders headers) {
             // Nothing to note, this is already the replay of a recording
         }
 
         @Override
-        public void debugClientsServiceResponseHeaders(String[] headers) {
+        public void debugClientsServiceResponseHeaders(HttpHeaders headers) {
             // Nothing to note, this is already the replay of a recording
         }
 
         @Override
-        public void debugOriginalServiceResponseBody(Object body, int statusCode, String contentType) {
+        public void debugOriginalServiceResponseBody(HttpBody body, int statusCode, String contentType) {
             // Nothing to note, this is already the replay of a recording
         }
 
         @Override
-        public void debugClientsServiceResponseBody(Object body, int statusCode, String contentType) {
+        public void debugClientsServiceResponseBody(HttpBody body, int statusCode, String contentType) {
             // Nothing to note, this is already the replay of a recording
         }
 
         @Override
-        public void noteServiceResponseHeaders(String[] headers) {
+        public void noteServiceResponseHeaders(HttpHeaders headers) {
             // Nothing to note, this is already the replay of a recording
         }
 
         @Override
-        public void noteServiceResponseBody(Object body, int statusCode, String contentType) {
+        public void noteServiceResponseBody(HttpBody body, int statusCode, String contentType) {
             // Nothing to note, this is already the replay of a recording
         }
 
@@ -232,6 +335,11 @@ public class MarkdownReplayer implements InteractionMonitor {
             // Nothing to note, this is already the replay of a recording
         }
 
+        @Override
+        public ResponsePacing getResponsePacing() {
+            return responsePacing;
+        }
+
     }
 
     @Override
@@ -276,7 +384,6 @@ public class MarkdownReplayer implements InteractionMonitor {
 
         String headersReceived = getCodeBlock(replay);
 
-        final String BODY_SENT_TO_REAL_SERVER = "### Request body recorded for playback";
         replay.ix = replay.interactionText.indexOf(BODY_SENT_TO_REAL_SERVER, replay.ix);
         guardAgainstMissingSection(replay, BODY_SENT_TO_REAL_SERVER);
         String serviceResponseContentType = getStringInParensAtIndex(replay.interactionText, replay.ix);
@@ -295,14 +402,16 @@ public class MarkdownReplayer implements InteractionMonitor {
         AssertionError error = null;
         try {
             try {
-                if (replay.clientRequestBody instanceof String) {
-                    String b = (String) replay.clientRequestBody;
+                if (replay.clientRequestBody.isText()) {
+                    String b = replay.clientRequestBody.text();
                     for (String redactionRegex : replacements.keySet()) {
                         b = b.replaceAll(redactionRegex, replacements.get(redactionRegex));
                     }
-                    assertThat(b, equalTo(bodyReceived));
+                    if (!structurallyTheSame(replay.interactionNum, b)) {
+                        assertThat(b, equalTo(bodyReceived));
+                    }
                 } else {
-                    assertThat(replay.clientRequestBody, equalTo(bodyReceived));
+                    assertThat(replay.clientRequestBody.array(), equalTo(bodyReceived));
                 }
 
             } catch (AssertionError e) {
@@ -358,7 +467,7 @@ public class MarkdownReplayer implements InteractionMonitor {
         final String RESULTING_HEADERS_BACK_FROM_REAL_SERVER = "### Response headers recorded for playback";
         replay.ix = replay.interactionText.indexOf(RESULTING_HEADERS_BACK_FROM_REAL_SERVER, replay.ix);
         guardAgainstMissingSection(replay, RESULTING_HEADERS_BACK_FROM_REAL_SERVER);
-        String[] serviceResponseHeaders = getCodeBlock(replay).split("\n");
+        HttpHeaders serviceResponseHeaders = HttpHeaders.of(getCodeBlock(replay).split("\n"));
         final String RESULTING_BODY_BACK_FROM_REAL_SERVER = "### Response body recorded for playback";
         replay.ix = replay.interactionText.indexOf(RESULTING_BODY_BACK_FROM_REAL_SERVER, replay.ix);
 
@@ -375,11 +484,49 @@ public class MarkdownReplayer implements InteractionMonitor {
         } else {
             serviceResponseBody = getCodeBlock(replay);
         }
+
+        final String UPSTREAM_TIMINGS = "### Upstream timings recorded for playback";
+        int timingsIx = replay.interactionText.indexOf(UPSTREAM_TIMINGS, replay.ix);
+        if (latencyFactor > 0 && timingsIx != -1) {
+            replay.ix = timingsIx;
+            replay.responsePacing = pacingForRecordedTimings(getCodeBlock(replay));
+        }
+
+        ResponsePacing bandwidthLimit = bandwidthLimitsForInteractions.get(replay.interactionNum);
+        if (bandwidthLimit != null) {
+            replay.responsePacing = replay.responsePacing.withBandwidthLimit(bandwidthLimit.bytesPerSecond, bandwidthLimit.chunkSize);
+        } else if (bytesPerSecond > 0) {
+            replay.responsePacing = replay.responsePacing.withBandwidthLimit(bytesPerSecond, chunkSize);
+        }
+
         return new ServiceResponse(serviceResponseBody, serviceResponseContentType, statusCode, serviceResponseHeaders);
 
 
     }
 
+    private ResponsePacing pacingForRecordedTimings(String timings) {
+        long timeToFirstByte = -1;
+        long total = 0;
+        for (String line : timings.split("\n")) {
+            int ix = line.indexOf(": ");
+            if (ix == -1) {
+                continue;
+            }
+            long millis = Long.parseLong(line.substring(ix + 2).trim());
+            if (line.startsWith("time-to-first-byte-ms")) {
+                timeToFirstByte = millis;
+            } else if (line.startsWith("total-ms")) {
+                total = millis;
+            }
+        }
+        if (timeToFirstByte == -1) {
+            timeToFirstByte = total;
+        }
+        return ResponsePacing.IMMEDIATE
+                .withHeadersDelay((long) (timeToFirstByte * latencyFactor * 1000), TimeUnit.MICROSECONDS)
+                .withBodyDelay((long) (Math.max(0, total - timeToFirstByte) * latencyFactor * 1000), TimeUnit.MICROSECONDS);
+    }
+
     private void guardAgainstMissingSection(ReplayingInteraction replay, String RESULTING_BODY_BACK_FROM_REAL_SERVER) {
         try {
             assertThat(replay.ix, not(equalTo(-1)));
@@ -389,6 +536,15 @@ public class MarkdownReplayer implements InteractionMonitor {
         }
     }
 
+    private boolean structurallyTheSame(int interactionNum, String body) {
+        List<String> canonicalRecordedRequestBodies = this.canonicalRecordedRequestBodies;
+        if (!structuralMatchingOfRequestBodies || interactionNum >= canonicalRecordedRequestBodies.size()) {
+            return false;
+        }
+        String recorded = canonicalRecordedRequestBodies.get(interactionNum);
+        return recorded != null && recorded.equals(JsonAndXmlUtilities.canonicalizeDocOrNull(body));
+    }
+
     private String getStringInParensAtIndex(String interactionText, int ix) {
         int lineEnd = interactionText.indexOf("\n", ix);
         String line = interactionText.substring(ix + 4, lineEnd);
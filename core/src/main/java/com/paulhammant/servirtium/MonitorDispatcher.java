@@ -0,0 +1,217 @@
+package com.paulhammant.servirtium;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs monitor events on threads of its own, so that printing and the like is not done on the
+ * threads serving requests. Events go into a bounded ring buffer that takes them without locks
+ * (a sequence number per slot, as in Dmitry Vyukov's bounded MPMC queue) and consumer threads
+ * take them out and run them. When the buffer is full, events are either dropped and counted, or
+ * the request thread waits for room - see WhenFull. Events are run in the order they were published
+ * when there's one consumer thread, which is the default. Consumer threads are daemons.
+ */
+public class MonitorDispatcher implements AutoCloseable {
+
+    public enum WhenFull {
+        /** Don't run the event, count it in getDropped() */
+        DROP,
+        /** Wait on the request thread for a consumer to make room */
+        BLOCK
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<Runnable> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final WhenFull whenFull;
+
+    private final Thread[] consumers;
+    private final AtomicInteger idleConsumers = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public MonitorDispatcher() {
+        this(8192, 1, WhenFull.DROP);
+    }
+
+    /**
+     * @param capacity events that can wait to be run, rounded up to a power of two
+     * @param consumerThreads threads running events - more than one and order is not kept
+     * @param whenFull what to do with an event when capacity are already waiting
+     */
+    public MonitorDispatcher(int capacity, int consumerThreads, WhenFull whenFull) {
+        if (capacity < 2 || consumerThreads < 1) {
+            throw new IllegalArgumentException("capacity must be 2 or more, consumerThreads 1 or more");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.whenFull = whenFull;
+        this.consumers = new Thread[consumerThreads];
+        for (int i = 0; i < consumerThreads; i++) {
+            consumers[i] = new Thread(this::consume, "servirtium-monitor-" + i);
+            consumers[i].setDaemon(true);
+            consumers[i].start();
+        }
+    }
+
+    /**
+     * @return false if the event was dropped, or the dispatcher is closed
+     */
+    public boolean publish(Runnable event) {
+        if (closed) {
+            dropped.increment();
+            return false;
+        }
+        while (!offer(event)) {
+            if (whenFull == WhenFull.DROP || closed) {
+                dropped.increment();
+                return false;
+            }
+            wakeConsumers();
+            LockSupport.parkNanos(this, 10_000);
+        }
+        published.incrementAndGet();
+        wakeConsumers();
+        return true;
+    }
+
+    private boolean offer(Runnable event) {
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) pos & mask;
+            long seq = sequences.get(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(slot, event);
+                    sequences.set(slot, pos + 1);
+                    return true;
+                }
+            } else if (seq < pos) {
+                return false;
+            }
+        }
+    }
+
+    private Runnable poll() {
+        while (true) {
+            long pos = head.get();
+            int slot = (int) pos & mask;
+            long seq = sequences.get(slot);
+            if (seq == pos + 1) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Runnable event = slots.get(slot);
+                    slots.lazySet(slot, null);
+                    sequences.set(slot, pos + mask + 1);
+                    return event;
+                }
+            } else if (seq < pos + 1) {
+                return null;
+            }
+        }
+    }
+
+    private void wakeConsumers() {
+        if (idleConsumers.get() > 0) {
+            for (Thread consumer : consumers) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    private void consume() {
+        while (true) {
+            Runnable event = poll();
+            if (event == null) {
+                if (closed) {
+                    return;
+                }
+                idleConsumers.incrementAndGet();
+                if (head.get() == tail.get()) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(50));
+                }
+                idleConsumers.decrementAndGet();
+                continue;
+            }
+            try {
+                event.run();
+            } catch (RuntimeException | AssertionError e) {
+                failed.increment();
+            } finally {
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wait for the events published so far to have been run.
+     * @return false if that took longer than the timeout
+     */
+    public boolean awaitDrained(long timeoutMillis) {
+        long target = published.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (completed.get() < target) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            wakeConsumers();
+            LockSupport.parkNanos(this, 100_000);
+        }
+        return true;
+    }
+
+    /**
+     * @return events not run because the buffer was full, or the dispatcher closed
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return events that threw when run
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return events waiting to be run
+     */
+    public long getPending() {
+        return published.get() - completed.get();
+    }
+
+    /**
+     * Run what's waiting, then stop the consumer threads. Events published after are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread consumer : consumers) {
+            LockSupport.unpark(consumer);
+        }
+        for (Thread consumer : consumers) {
+            try {
+                consumer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -31,12 +31,12 @@
 
 package com.paulhammant.servirtium;
 
-import java.util.Arrays;
+import java.io.File;
 import java.util.List;
 
 public class NonRecordingPassThrough implements InteractionMonitor {
 
-    private final ServiceInteroperation serviceInteroperation;
+    private ServiceInteroperation serviceInteroperation;
     private final InteractionManipulations interactionManipulations;
     private boolean alphaSortHeaders;
 
@@ -50,6 +50,40 @@ public class NonRecordingPassThrough implements InteractionMonitor {
         return this;
     }
 
+    /**
+     * Concurrent identical GETs from clients will share one call to the real service.
+     * @param monitor told each time a call is coalesced
+     * @return this
+     */
+    public NonRecordingPassThrough withCoalescingOfIdenticalGets(ServiceMonitor monitor) {
+        serviceInteroperation = new CoalescingServiceInterop(serviceInteroperation, monitor);
+        return this;
+    }
+
+    /**
+     * GETs are served from an in-memory HTTP cache where Cache-Control, Expires, ETag and
+     * Last-Modified allow, rather than going to the real service each time.
+     * @param maxMemoryBytes the most to hold in memory before evicting least recently used responses
+     * @return this
+     */
+    public NonRecordingPassThrough withHttpCaching(long maxMemoryBytes) {
+        serviceInteroperation = new CachingServiceInterop(serviceInteroperation, maxMemoryBytes);
+        return this;
+    }
+
+    /**
+     * As withHttpCaching(maxMemoryBytes), but responses evicted from memory overflow to files.
+     * @param maxMemoryBytes the most to hold in memory before evicting least recently used responses
+     * @param overflowDirectory where evicted responses are written
+     * @param maxDiskBytes the most to hold in overflowDirectory
+     * @return this
+     */
+    public NonRecordingPassThrough withHttpCaching(long maxMemoryBytes, File overflowDirectory, long maxDiskBytes) {
+        serviceInteroperation = new CachingServiceInterop(serviceInteroperation, maxMemoryBytes)
+                .withDiskOverflow(overflowDirectory, maxDiskBytes);
+        return this;
+    }
+
     public ServiceResponse getServiceResponseForRequest(String method, String url,
                                                         Interaction interaction, boolean lowerCaseHeaders) {
         return serviceInteroperation.invokeServiceEndpoint(method,
@@ -66,34 +100,29 @@ public class NonRecordingPassThrough implements InteractionMonitor {
         }
 
         public List<String> noteClientRequestHeadersAndBody(InteractionManipulations interactionManipulations,
-                                                            List<String> clientRequestHeaders, Object clientRequestBody,
+                                                            List<String> clientRequestHeaders, HttpBody clientRequestBody,
                                                             String clientRequestContentType, String method, boolean lowerCaseHeaders) {
 
             if (clientRequestBody == null) {
-                clientRequestBody = "";
+                clientRequestBody = HttpBody.EMPTY;
             }
 
             // Headers recorded for playback
 
-            List<String> clientRequestHeaders2 = changeRequestHeadersIfNeeded(interactionManipulations, clientRequestHeaders, method, lowerCaseHeaders);
+            HttpHeaders clientRequestHeaders2 = changeRequestHeadersIfNeeded(interactionManipulations, clientRequestHeaders, method, lowerCaseHeaders);
 
             interactionManipulations.changeAnyHeadersForRequestToRealService(clientRequestHeaders2);
 
             this.clientRequestHeaders = clientRequestHeaders2;
 
-            final String[] headersToRecord = clientRequestHeaders2.toArray(new String[0]);
+            final HttpHeaders headersToRecord = alphaSortHeaders ? clientRequestHeaders2.sorted() : clientRequestHeaders2;
 
-            if (alphaSortHeaders) {
-                Arrays.sort(headersToRecord);
-            }
-
-            if (clientRequestBody instanceof String) {
-                clientRequestBody = interactionManipulations.changeBodyForRequestToRealService((String) clientRequestBody);
-            }
+            clientRequestBody = StreamingInteractionManipulations.changeBodyForRequestToRealService(
+                    interactionManipulations, clientRequestBody);
 
             super.setClientRequestBodyAndContentType(clientRequestBody, clientRequestContentType);
 
-            return Arrays.asList(headersToRecord);
+            return headersToRecord;
         }
 
     }
@@ -0,0 +1,103 @@
+package com.paulhammant.servirtium;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a response to the client in steps, per a ResponsePacing: headers, then the body - in
+ * chunks if the bandwidth is limited. Waits between the steps are on a TimerWheel, so no thread
+ * is held while a paced response is waiting. Each ServirtiumServer implements the steps for its
+ * own HTTP server technology, which must by then be in an asynchronous mode, as the steps are
+ * performed on the TimerWheel's executor.
+ * <p>
+ * The writes themselves block, though: a step holds one of the executor's threads until the client
+ * has taken its bytes, or the write times out. ServirtiumServer bounds those threads (see
+ * withPacedResponseThreads(..)), so a client that stops reading holds one of them, and the steps of
+ * other paced responses queue if they are all held.
+ */
+public abstract class PacedResponse {
+
+    private final ResponsePacing pacing;
+    private final byte[] body;
+    private final TimerWheel timerWheel;
+    private int sent;
+    private long bodyStartNanos;
+
+    protected PacedResponse(ResponsePacing pacing, HttpBody body, TimerWheel timerWheel) {
+        this.pacing = pacing;
+        this.body = body.array();
+        this.timerWheel = timerWheel;
+    }
+
+    /**
+     * Send the status and headers, including a Content-Length, and flush them to the client.
+     */
+    protected abstract void sendStatusAndHeaders(int contentLength) throws Exception;
+
+    /**
+     * Send (and flush) some of the body.
+     */
+    protected abstract void sendBody(byte[] body, int offset, int length) throws Exception;
+
+    /**
+     * The whole response has been sent.
+     */
+    protected abstract void complete();
+
+    /**
+     * Drop the client's connection abruptly, as a fault injected per the ResponsePacing. The
+     * response is then over.
+     */
+    protected abstract void resetConnection();
+
+    /**
+     * Sending the response failed part way through.
+     */
+    protected abstract void failed(Throwable throwable);
+
+    public void start() {
+        timerWheel.schedule(this::headers, pacing.headersDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void headers() {
+        try {
+            if (pacing.resetBeforeHeaders) {
+                resetConnection();
+                return;
+            }
+            sendStatusAndHeaders(body.length);
+            timerWheel.schedule(this::body, pacing.bodyDelayNanos, TimeUnit.NANOSECONDS);
+        } catch (Throwable t) {
+            failed(t);
+        }
+    }
+
+    private void body() {
+        try {
+            int toSend = pacing.resetPartWayThroughBody < 0 ? body.length
+                    : (int) (body.length * Math.min(1, pacing.resetPartWayThroughBody));
+            if (sent == 0) {
+                bodyStartNanos = System.nanoTime();
+            }
+            int length = pacing.bytesPerSecond <= 0 ? toSend - sent
+                    : Math.min(pacing.effectiveChunkSize(), toSend - sent);
+            if (length > 0) {
+                sendBody(body, sent, length);
+                sent += length;
+            }
+            if (sent >= toSend) {
+                if (pacing.resetPartWayThroughBody >= 0) {
+                    resetConnection();
+                } else {
+                    complete();
+                }
+                return;
+            }
+            // Schedule against the start of the body rather than the last write, so the rate doesn't drift
+            long due = bodyStartNanos + (long) (sent * 1_000_000_000.0 / pacing.bytesPerSecond);
+            timerWheel.schedule(this::body, due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (Throwable t) {
+            failed(t);
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.paulhammant.servirtium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A ServiceMonitor that keeps latency histograms of the server's interaction timings, per stage
+ * and per method and path template, and writes a summary of them - counts, percentiles, max and
+ * body bytes - at each finishedScript(). The summary is for all interactions so far, so the last
+ * one written covers a whole test run. Paths are made into templates by replacing segments that
+ * look like ids (numbers, UUIDs, long hex) with {}. Everything else goes to another ServiceMonitor.
+ */
+public class PerformanceSummaryMonitor implements ServiceMonitor {
+
+    private final ServiceMonitor delegate;
+    private final Map<InteractionTimings.Stage, LatencyHistogram> byStage = new EnumMap<>(InteractionTimings.Stage.class);
+    private final LatencyHistogram overall = new LatencyHistogram();
+    private final ConcurrentHashMap<String, Endpoint> byEndpoint = new ConcurrentHashMap<>();
+    private final LongAdder finishedScriptCpuNanos = new LongAdder();
+    private final LongAdder finishedScriptAllocatedBytes = new LongAdder();
+    private File summaryFile;
+
+    public PerformanceSummaryMonitor() {
+        this(new ServiceMonitor.Default());
+    }
+
+    public PerformanceSummaryMonitor(ServiceMonitor delegate) {
+        this.delegate = delegate;
+        for (InteractionTimings.Stage stage : InteractionTimings.Stage.values()) {
+            byStage.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Write the summary to a file, replacing what was there, rather than to System.out
+     * @return this
+     */
+    public PerformanceSummaryMonitor withSummaryFile(File summaryFile) {
+        this.summaryFile = summaryFile;
+        return this;
+    }
+
+    @Override
+    public void interactionTimed(int interactionNum, String method, String url, InteractionTimings timings, String context) {
+        for (InteractionTimings.Stage stage : InteractionTimings.Stage.values()) {
+            byStage.get(stage).record(timings.nanos(stage));
+        }
+        long total = timings.totalNanos();
+        overall.record(total);
+        Endpoint endpoint = byEndpoint.computeIfAbsent(method + " " + pathTemplate(url), key -> new Endpoint());
+        endpoint.latency.record(total);
+        endpoint.requestBytes.add(timings.getRequestBodyBytes());
+        endpoint.responseBytes.add(timings.getResponseBodyBytes());
+        delegate.interactionTimed(interactionNum, method, url, timings, context);
+    }
+
+    @Override
+    public void interactionResourcesUsed(int interactionNum, String method, String url, ResourceUsage usage, String context) {
+        Endpoint endpoint = byEndpoint.computeIfAbsent(method + " " + pathTemplate(url), key -> new Endpoint());
+        endpoint.measured.increment();
+        endpoint.cpuNanos.add(usage.getCpuNanos());
+        endpoint.allocatedBytes.add(usage.getAllocatedBytes());
+        delegate.interactionResourcesUsed(interactionNum, method, url, usage, context);
+    }
+
+    @Override
+    public void finishedScriptResourcesUsed(ResourceUsage usage, String context) {
+        finishedScriptCpuNanos.add(usage.getCpuNanos());
+        finishedScriptAllocatedBytes.add(usage.getAllocatedBytes());
+        delegate.finishedScriptResourcesUsed(usage, context);
+    }
+
+    @Override
+    public void finishedScript(int interactionNum, boolean failed, String context) {
+        String summary = getSummary();
+        if (summaryFile == null) {
+            System.out.print(summary);
+        } else {
+            try {
+                Files.write(summaryFile.toPath(), summary.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UnsupportedOperationException("Can't write performance summary to " + summaryFile, e);
+            }
+        }
+        delegate.finishedScript(interactionNum, failed, context);
+    }
+
+    /**
+     * @return one line for all interactions, one per stage, then one per method and path template. With
+     * resource accounting (see ServirtiumServer.withResourceAccounting()) the path template lines have
+     * mean CPU time and allocation per interaction, and there's a line for finishedScript() too.
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("all: ").append(overall).append("\n");
+        for (Map.Entry<InteractionTimings.Stage, LatencyHistogram> entry : byStage.entrySet()) {
+            sb.append(entry.getKey().name().toLowerCase(Locale.ROOT).replace('_', '-'))
+                    .append(": ").append(entry.getValue()).append("\n");
+        }
+        List<String> endpoints = new ArrayList<>(byEndpoint.keySet());
+        endpoints.sort(null);
+        for (String key : endpoints) {
+            Endpoint endpoint = byEndpoint.get(key);
+            sb.append(key).append(": ").append(endpoint.latency)
+                    .append(" request-bytes=").append(endpoint.requestBytes.sum())
+                    .append(" response-bytes=").append(endpoint.responseBytes.sum());
+            long measured = endpoint.measured.sum();
+            if (measured > 0) {
+                resources(sb.append(" mean"), endpoint.cpuNanos.sum() / measured, endpoint.allocatedBytes.sum() / measured);
+            }
+            sb.append("\n");
+        }
+        if (finishedScriptCpuNanos.sum() > 0 || finishedScriptAllocatedBytes.sum() > 0) {
+            resources(sb.append("finished-script:"), finishedScriptCpuNanos.sum(), finishedScriptAllocatedBytes.sum()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder resources(StringBuilder sb, long cpuNanos, long allocatedBytes) {
+        return sb.append(" cpu-ms=").append(String.format(Locale.ROOT, "%.3f", cpuNanos / 1_000_000.0))
+                .append(" allocated-bytes=").append(allocatedBytes);
+    }
+
+    public LatencyHistogram getOverall() {
+        return overall;
+    }
+
+    public LatencyHistogram getStage(InteractionTimings.Stage stage) {
+        return byStage.get(stage);
+    }
+
+    static String pathTemplate(String url) {
+        int start = url.indexOf("://");
+        start = start == -1 ? 0 : url.indexOf('/', start + 3);
+        if (start == -1) {
+            return "/";
+        }
+        int end = url.indexOf('?', start);
+        String path = end == -1 ? url.substring(start) : url.substring(start, end);
+        StringBuilder sb = new StringBuilder(path.length());
+        for (String segment : path.split("/", -1)) {
+            if (sb.length() > 0 || !segment.isEmpty()) {
+                sb.append('/');
+            }
+            sb.append(looksLikeAnId(segment) ? "{}" : segment);
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    private static boolean looksLikeAnId(String segment) {
+        if (segment.isEmpty()) {
+            return false;
+        }
+        boolean digits = true;
+        boolean hexOrDashes = true;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            digits &= c >= '0' && c <= '9';
+            hexOrDashes &= (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == '-';
+        }
+        return digits || (hexOrDashes && segment.length() >= 16);
+    }
+
+    private static class Endpoint {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final LongAdder measured = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+    }
+
+    // the rest as the delegate would
+
+    @Override
+    public void interactionStarted(int interactionNum, InteractionMonitor.Interaction interaction) {
+        delegate.interactionStarted(interactionNum, interaction);
+    }
+
+    @Override
+    public void interactionFinished(int interactionNum, String method, String url, String context) {
+        delegate.interactionFinished(interactionNum, method, url, context);
+    }
+
+    @Override
+    public void interactionFailed(int interactionNum, String method, String url, AssertionError assertionError, String context) {
+        delegate.interactionFailed(interactionNum, method, url, assertionError, context);
+    }
+
+    @Override
+    public void unexpectedRequestError(Throwable throwable, String context) {
+        delegate.unexpectedRequestError(throwable, context);
+    }
+
+    @Override
+    public void upstreamCallCoalesced(String method, String url) {
+        delegate.upstreamCallCoalesced(method, url);
+    }
+
+    @Override
+    public void upstreamCallTimed(int interactionNum, String method, String url, UpstreamTimings timings, String context) {
+        delegate.upstreamCallTimed(interactionNum, method, url, timings, context);
+    }
+
+    @Override
+    public void faultInjected(int interactionNum, String method, String url, FaultInjection.Fault fault, String context) {
+        delegate.faultInjected(interactionNum, method, url, fault, context);
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.paulhammant.servirtium;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Remembers what a prettifier made of bodies, for when the same bodies come by again and again -
+ * polling clients, say. Bodies are looked up by a 64-bit hash of their chars and their length,
+ * and each entry keeps the body it was made from, so a hash collision is a miss, not a wrong
+ * answer. Entries are held up to a limit of chars (bodies and their prettified forms), least
+ * recently used first out.
+ */
+public class PrettifiedBodyCache {
+
+    private final long maxChars;
+    private final UnaryOperator<String> prettifier;
+
+    private final LinkedHashMap<Key, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long chars;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxChars the most chars to hold, of bodies and their prettified forms together
+     * @param prettifier JsonAndXmlUtilities::prettifyDocOrNot for example
+     */
+    public PrettifiedBodyCache(long maxChars, UnaryOperator<String> prettifier) {
+        this.maxChars = maxChars;
+        this.prettifier = prettifier;
+    }
+
+    public String prettify(String body) {
+        if (body == null || body.isEmpty()) {
+            return prettifier.apply(body);
+        }
+        Key key = new Key(body);
+        String prettified;
+        synchronized (this) {
+            prettified = entries.get(key);
+        }
+        if (prettified != null) {
+            hits.incrementAndGet();
+            return prettified;
+        }
+        misses.incrementAndGet();
+        prettified = prettifier.apply(body);
+        long size = (long) body.length() + prettified.length();
+        if (size <= maxChars) {
+            synchronized (this) {
+                String previous = entries.put(key, prettified);
+                if (previous == null) {
+                    chars += size;
+                }
+                Iterator<Map.Entry<Key, String>> lru = entries.entrySet().iterator();
+                while (chars > maxChars && lru.hasNext()) {
+                    Map.Entry<Key, String> eldest = lru.next();
+                    chars -= eldest.getKey().body.length() + eldest.getValue().length();
+                    lru.remove();
+                }
+            }
+        }
+        return prettified;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return hits as a fraction of lookups, or 0 before the first
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long lookups = hits + misses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public synchronized long getChars() {
+        return chars;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        chars = 0;
+    }
+
+    private static final class Key {
+        private final String body;
+        private final long hash;
+
+        private Key(String body) {
+            this.body = body;
+            // FNV-1a, over chars
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < body.length(); i++) {
+                h ^= body.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32)) ^ body.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && body.length() == other.body.length() && body.equals(other.body);
+        }
+    }
+}
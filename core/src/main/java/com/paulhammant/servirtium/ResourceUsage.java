@@ -0,0 +1,115 @@
+package com.paulhammant.servirtium;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * CPU time and heap bytes allocated by the threads doing a piece of work - an interaction, say -
+ * from the JVM's ThreadMXBean. Work done on a thread is measured from resume() to pause() on it,
+ * and can be resumed later on the same or another thread. CPU time is in nanoseconds. Where the JVM
+ * can't measure one or the other, it stays at 0.
+ */
+public class ResourceUsage {
+
+    /**
+     * For when measuring is off: resume() and pause() do nothing.
+     */
+    public static final ResourceUsage NOT_MEASURED = new ResourceUsage(false);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationsMXBean();
+
+    private final boolean measured;
+    private long cpuNanos;
+    private long allocatedBytes;
+    private long onThread = -1;
+    private long cpuAtResume;
+    private long allocatedAtResume;
+
+    private ResourceUsage(boolean measured) {
+        this.measured = measured;
+    }
+
+    /**
+     * @return a ResourceUsage measuring the current thread from now
+     */
+    public static ResourceUsage measuringThisThread() {
+        return new ResourceUsage(true).resume();
+    }
+
+    /**
+     * Turn on the JVM's per-thread CPU time and allocation measuring, if it can and they are off.
+     * @return whether both can be measured
+     */
+    public static boolean enableMeasuring() {
+        boolean cpu = THREADS.isThreadCpuTimeSupported();
+        if (cpu && !THREADS.isThreadCpuTimeEnabled()) {
+            THREADS.setThreadCpuTimeEnabled(true);
+        }
+        boolean allocations = ALLOCATIONS != null && ALLOCATIONS.isThreadAllocatedMemorySupported();
+        if (allocations && !ALLOCATIONS.isThreadAllocatedMemoryEnabled()) {
+            ALLOCATIONS.setThreadAllocatedMemoryEnabled(true);
+        }
+        return cpu && allocations;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationsMXBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+    }
+
+    /**
+     * Start measuring work on the current thread.
+     * @return this
+     */
+    public ResourceUsage resume() {
+        if (measured) {
+            onThread = Thread.currentThread().getId();
+            cpuAtResume = cpu();
+            allocatedAtResume = allocated(onThread);
+        }
+        return this;
+    }
+
+    /**
+     * Stop measuring, adding what the current thread did since resume(). Does nothing if it was
+     * resumed on another thread, or not resumed.
+     * @return this
+     */
+    public ResourceUsage pause() {
+        long thread = Thread.currentThread().getId();
+        if (measured && onThread == thread) {
+            cpuNanos += Math.max(0, cpu() - cpuAtResume);
+            allocatedBytes += Math.max(0, allocated(thread) - allocatedAtResume);
+            onThread = -1;
+        }
+        return this;
+    }
+
+    private static long cpu() {
+        return THREADS.isThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long allocated(long thread) {
+        return ALLOCATIONS != null && ALLOCATIONS.isThreadAllocatedMemoryEnabled()
+                ? Math.max(0, ALLOCATIONS.getThreadAllocatedBytes(thread)) : 0;
+    }
+
+    public boolean isMeasured() {
+        return measured;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "cpu-ms: " + String.format(Locale.ROOT, "%.3f", cpuNanos / 1_000_000.0) + ", allocated-bytes: " + allocatedBytes;
+    }
+}
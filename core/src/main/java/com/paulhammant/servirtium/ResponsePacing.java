@@ -0,0 +1,92 @@
+package com.paulhammant.servirtium;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a ServirtiumServer should pace the sending of a response back to the client, rather than
+ * sending it as soon as it is ready. See PacedResponse.
+ */
+public class ResponsePacing {
+
+    public static final ResponsePacing IMMEDIATE = new ResponsePacing(0, 0, 0, 0, false, -1);
+
+    /** Wait before sending the status line and headers */
+    public final long headersDelayNanos;
+    /** Wait after sending the headers, before sending the body */
+    public final long bodyDelayNanos;
+    /** Rate the body is sent at, or 0 for all in one go */
+    public final long bytesPerSecond;
+    /** Size of each write of the body when rate limited, or 0 to choose one to suit the rate */
+    public final int chunkSize;
+    /** Drop the connection instead of sending the headers */
+    public final boolean resetBeforeHeaders;
+    /** Drop the connection after sending this fraction of the body, or -1 to send it all */
+    public final double resetPartWayThroughBody;
+
+    private ResponsePacing(long headersDelayNanos, long bodyDelayNanos, long bytesPerSecond, int chunkSize,
+                           boolean resetBeforeHeaders, double resetPartWayThroughBody) {
+        this.headersDelayNanos = headersDelayNanos;
+        this.bodyDelayNanos = bodyDelayNanos;
+        this.bytesPerSecond = bytesPerSecond;
+        this.chunkSize = chunkSize;
+        this.resetBeforeHeaders = resetBeforeHeaders;
+        this.resetPartWayThroughBody = resetPartWayThroughBody;
+    }
+
+    public ResponsePacing withHeadersDelay(long delay, TimeUnit unit) {
+        return new ResponsePacing(unit.toNanos(delay), bodyDelayNanos, bytesPerSecond, chunkSize,
+                resetBeforeHeaders, resetPartWayThroughBody);
+    }
+
+    public ResponsePacing withBodyDelay(long delay, TimeUnit unit) {
+        return new ResponsePacing(headersDelayNanos, unit.toNanos(delay), bytesPerSecond, chunkSize,
+                resetBeforeHeaders, resetPartWayThroughBody);
+    }
+
+    /**
+     * Drip the body out at no more than a given rate.
+     * @param bytesPerSecond the rate, or 0 for no limit
+     * @param chunkSize bytes per write, or 0 to choose one to suit the rate
+     * @return a new ResponsePacing
+     */
+    public ResponsePacing withBandwidthLimit(long bytesPerSecond, int chunkSize) {
+        return new ResponsePacing(headersDelayNanos, bodyDelayNanos, bytesPerSecond, chunkSize,
+                resetBeforeHeaders, resetPartWayThroughBody);
+    }
+
+    /**
+     * Drop the connection, after any headers delay, without sending anything.
+     * @return a new ResponsePacing
+     */
+    public ResponsePacing withConnectionResetBeforeHeaders() {
+        return new ResponsePacing(headersDelayNanos, bodyDelayNanos, bytesPerSecond, chunkSize,
+                true, resetPartWayThroughBody);
+    }
+
+    /**
+     * Send the headers (saying how long the whole body is) but drop the connection part way through the body.
+     * @param fractionSent between 0 and 1, how much of the body to send first
+     * @return a new ResponsePacing
+     */
+    public ResponsePacing withConnectionResetPartWayThroughBody(double fractionSent) {
+        return new ResponsePacing(headersDelayNanos, bodyDelayNanos, bytesPerSecond, chunkSize,
+                resetBeforeHeaders, fractionSent);
+    }
+
+    /**
+     * @return the chunk size to write the body in, for a rate limited body. Unless one was
+     * specified, that is enough for a write every 20ms or so, between 1 byte and 16KB.
+     */
+    public int effectiveChunkSize() {
+        if (chunkSize > 0) {
+            return chunkSize;
+        }
+        return (int) Math.max(1, Math.min(16 * 1024, bytesPerSecond / 50));
+    }
+
+    public boolean isImmediate() {
+        return headersDelayNanos <= 0 && bodyDelayNanos <= 0 && bytesPerSecond <= 0
+                && !resetBeforeHeaders && resetPartWayThroughBody < 0;
+    }
+
+}
@@ -31,24 +31,33 @@
 
 package com.paulhammant.servirtium;
 
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
 import okhttp3.Headers;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
-import static com.paulhammant.servirtium.ServirtiumServer.isText;
 
 /**
- * Invoke remote HTTP services using Square's OkHttp library.
+ * Invoke remote HTTP services using Square's OkHttp library. Each call is timed phase by phase
+ * (DNS, connect, TLS, request write, time to first byte, body read) via an OkHttp EventListener,
+ * and the result attached to the ServiceResponse as UpstreamTimings. If there's a current
+ * Tracing.Span, the call is a CLIENT span within it and a traceparent is sent - see Tracing.
  */
 public class ServiceInteropViaOkHttp implements ServiceInteroperation {
 
@@ -92,12 +101,16 @@ public class ServiceInteropViaOkHttp implements ServiceInteroperation {
                 .readTimeout(readTimeout, TimeUnit.SECONDS)
                 .writeTimeout(writeTimeout, TimeUnit.SECONDS)
                 .connectTimeout(connectionTimeout, TimeUnit.SECONDS)
+                .eventListenerFactory(call -> {
+                    PhaseTimingListener listener = call.request().tag(PhaseTimingListener.class);
+                    return listener == null ? EventListener.NONE : listener;
+                })
                 .build();
     }
 
     @Override
     public ServiceResponse invokeServiceEndpoint(String method,
-                                                 Object clientRequestBody,
+                                                 HttpBody clientRequestBody,
                                                  String clientRequestContentType,
                                                  String url, List<String> clientRequestHeaders,
                                                  InteractionManipulations interactionManipulations,
@@ -111,22 +124,36 @@ public class ServiceInteropViaOkHttp implements ServiceInteroperation {
         if (!method.equals("GET")) {
             MediaType mediaType = MediaType.parse(clientRequestContentType);
             if (clientRequestBody != null) {
-                if (clientRequestBody instanceof String) {
-                    nonGetBody = RequestBody.create(mediaType, (String) clientRequestBody);
-                } else {
-                    nonGetBody = RequestBody.create(mediaType, (byte[]) clientRequestBody);
-                }
+                nonGetBody = RequestBody.create(mediaType, clientRequestBody.array());
             }
         }
 
+        Tracing.Span upstream = Tracing.currentSpan().startChild(method + " " + PerformanceSummaryMonitor.pathTemplate(url), "CLIENT")
+                .tag("http.method", method)
+                .tag("http.url", url);
+
         Response response = null;
         try {
             Request.Builder reqBuilder = null;
 
             Headers.Builder hb = new Headers.Builder();
 
-            for (String h : clientRequestHeaders) {
-                hb.add(h);
+            if (clientRequestHeaders instanceof HttpHeaders) {
+                HttpHeaders headers = (HttpHeaders) clientRequestHeaders;
+                for (int i = 0; i < headers.size(); i++) {
+                    hb.add(headers.name(i), headers.value(i));
+                }
+            } else {
+                for (String h : clientRequestHeaders) {
+                    hb.add(h);
+                }
+            }
+
+            if (upstream.isTraced()) {
+                hb.set(Tracing.TRACEPARENT, upstream.traceparent());
+                if (upstream.tracestate() != null) {
+                    hb.set(Tracing.TRACESTATE, upstream.tracestate());
+                }
             }
 
             final Headers headerForOkHttp = hb.build();
@@ -137,14 +164,18 @@ public class ServiceInteropViaOkHttp implements ServiceInteroperation {
                 reqBuilder = new Request.Builder().url(url).method(method, nonGetBody).headers(headerForOkHttp);
             }
 
+            PhaseTimingListener phases = new PhaseTimingListener();
+            reqBuilder.tag(PhaseTimingListener.class, phases);
+
+            long start = System.nanoTime();
             try {
                 response = okHttpClient.newCall(reqBuilder.build()).execute();
             } catch (SocketTimeoutException e) {
+                upstream.tag("error", "timeout").end();
                 throw new ServiceInteroperationFailed("OkHttp "  +  method + " to " + url + " timed out. See ServiceInteropViaOkHttp.withReadTimeout(), withWriteTimeout(), and withConnectionTimeout()", e);
             }
 
             ResponseBody body = response.body();
-            Object responseBody = null;
             String contentType = null;
             if (body.contentType() == null) {
                 contentType = "";
@@ -154,27 +185,130 @@ public class ServiceInteropViaOkHttp implements ServiceInteroperation {
                     contentType = "";
                 }
             }
-            if (isText(contentType)) {
-                responseBody = body.string();
-            } else {
-                responseBody = body.bytes();
-            }
+            HttpBody responseBody = HttpBody.fromWire(body.bytes(), contentType, StandardCharsets.UTF_8);
+            UpstreamTimings timings = phases.timings(start, System.nanoTime());
             String responseContentType = response.header("Content-Type");
             int statusCode = response.code();
-            String[] responseHeaders = response.headers().toString().split("\n");
-            ArrayList<String> responseHeaders2 = new ArrayList<>();
-            for (String hdrLine : responseHeaders) {
-                int ix = hdrLine.indexOf(": ");
-                String hdrName = hdrLine.substring(0, ix);
-                String hdrVal = hdrLine.substring(ix + 2);
-                String hdrKey = forceHeadersToLowerCase ? hdrName.toLowerCase() : hdrName; // HTTP 2.0 says lower-case header keys.
-                responseHeaders2.add(hdrKey + ": " + interactionManipulations.headerValueManipulation(hdrKey, hdrVal));
+            upstream.tag("http.status_code", statusCode).end();
+            Headers responseHeaders = response.headers();
+            HttpHeaders headers = new HttpHeaders(responseHeaders.size());
+            for (int i = 0; i < responseHeaders.size(); i++) {
+                String hdrName = responseHeaders.name(i);
+                String hdrKey = forceHeadersToLowerCase ? HttpHeaders.lowerCase(hdrName) : hdrName; // HTTP 2.0 says lower-case header keys.
+                headers.add(hdrKey, interactionManipulations.headerValueManipulation(hdrKey, responseHeaders.value(i)));
             }
-            final String[] headers = responseHeaders2.toArray(new String[responseHeaders.length]);
-            return new ServiceResponse(responseBody, responseContentType, statusCode, headers);
+            return new ServiceResponse(responseBody, responseContentType, statusCode, headers).withUpstreamTimings(timings);
 
         } catch (IOException e) {
+            upstream.tag("error", e.getMessage()).end();
             throw new ServiceInteroperationFailed("OkHttp " + method + " to " + url + " failed with an IOException", e);
+        } catch (ServiceInteroperationFailed e) {
+            throw e; // the span was tagged and ended where that was thrown
+        } catch (RuntimeException e) {
+            upstream.tag("error", e.toString()).end();
+            throw e;
+        }
+    }
+
+    /**
+     * Accumulates the time spent in each phase of one call. OkHttp raises these events on the
+     * calling thread for a synchronous execute(), and retries and redirects add to the totals.
+     */
+    private static class PhaseTimingListener extends EventListener {
+
+        private long dns;
+        private long connect;
+        private long tls;
+        private long requestWrite;
+        private long bodyRead;
+        private long mark;
+        private long connectStart;
+        private long responseHeadersEnd = -1;
+        private boolean secure;
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            mark = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            dns += System.nanoTime() - mark;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStart = System.nanoTime();
+            secure = false;
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            mark = System.nanoTime();
+            connect += mark - connectStart;
+            secure = true;
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            tls += System.nanoTime() - mark;
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            connectFinished();
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+            connectFinished();
+        }
+
+        private void connectFinished() {
+            if (!secure) {
+                connect += System.nanoTime() - connectStart;
+            }
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            mark = System.nanoTime();
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            requestWrite += System.nanoTime() - mark;
+        }
+
+        @Override
+        public void requestBodyStart(Call call) {
+            mark = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            requestWrite += System.nanoTime() - mark;
+        }
+
+        // responseHeadersStart() is raised before the blocking read, so the end is when the first bytes are in
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            responseHeadersEnd = System.nanoTime();
+        }
+
+        @Override
+        public void responseBodyStart(Call call) {
+            mark = System.nanoTime();
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            bodyRead += System.nanoTime() - mark;
+        }
+
+        private UpstreamTimings timings(long start, long end) {
+            long timeToFirstByte = responseHeadersEnd == -1 ? -1 : responseHeadersEnd - start;
+            return new UpstreamTimings(dns, connect, tls, requestWrite, timeToFirstByte, bodyRead, end - start);
         }
     }
 
@@ -21,7 +21,7 @@ public interface ServiceInteroperation {
      * @throws ServiceInteroperationFailed
      */
     ServiceResponse invokeServiceEndpoint(String method,
-                                          Object clientRequestBody,
+                                          HttpBody clientRequestBody,
                                           String clientRequestContentType,
                                           String url, List<String> clientRequestHeaders,
                                           InteractionManipulations interactionManipulations,
@@ -14,9 +14,154 @@ public interface ServiceMonitor {
 
     default void unexpectedRequestError(Throwable throwable, String context) {}
 
+    /**
+     * A request to the real service was not made, because an identical one was already in flight
+     * and its response was shared. See CoalescingServiceInterop.
+     */
+    default void upstreamCallCoalesced(String method, String url) {}
+
+    /**
+     * The real service was called for this interaction, and this is how long it took, phase by phase
+     * where the ServiceInteroperation measured them. Not called in playback.
+     */
+    default void upstreamCallTimed(int interactionNum, String method, String url, UpstreamTimings timings, String context) {}
+
+    /**
+     * Where the server spent its time on this interaction, stage by stage, with body byte counts.
+     * Called when the response has been sent to the client, so not for failed interactions.
+     */
+    default void interactionTimed(int interactionNum, String method, String url, InteractionTimings timings, String context) {}
+
+    /**
+     * The CPU time and heap allocation of the server's request thread for this interaction. Only called
+     * if the ServirtiumServer was made withResourceAccounting(), and like interactionTimed() not for
+     * failed interactions. Where the response is paced, the writes after the first aren't counted.
+     */
+    default void interactionResourcesUsed(int interactionNum, String method, String url, ResourceUsage usage, String context) {}
+
+    /**
+     * The CPU time and heap allocation of the InteractionMonitor's finishedScript() - writing the recording,
+     * for MarkdownRecorder. Only called if the ServirtiumServer was made withResourceAccounting().
+     */
+    default void finishedScriptResourcesUsed(ResourceUsage usage, String context) {}
+
+    /**
+     * A fault was injected into the response to the client. See FaultInjection.
+     */
+    default void faultInjected(int interactionNum, String method, String url, FaultInjection.Fault fault, String context) {}
+
+    /**
+     * The test has told the ServirtiumServer it's done with the script. See ServirtiumServer.finishedScript().
+     */
+    default void finishedScript(int interactionNum, boolean failed, String context) {}
+
     class Default implements ServiceMonitor {
     }
 
+    /**
+     * Passes events to another ServiceMonitor on a MonitorDispatcher's threads, so that a slow
+     * monitor - Console say - does not slow the requests it is monitoring. finishedScript() waits for
+     * the events before it to have been passed on, and is then passed on itself on the calling thread,
+     * so that summaries are complete and written by the time the ServirtiumServer is done with it.
+     * close() it when done, to stop the dispatcher's threads.
+     */
+    class Async implements ServiceMonitor, AutoCloseable {
+
+        private final ServiceMonitor delegate;
+        private final MonitorDispatcher dispatcher;
+        private long finishedScriptTimeoutMillis = 10_000;
+
+        public Async(ServiceMonitor delegate) {
+            this(delegate, new MonitorDispatcher());
+        }
+
+        public Async(ServiceMonitor delegate, MonitorDispatcher dispatcher) {
+            this.delegate = delegate;
+            this.dispatcher = dispatcher;
+        }
+
+        /**
+         * How long finishedScript() waits for the events before it
+         * @return this
+         */
+        public Async withFinishedScriptTimeout(long millis) {
+            this.finishedScriptTimeoutMillis = millis;
+            return this;
+        }
+
+        public MonitorDispatcher getDispatcher() {
+            return dispatcher;
+        }
+
+        /**
+         * The delegate is passed the Interaction itself, which the request thread is still filling in as
+         * the delegate runs. It should not read the Interaction's request or response.
+         */
+        @Override
+        public void interactionStarted(int interactionNum, InteractionMonitor.Interaction interaction) {
+            dispatcher.publish(() -> delegate.interactionStarted(interactionNum, interaction));
+        }
+
+        @Override
+        public void interactionFinished(int interactionNum, String method, String url, String context) {
+            dispatcher.publish(() -> delegate.interactionFinished(interactionNum, method, url, context));
+        }
+
+        @Override
+        public void interactionFailed(int interactionNum, String method, String url, AssertionError assertionError, String context) {
+            dispatcher.publish(() -> delegate.interactionFailed(interactionNum, method, url, assertionError, context));
+        }
+
+        @Override
+        public void unexpectedRequestError(Throwable throwable, String context) {
+            dispatcher.publish(() -> delegate.unexpectedRequestError(throwable, context));
+        }
+
+        @Override
+        public void upstreamCallCoalesced(String method, String url) {
+            dispatcher.publish(() -> delegate.upstreamCallCoalesced(method, url));
+        }
+
+        @Override
+        public void upstreamCallTimed(int interactionNum, String method, String url, UpstreamTimings timings, String context) {
+            dispatcher.publish(() -> delegate.upstreamCallTimed(interactionNum, method, url, timings, context));
+        }
+
+        @Override
+        public void interactionTimed(int interactionNum, String method, String url, InteractionTimings timings, String context) {
+            dispatcher.publish(() -> delegate.interactionTimed(interactionNum, method, url, timings, context));
+        }
+
+        @Override
+        public void interactionResourcesUsed(int interactionNum, String method, String url, ResourceUsage usage, String context) {
+            dispatcher.publish(() -> delegate.interactionResourcesUsed(interactionNum, method, url, usage, context));
+        }
+
+        @Override
+        public void finishedScriptResourcesUsed(ResourceUsage usage, String context) {
+            dispatcher.publish(() -> delegate.finishedScriptResourcesUsed(usage, context));
+        }
+
+        @Override
+        public void faultInjected(int interactionNum, String method, String url, FaultInjection.Fault fault, String context) {
+            dispatcher.publish(() -> delegate.faultInjected(interactionNum, method, url, fault, context));
+        }
+
+        @Override
+        public void finishedScript(int interactionNum, boolean failed, String context) {
+            dispatcher.awaitDrained(finishedScriptTimeoutMillis);
+            delegate.finishedScript(interactionNum, failed, context);
+        }
+
+        /**
+         * Pass on what's waiting, then stop the dispatcher's threads. See MonitorDispatcher.close().
+         */
+        @Override
+        public void close() {
+            dispatcher.close();
+        }
+    }
+
     class Console implements ServiceMonitor {
 
         @Override
@@ -37,6 +182,28 @@ public interface ServiceMonitor {
         }
 
 
+        @Override
+        public void upstreamCallTimed(int interactionNum, String method, String url, UpstreamTimings timings, String context) {
+            System.out.println(">> Servirtium >> (context: " + context + ") interaction " + interactionNum + " " + method + " " + url + " upstream timings: "
+                    + timings.toLines().trim().replace("\n", ", "));
+        }
+
+        @Override
+        public void interactionTimed(int interactionNum, String method, String url, InteractionTimings timings, String context) {
+            System.out.println(">> Servirtium >> (context: " + context + ") interaction " + interactionNum + " " + method + " " + url + " timings: "
+                    + timings.toLines().trim().replace("\n", ", "));
+        }
+
+        @Override
+        public void interactionResourcesUsed(int interactionNum, String method, String url, ResourceUsage usage, String context) {
+            System.out.println(">> Servirtium >> (context: " + context + ") interaction " + interactionNum + " " + method + " " + url + " resources used: " + usage);
+        }
+
+        @Override
+        public void faultInjected(int interactionNum, String method, String url, FaultInjection.Fault fault, String context) {
+            System.out.println(">> Servirtium >> (context: " + context + ") interaction " + interactionNum + " " + method + " " + url + " fault injected: " + fault);
+        }
+
         @Override
         public void interactionFailed(int interactionNum, String method, String url, AssertionError assertionError, String context) {
             printShevrons();
@@ -33,33 +33,71 @@ package com.paulhammant.servirtium;
 
 public class ServiceResponse {
 
-    public final String[] headers;
-    public final Object body;
+    public final HttpHeaders headers;
+    public final HttpBody body;
     public final String contentType;
     public final int statusCode;
+    public final UpstreamTimings upstreamTimings;
 
+    /**
+     * @param body an HttpBody, or a String, byte[] (binary) or null (empty)
+     */
     public ServiceResponse(Object body, String contentType, int statusCode, String... headers) {
+        this(body, contentType, statusCode, HttpHeaders.of(headers));
+    }
+
+    /**
+     * @param body an HttpBody, or a String, byte[] (binary) or null (empty)
+     */
+    public ServiceResponse(Object body, String contentType, int statusCode, HttpHeaders headers) {
+        this(HttpBody.of(body, contentType), contentType, statusCode, null, headers);
+    }
+
+    private ServiceResponse(HttpBody body, String contentType, int statusCode, UpstreamTimings upstreamTimings, HttpHeaders headers) {
         this.headers = headers;
         this.body = body;
         this.contentType = contentType;
         this.statusCode = statusCode;
+        this.upstreamTimings = upstreamTimings;
+    }
+
+    public ServiceResponse withRevisedHeaders(HttpHeaders headers) {
+        return new ServiceResponse(this.body, this.contentType, this.statusCode, this.upstreamTimings, headers);
     }
 
     public ServiceResponse withRevisedHeaders(String[] headers) {
-        return new ServiceResponse(this.body, this.contentType, this.statusCode, headers);
+        return withRevisedHeaders(HttpHeaders.of(headers));
     }
+
+    public ServiceResponse withUpstreamTimings(UpstreamTimings upstreamTimings) {
+        return new ServiceResponse(this.body, this.contentType, this.statusCode, upstreamTimings, this.headers);
+    }
+
+    /**
+     * @return a response with the text body, in the same charset, and with a Content-Length to match
+     * (if there was one) in copied headers.
+     */
     public ServiceResponse withRevisedBody(String body) {
-        for (int i = 0; i < headers.length; i++) {
-            String header = headers[i];
-            if (header.startsWith("Content-Length")) {
-                headers[i] = "Content-Length: " + body.length();
-                break;
-            }
-            if (header.startsWith("content-length")) {
-                headers[i] = "content-length: " + body.length();
-                break;
+        return withRevisedBody(this.body.withText(body));
+    }
+
+    /**
+     * @return a response with the body, and with a Content-Length to match (if there was one) in
+     * copied headers.
+     */
+    public ServiceResponse withRevisedBody(HttpBody revised) {
+        HttpHeaders headers = this.headers;
+        int ix = headers.indexOf("Content-Length", 0);
+        if (ix != -1) {
+            String contentLength = String.valueOf(revised.byteLength());
+            if (!contentLength.equals(headers.value(ix))) {
+                headers = headers.copy();
+                headers.setValue(ix, contentLength);
             }
         }
-        return new ServiceResponse(body, this.contentType, this.statusCode, this.headers);
+        if (revised == this.body && headers == this.headers) {
+            return this;
+        }
+        return new ServiceResponse(revised, this.contentType, this.statusCode, this.upstreamTimings, headers);
     }
 }
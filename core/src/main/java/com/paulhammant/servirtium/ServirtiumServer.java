@@ -1,17 +1,42 @@
 package com.paulhammant.servirtium;
 
+import com.paulhammant.servirtium.jfr.InteractionEvent;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class ServirtiumServer {
 
     protected final InteractionManipulations interactionManipulations;
     protected final InteractionMonitor interactionMonitor;
 
-    private String context = "no context";
+    // set by the AdminServer's thread too
+    private volatile String context = "no context";
     private boolean pretty;
-    private int interactionNum = -1;
+    private final AtomicInteger interactionNum = new AtomicInteger(-1);
     private boolean lowerCaseHeaders;
+    private TimerWheel timerWheel;
+    private ExecutorService pacedResponseSenders;
+    private int pacedResponseThreads = 16;
+    private FaultInjection faultInjection;
+    private final ServirtiumServerStats stats = new ServirtiumServerStats(this);
+    private ObjectName mBeanName;
+    private boolean resourceAccounting;
+    private Tracing tracing;
+    private InteractionJournal journal = new InteractionJournal(1000, false);
+    private int adminPort = -1;
+    private AdminServer adminServer;
+    private PrettifiedBodyCache prettifiedBodies = new PrettifiedBodyCache(4_000_000, JsonAndXmlUtilities::prettifyDocOrNot);
 
     public ServirtiumServer(InteractionManipulations interactionManipulations, InteractionMonitor interactionMonitor) {
 
@@ -33,6 +58,19 @@ public abstract class ServirtiumServer {
                 contentType.startsWith("application/xhtml+xml");
     }
 
+    /**
+     * @return all of the client's request body, as bytes for an HttpBody
+     */
+    protected static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(is.available(), 32));
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
     public void setContext(String context) {
         this.context = context;
     }
@@ -46,11 +84,266 @@ public abstract class ServirtiumServer {
         return this;
     }
 
+    /**
+     * Bound the threads that write paced responses (see PacedResponse). Each write of headers or a
+     * chunk of body blocks one of them until the client has taken it, so this many stalled clients
+     * delay every other paced response until their writes time out. Defaults to 16.
+     * @return this
+     */
+    public final ServirtiumServer withPacedResponseThreads(int threads) {
+        pacedResponseThreads = threads;
+        return this;
+    }
+
+    /**
+     * Bound the memory used to remember prettified bodies (see withPrettyPrintedTextBodies()).
+     * @param maxChars the most chars to hold, of bodies and their prettified forms together, or 0 to not remember any
+     */
+    public final ServirtiumServer withPrettifiedBodyCacheSize(long maxChars) {
+        prettifiedBodies = new PrettifiedBodyCache(maxChars, JsonAndXmlUtilities::prettifyDocOrNot);
+        return this;
+    }
+
+    /**
+     * @return the cache of prettified bodies, for its hit rate
+     */
+    public PrettifiedBodyCache getPrettifiedBodies() {
+        return prettifiedBodies;
+    }
+
+    /**
+     * @return the body prettified, if it is JSON or XML, remembering it in case the same body comes again
+     */
+    protected String prettifyDocOrNot(String body) {
+        return prettifiedBodies.prettify(body);
+    }
+
+    /**
+     * Register the server's live counters (see ServirtiumServerStatsMBean) with the platform MBean
+     * server, as com.paulhammant.servirtium:type=ServirtiumServer,name=the-name, until stop().
+     */
+    public final ServirtiumServer withMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.paulhammant.servirtium:type=ServirtiumServer,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objectName);
+            mBeanName = objectName;
+        } catch (JMException e) {
+            throw new UnsupportedOperationException("Can't register MBean for " + name, e);
+        }
+        return this;
+    }
+
+    public ServirtiumServerStats getStats() {
+        return stats;
+    }
+
+    protected void unregisterMBean() {
+        if (mBeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mBeanName);
+            } catch (JMException e) {
+                // already gone
+            }
+            mBeanName = null;
+        }
+    }
+
+    /**
+     * Measure the CPU time and heap allocation of each interaction, and of finishedScript(), for the
+     * ServiceMonitor - see ServiceMonitor.interactionResourcesUsed(). Turns on the JVM's per-thread
+     * measuring of those, where it can.
+     */
+    public final ServirtiumServer withResourceAccounting() {
+        ResourceUsage.enableMeasuring();
+        resourceAccounting = true;
+        return this;
+    }
+
+    /**
+     * @return a ResourceUsage measuring the current thread, if withResourceAccounting()
+     */
+    protected ResourceUsage newResourceUsage() {
+        return resourceAccounting ? ResourceUsage.measuringThisThread() : ResourceUsage.NOT_MEASURED;
+    }
+
+    protected void interactionResourcesUsed(ServiceMonitor monitor, int interactionNum, String method, String url,
+                                            ResourceUsage usage, String context) {
+        usage.pause();
+        if (usage.isMeasured()) {
+            monitor.interactionResourcesUsed(interactionNum, method, url, usage, context);
+        }
+    }
+
+    /**
+     * The InteractionMonitor's finishedScript(), with the ServiceMonitor told of the resources that used
+     * @param monitor the ServiceMonitor
+     * @param failed if any interaction failed
+     */
+    protected void interactionMonitorFinishedScript(ServiceMonitor monitor, boolean failed) {
+        ResourceUsage usage = newResourceUsage();
+        try {
+            interactionMonitor.finishedScript(getInteractionNum(), failed);
+        } finally {
+            if (tracing != null) {
+                tracing.writeSpans();
+            }
+            usage.pause();
+            if (usage.isMeasured()) {
+                monitor.finishedScriptResourcesUsed(usage, getContext());
+            }
+        }
+    }
+
+    /**
+     * Take part in W3C Trace Context traces: a span for each exchange with the client, continuing
+     * its trace, and one for each call to the real service, which is sent a traceparent. See Tracing.
+     */
+    public final ServirtiumServer withTracing(Tracing tracing) {
+        this.tracing = tracing;
+        return this;
+    }
+
+    /**
+     * @return a started span for the exchange with the client, or Tracing.NO_SPAN if not withTracing()
+     */
+    protected Tracing.Span startServerSpan(String traceparent, String tracestate, String method, String url) {
+        if (tracing == null) {
+            return Tracing.NO_SPAN;
+        }
+        return tracing.startServerSpan(traceparent, tracestate, method + " " + PerformanceSummaryMonitor.pathTemplate(url))
+                .tag("http.method", method)
+                .tag("http.url", url)
+                .tag("servirtium.context", context);
+    }
+
+    private void endServerSpan(Tracing.Span span, int interactionNum, int statusCode, boolean failed) {
+        span.tag("servirtium.interaction", interactionNum).tag("http.status_code", statusCode);
+        if (failed) {
+            span.tag("error", "true");
+        }
+        span.end();
+    }
+
+    /**
+     * Take the client's traceparent and tracestate out of its headers, if withTracing(), so they are
+     * not recorded or matched.
+     */
+    protected void removeTraceContext(HttpHeaders clientRequestHeaders) {
+        if (tracing != null) {
+            Tracing.removeTraceContext(clientRequestHeaders);
+        }
+    }
+
+    /**
+     * Keep a different number of the latest interactions in the journal than the 1000 it keeps by
+     * default, bodies too if asked for. See getJournal().
+     * @param capacity how many to keep, or 0 for none
+     */
+    public final ServirtiumServer withJournal(int capacity, boolean bodies) {
+        journal = new InteractionJournal(capacity, bodies);
+        return this;
+    }
+
+    /**
+     * @return the latest interactions, for tests to query what was called
+     */
+    public InteractionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * The end of an interaction, however it ended: adds it to the journal, ends the JFR event and the
+     * server span, and counts it in the stats - last, so that when getInFlight() is back to 0 the rest is
+     * done too. Called after the response is written, or when that failed. Only the first call for an
+     * exchange counts, so a failure after the interaction ended isn't counted again.
+     * @param ended the exchange's own flag, set by the first call
+     * @param requestBody the client's request body, or null
+     * @param responseBody the response body, or null if failed
+     */
+    protected void interactionEnded(AtomicBoolean ended, int interactionNum, String context, String method, String url,
+                                    int statusCode, InteractionTimings timings, InteractionEvent event, Tracing.Span span,
+                                    HttpBody requestBody, HttpBody responseBody, boolean failed) {
+        if (!ended.compareAndSet(false, true)) {
+            return;
+        }
+        long responseBytes = failed ? 0 : timings.getResponseBodyBytes();
+        journal.add(interactionNum, context, method, url, statusCode, timings, requestBody, responseBody, failed);
+        event.end(interactionNum, context, method, url, statusCode, timings.getRequestBodyBytes(), responseBytes, failed);
+        endServerSpan(span, interactionNum, statusCode, failed);
+        getStats().requestEnded(failed, timings.getRequestBodyBytes(), responseBytes);
+    }
+
+    /**
+     * Listen for metrics, health checks and control requests on another port, from start() to stop().
+     * See AdminServer.
+     * @param port the port, or 0 for any free one - see getAdminServer().getPort()
+     */
+    public final ServirtiumServer withAdminPort(int port) {
+        adminPort = port;
+        return this;
+    }
+
+    /**
+     * @return the admin listener, or null if not withAdminPort() or not started
+     */
+    public AdminServer getAdminServer() {
+        return adminServer;
+    }
+
+    protected void startAdminServer() {
+        if (adminPort >= 0 && adminServer == null) {
+            adminServer = new AdminServer(this, adminPort).start();
+        }
+    }
+
+    protected void stopAdminServer() {
+        if (adminServer != null) {
+            adminServer.stop();
+            adminServer = null;
+        }
+    }
+
+    /**
+     * Go on to another script, with the interaction number back at the start. The InteractionMonitor
+     * is given its filename - to record to, or to replay. finishedScript() the one before first.
+     * @throws IllegalStateException if interactions are being served now, or the InteractionMonitor has
+     * interactions not yet written to the script
+     */
+    public void switchScript(String filename) {
+        long inFlight = getStats().getInFlight();
+        if (inFlight > 0) {
+            throw new IllegalStateException(inFlight + " interaction(s) being served now. Let them finish first");
+        }
+        int pending = interactionMonitor.getPendingInteractionCount();
+        if (pending > 0) {
+            throw new IllegalStateException(pending + " interaction(s) not yet written to "
+                    + interactionMonitor.getScriptFilename() + ". finishedScript() first");
+        }
+        interactionMonitor.setScriptFilename(filename);
+        resetInteractionNumber();
+    }
+
     public final ServirtiumServer withLowerCaseHeaders() {
         lowerCaseHeaders = true;
         return this;
     }
 
+    /**
+     * Inject faults - resets, truncations, stalls, error statuses, slow bodies - into the responses
+     * sent back to the client.
+     */
+    public final ServirtiumServer withFaultInjection(FaultInjection faultInjection) {
+        this.faultInjection = faultInjection;
+        return this;
+    }
+
+    /**
+     * @return the fault to inject into the current interaction's response, or null for none
+     */
+    protected FaultInjection.Fault faultForInteraction() {
+        return faultInjection == null ? null : faultInjection.faultFor(interactionNum.get());
+    }
+
     protected boolean useLowerCaseHeaders() {
         return lowerCaseHeaders;
     }
@@ -60,15 +353,39 @@ public abstract class ServirtiumServer {
     }
 
     protected void bumpInteractionNum() {
-        interactionNum++;
+        interactionNum.incrementAndGet();
     }
 
     protected int getInteractionNum() {
-        return interactionNum;
+        return interactionNum.get();
     }
 
     protected void resetInteractionNumber() {
-        interactionNum = -1;
+        interactionNum.set(-1);
+    }
+
+    /**
+     * @return the TimerWheel for PacedResponses, started on first use. Its steps run on a pool of
+     * withPacedResponseThreads(..) threads, queueing when all are busy writing.
+     */
+    protected synchronized TimerWheel timerWheel() {
+        if (timerWheel == null) {
+            pacedResponseSenders = Executors.newFixedThreadPool(pacedResponseThreads, runnable -> {
+                Thread thread = new Thread(runnable, "servirtium-paced-response");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timerWheel = new TimerWheel(pacedResponseSenders);
+        }
+        return timerWheel;
+    }
+
+    protected synchronized void stopTimerWheel() {
+        if (timerWheel != null) {
+            timerWheel.stop();
+            pacedResponseSenders.shutdown();
+            timerWheel = null;
+        }
     }
 
 //    protected ArrayList<String> changeContentLength(List<String> newHeaders, String body) {
@@ -111,12 +428,15 @@ public abstract class ServirtiumServer {
 
         @Override
         public ServirtiumServer start() {
+            startAdminServer();
             return this;
         }
 
 
         @Override
         public void stop() {
+            unregisterMBean();
+            stopAdminServer();
         }
 
         @Override
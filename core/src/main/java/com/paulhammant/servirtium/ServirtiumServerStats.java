@@ -0,0 +1,86 @@
+package com.paulhammant.servirtium;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters for a ServirtiumServer, which it updates as requests start and end. Body bytes in
+ * and out are as read from and written to the client.
+ */
+public class ServirtiumServerStats implements ServirtiumServerStatsMBean {
+
+    private final ServirtiumServer server;
+    private final LongAdder interactionsServed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    public ServirtiumServerStats(ServirtiumServer server) {
+        this.server = server;
+    }
+
+    public void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    public void requestEnded(boolean failed, long requestBodyBytes, long responseBodyBytes) {
+        inFlight.decrementAndGet();
+        if (failed) {
+            failures.increment();
+        } else {
+            interactionsServed.increment();
+        }
+        bytesIn.add(requestBodyBytes);
+        bytesOut.add(responseBodyBytes);
+    }
+
+    @Override
+    public long getInteractionsServed() {
+        return interactionsServed.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public int getPendingRecorderInteractions() {
+        return server.interactionMonitor.getPendingInteractionCount();
+    }
+
+    @Override
+    public String getContext() {
+        return server.getContext();
+    }
+
+    @Override
+    public String getScriptFilename() {
+        return server.interactionMonitor.getScriptFilename();
+    }
+
+    @Override
+    public void resetCounters() {
+        interactionsServed.reset();
+        failures.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+    }
+
+}
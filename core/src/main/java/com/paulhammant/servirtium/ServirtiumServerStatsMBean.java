@@ -0,0 +1,29 @@
+package com.paulhammant.servirtium;
+
+/**
+ * What a ServirtiumServer shows over JMX. See ServirtiumServer.withMBean().
+ */
+public interface ServirtiumServerStatsMBean {
+
+    long getInteractionsServed();
+
+    long getFailures();
+
+    long getInFlight();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    int getPendingRecorderInteractions();
+
+    String getContext();
+
+    String getScriptFilename();
+
+    /**
+     * Zero the interactions served, failures and byte counts. In-flight requests are still counted.
+     */
+    void resetCounters();
+
+}
@@ -1,15 +1,19 @@
 package com.paulhammant.servirtium;
 
-import java.util.List;
-
+/**
+ * URL and Host header rewrites from one host to another, and header removals and other rules, for
+ * each direction. The rules are applied in one pass over the headers. The per-header
+ * InteractionManipulations methods can still be overridden for changes the rules can't express,
+ * and are called after the rules.
+ */
 public class SimpleInteractionManipulations implements InteractionManipulations {
 
     protected final String fromUrl;
     protected final String toUrl;
     protected final String fromHost;
     protected final String toHost;
-    private String[] headerPrefixesToRemoveFromRequest = new String[0];
-    private String[] headerPrefixesToRemoveFromResponse = new String[0];
+    private final HeaderRules clientRequestHeaderRules = new HeaderRules();
+    private final HeaderRules serviceResponseHeaderRules = new HeaderRules();
 
     public SimpleInteractionManipulations() {
         this("xx8suf98su98sf98sjxjcvlkxjcv" , "s89s8798s7df98sdf98sdf98sdf9");
@@ -19,15 +23,30 @@ public class SimpleInteractionManipulations implements InteractionManipulations
         this.toUrl = toUrl;
         this.fromHost = fromUrl.replaceAll("https://","").replaceAll("http://","");
         this.toHost = toUrl.replaceAll("https://","").replaceAll("http://","");
+        clientRequestHeaderRules.replaceInValue("Host", fromHost, toHost);
     }
 
     public SimpleInteractionManipulations withHeaderPrefixesToRemoveFromServiceResponse(String... headerPrefixesToRemove) {
-        this.headerPrefixesToRemoveFromResponse = headerPrefixesToRemove;
+        for (String prefix : headerPrefixesToRemove) {
+            serviceResponseHeaderRules.removeWithPrefix(prefix);
+        }
         return this;
     }
 
     public SimpleInteractionManipulations withHeaderPrefixesToRemoveFromClientRequest(String... headerPrefixesToRemove) {
-        this.headerPrefixesToRemoveFromRequest = headerPrefixesToRemove;
+        for (String prefix : headerPrefixesToRemove) {
+            clientRequestHeaderRules.removeWithPrefix(prefix);
+        }
+        return this;
+    }
+
+    public SimpleInteractionManipulations withClientRequestHeaderRules(HeaderRules rules) {
+        clientRequestHeaderRules.addAll(rules);
+        return this;
+    }
+
+    public SimpleInteractionManipulations withServiceResponseHeaderRules(HeaderRules rules) {
+        serviceResponseHeaderRules.addAll(rules);
         return this;
     }
 
@@ -36,42 +55,45 @@ public class SimpleInteractionManipulations implements InteractionManipulations
         return url.replace(fromUrl, toUrl);
     }
 
+    /**
+     * In one pass: headerValueManipulation(), then the client request header rules, then
+     * changeSingleHeaderForRequestToRealService() for each header that's left.
+     */
     @Override
-    public void changeSingleHeaderForRequestToRealService(String currentHeader, List<String> clientRequestHeaders) {
-        String currentHeaderKey = null;
-        String currentHeaderVal = null;
-        currentHeaderKey = currentHeader.substring(0, currentHeader.indexOf(": "));
-        currentHeaderVal = currentHeader.substring(currentHeader.indexOf(": ") +2);
-
-        for (String pfx : headerPrefixesToRemoveFromRequest) {
-            if (currentHeader.startsWith(pfx)) {
-                clientRequestHeaders.remove(currentHeader);
-            }
-        }
-
-        if (currentHeader.startsWith("Host: ") || currentHeader.startsWith("host: ")) {
-            for (int i = 0; i < clientRequestHeaders.size(); i++) {
-                String h = clientRequestHeaders.get(i);
-                if (h.startsWith("Host: ") || h.startsWith("host: ")) {
-                    clientRequestHeaders.remove(h);
-                    final String replace = h.replace(fromHost, toHost);
-                    clientRequestHeaders.add(i, replace);
-                    break;
-                }
+    public HttpHeaders changeHeadersForRequestToRealService(HttpHeaders clientRequestHeaders, boolean lowerCaseHeaders) {
+        HttpHeaders changed = new HttpHeaders(clientRequestHeaders.size());
+        for (int i = 0; i < clientRequestHeaders.size(); i++) {
+            String hdrName = lowerCaseHeaders ? clientRequestHeaders.lowerCaseName(i) : clientRequestHeaders.name(i);
+            String hdrVal = headerValueManipulation(clientRequestHeaders.name(i), clientRequestHeaders.value(i));
+            if (clientRequestHeaderRules.addTo(changed, hdrName, hdrVal)) {
+                changeSingleHeaderForRequestToRealService(changed.get(changed.size() - 1), changed);
             }
         }
+        return changed;
     }
-    
+
+    /**
+     * In one pass: the service response header rules, then
+     * changeSingleHeaderReturnedBackFromRealServiceForRecording() for each header that's left. Then
+     * changeAnyHeadersReturnedBackFromRealServiceForRecording() for all of them.
+     */
     @Override
-    public void changeAnyHeadersReturnedBackFromRealServiceForRecording(List<String> serviceResponseHeaders) {
-        String[] hdrs = serviceResponseHeaders.toArray(new String[0]);
-        for (String hdr : hdrs) {
-            for (String pfx : headerPrefixesToRemoveFromResponse) {
-                if (hdr.startsWith(pfx)) {
-                    serviceResponseHeaders.remove(hdr);
+    public HttpHeaders changeHeadersReturnedBackFromRealServiceForRecording(HttpHeaders headersBackFromService) {
+        HttpHeaders changed = new HttpHeaders(headersBackFromService.size());
+        for (int i = 0; i < headersBackFromService.size(); i++) {
+            if (serviceResponseHeaderRules.addTo(changed, headersBackFromService.name(i), headersBackFromService.value(i))) {
+                int last = changed.size() - 1;
+                String header = changed.get(last);
+                String potentiallyChangedHeader = changeSingleHeaderReturnedBackFromRealServiceForRecording(i, header);
+                if (potentiallyChangedHeader == null) {
+                    changed.remove(last);
+                } else if (!potentiallyChangedHeader.equals(header)) {
+                    changed.set(last, potentiallyChangedHeader);
                 }
             }
         }
+        changeAnyHeadersReturnedBackFromRealServiceForRecording(changed);
+        return changed;
     }
 
 }
@@ -0,0 +1,86 @@
+package com.paulhammant.servirtium;
+
+import java.nio.ByteBuffer;
+
+/**
+ * InteractionManipulations that can change bodies incrementally, via a BodyTransformer, instead
+ * of being handed the whole body as a String and returning another. For each of the three body
+ * changes, return a new BodyTransformer for the body, or null (the default) to have the String
+ * method called as usual. InteractionManipulations that don't implement this always have their
+ * String methods called.
+ */
+public interface StreamingInteractionManipulations extends InteractionManipulations {
+
+    /**
+     * The streaming alternative to changeBodyReturnedBackFromRealServiceForRecording(String).
+     */
+    default BodyTransformer bodyTransformerReturnedBackFromRealServiceForRecording() {
+        return null;
+    }
+
+    /**
+     * The streaming alternative to changeBodyForClientResponseAfterRecording(String).
+     */
+    default BodyTransformer bodyTransformerForClientResponseAfterRecording() {
+        return null;
+    }
+
+    /**
+     * The streaming alternative to changeBodyForRequestToRealService(String).
+     */
+    default BodyTransformer bodyTransformerForRequestToRealService() {
+        return null;
+    }
+
+    /**
+     * @return the body returned from the server, as changed by whichever of the streaming or String
+     * methods the InteractionManipulations uses, or for a binary body, by the ByteBuffer one.
+     */
+    static HttpBody changeBodyReturnedBackFromRealServiceForRecording(InteractionManipulations im, HttpBody body) {
+        if (!body.isText()) {
+            ByteBuffer bytes = body.asByteBuffer();
+            ByteBuffer changed = im.changeBinaryBodyReturnedBackFromRealServiceForRecording(bytes);
+            return changed == null || changed == bytes ? body : HttpBody.ofBytes(changed);
+        }
+        BodyTransformer transformer = im instanceof StreamingInteractionManipulations
+                ? ((StreamingInteractionManipulations) im).bodyTransformerReturnedBackFromRealServiceForRecording()
+                : null;
+        return transformer != null ? body.transformedBy(transformer)
+                : body.withText(im.changeBodyReturnedBackFromRealServiceForRecording(body.text()));
+    }
+
+    /**
+     * @return the body as recorded, as changed for the client by whichever of the streaming or String
+     * methods the InteractionManipulations uses, or for a binary body, by the ByteBuffer one.
+     */
+    static HttpBody changeBodyForClientResponseAfterRecording(InteractionManipulations im, HttpBody body) {
+        if (!body.isText()) {
+            ByteBuffer bytes = body.asByteBuffer();
+            ByteBuffer changed = im.changeBinaryBodyForClientResponseAfterRecording(bytes);
+            return changed == null || changed == bytes ? body : HttpBody.ofBytes(changed);
+        }
+        BodyTransformer transformer = im instanceof StreamingInteractionManipulations
+                ? ((StreamingInteractionManipulations) im).bodyTransformerForClientResponseAfterRecording()
+                : null;
+        return transformer != null ? body.transformedBy(transformer)
+                : body.withText(im.changeBodyForClientResponseAfterRecording(body.text()));
+    }
+
+    /**
+     * @return the client's request body, as changed for the real service by whichever of the streaming
+     * or String methods the InteractionManipulations uses, or for a binary body, by the ByteBuffer one.
+     */
+    static HttpBody changeBodyForRequestToRealService(InteractionManipulations im, HttpBody body) {
+        if (!body.isText()) {
+            ByteBuffer bytes = body.asByteBuffer();
+            ByteBuffer changed = im.changeBinaryBodyForRequestToRealService(bytes);
+            return changed == null || changed == bytes ? body : HttpBody.ofBytes(changed);
+        }
+        BodyTransformer transformer = im instanceof StreamingInteractionManipulations
+                ? ((StreamingInteractionManipulations) im).bodyTransformerForRequestToRealService()
+                : null;
+        return transformer != null ? body.transformedBy(transformer)
+                : body.withText(im.changeBodyForRequestToRealService(body.text()));
+    }
+
+}
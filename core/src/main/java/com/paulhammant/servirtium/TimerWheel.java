@@ -0,0 +1,136 @@
+package com.paulhammant.servirtium;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel: a single thread ticks round a ring of buckets, and hands each task whose
+ * deadline has passed to an executor. Scheduling is O(1) and however many tasks are waiting,
+ * none of them hold a thread while they do. Precision is one tick (a millisecond by default),
+ * which is plenty for simulating network latency and bandwidth. The wheel's thread parks when
+ * there is nothing scheduled.
+ */
+public class TimerWheel {
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread ticker;
+    private final long startNanos;
+    private volatile boolean stopped;
+    private long tick;
+
+    public TimerWheel(Executor executor) {
+        this(1, TimeUnit.MILLISECONDS, 512, executor);
+    }
+
+    /**
+     * @param tickDuration how often the wheel advances
+     * @param unit the unit for tickDuration
+     * @param ticksPerWheel buckets in the ring, rounded up to a power of two
+     * @param executor where expired tasks are run. They should not block the wheel's own thread.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 2) - 1) << 1;
+        this.wheel = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+        this.startNanos = System.nanoTime();
+        this.ticker = new Thread(this::tickUntilStopped, "servirtium-timer-wheel");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Run a task on the executor once a delay has elapsed. A delay of zero or less runs it straight away.
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            executor.execute(task);
+        } else {
+            pending.incrementAndGet();
+            scheduled.add(new Timeout(task, System.nanoTime() + unit.toNanos(delay)));
+            LockSupport.unpark(ticker);
+        }
+    }
+
+    /**
+     * Stop ticking. Tasks not yet run are abandoned.
+     */
+    public void stop() {
+        stopped = true;
+        ticker.interrupt();
+    }
+
+    private void tickUntilStopped() {
+        while (!stopped) {
+            if (pending.get() == 0) {
+                LockSupport.park(this);
+                // all buckets are empty, so skip the ticks that passed while parked
+                tick = Math.max(tick, (System.nanoTime() - startNanos) / tickNanos);
+                continue;
+            }
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = deadline - System.nanoTime()) > 0 && !stopped) {
+                LockSupport.parkNanos(sleep);
+            }
+            placeScheduledInBuckets();
+            expire(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private void placeScheduledInBuckets() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            long ticks = Math.max((timeout.deadline - startNanos) / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket, long deadline) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                it.remove();
+                pending.decrementAndGet();
+                try {
+                    executor.execute(timeout.task);
+                } catch (RuntimeException e) {
+                    // executor shut down or saturated - nothing more can be done for this task
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    private static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+}
@@ -0,0 +1,399 @@
+package com.paulhammant.servirtium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * W3C Trace Context (traceparent and tracestate headers) for a ServirtiumServer. The exchange with
+ * the client is a SERVER span, continuing the client's trace if it sent a traceparent, and the call
+ * to the real service a CLIENT span within it, with a traceparent sent upstream so the trace goes on
+ * there. The client's trace context headers are taken out before the interaction notes the request's
+ * headers, so they are neither recorded nor matched in playback, and the upstream traceparent is only
+ * added as ServiceInteropViaOkHttp sends the request. Finished spans are kept, up to a limit with the
+ * oldest dropped, and can be written to a file as Zipkin v2 JSON, which Zipkin, Jaeger and the
+ * OpenTelemetry collector can import. Each write appends the spans since the last, and lets them go.
+ */
+public class Tracing {
+
+    public static final String TRACEPARENT = "traceparent";
+    public static final String TRACESTATE = "tracestate";
+
+    /**
+     * For when tracing is off: children are NO_SPAN too, and nothing is kept.
+     */
+    public static final Span NO_SPAN = new Span(null, null, null, null, null, null, null);
+
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+
+    private final String serviceName;
+    private final int maxSpans;
+    private final ConcurrentLinkedQueue<Span> finished = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger kept = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private File spanFile;
+    private boolean spanFileStarted;
+    private boolean spanFileHasSpans;
+
+    public Tracing() {
+        this("servirtium");
+    }
+
+    /**
+     * @param serviceName the localEndpoint serviceName of the spans
+     */
+    public Tracing(String serviceName) {
+        this(serviceName, 10_000);
+    }
+
+    /**
+     * @param serviceName the localEndpoint serviceName of the spans
+     * @param maxSpans how many finished spans to keep until they are written, the oldest being dropped
+     */
+    public Tracing(String serviceName, int maxSpans) {
+        this.serviceName = serviceName;
+        this.maxSpans = maxSpans;
+    }
+
+    /**
+     * Write the spans to a file at each ServirtiumServer.finishedScript() - replacing what was there the
+     * first time, appending after that
+     * @return this
+     */
+    public Tracing withSpanFile(File spanFile) {
+        this.spanFile = spanFile;
+        return this;
+    }
+
+    /**
+     * @param traceparent the client's traceparent header, or null
+     * @param tracestate the client's tracestate header, or null
+     * @return a started SERVER span, in the client's trace if the traceparent was valid, in a new one if not
+     */
+    public Span startServerSpan(String traceparent, String tracestate, String name) {
+        String[] parent = parseTraceparent(traceparent);
+        if (parent == null) {
+            return new Span(this, randomHex(16), randomHex(8), null, "01", null, name).kind("SERVER");
+        }
+        return new Span(this, parent[0], randomHex(8), parent[1], parent[2], tracestate, name).kind("SERVER");
+    }
+
+    /**
+     * @return {trace-id, parent-id, trace-flags}, or null if it is not a valid version 00 traceparent
+     */
+    static String[] parseTraceparent(String traceparent) {
+        if (traceparent == null) {
+            return null;
+        }
+        String[] parts = traceparent.trim().split("-");
+        if (parts.length < 4 || !isHex(parts[0], 2) || parts[0].equals("ff") || !isHex(parts[1], 32)
+                || !isHex(parts[2], 16) || !isHex(parts[3], 2) || (parts[0].equals("00") && parts.length != 4)
+                || isZeros(parts[1]) || isZeros(parts[2])) {
+            return null;
+        }
+        return new String[] {parts[1], parts[2], parts[3]};
+    }
+
+    private static boolean isHex(String s, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isZeros(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != '0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        do {
+            sb.setLength(0);
+            for (int i = 0; i < bytes; i++) {
+                int b = random.nextInt(256);
+                sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+        } while (isZeros(sb.toString()));
+        return sb.toString();
+    }
+
+    /**
+     * @return how many trace context headers were taken out
+     */
+    public static int removeTraceContext(HttpHeaders headers) {
+        return headers.removeNamed(TRACEPARENT) + headers.removeNamed(TRACESTATE);
+    }
+
+    /**
+     * @return the span made current on this thread with Span.makeCurrent(), or NO_SPAN
+     */
+    public static Span currentSpan() {
+        Span span = CURRENT.get();
+        return span == null ? NO_SPAN : span;
+    }
+
+    private void finished(Span span) {
+        finished.add(span);
+        if (kept.incrementAndGet() > maxSpans && finished.poll() != null) {
+            kept.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the finished spans not yet written to the span file
+     */
+    public List<Span> getSpans() {
+        return new ArrayList<>(finished);
+    }
+
+    /**
+     * @return how many finished spans were dropped, being more than maxSpans unwritten
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Append the spans finished since the last write to the span file, if there is one, and let them
+     * go. The first write replaces what was in the file. It stays a JSON array throughout.
+     */
+    public synchronized void writeSpans() {
+        if (spanFile == null) {
+            return;
+        }
+        List<Span> spans = new ArrayList<>();
+        for (Span span = finished.poll(); span != null; span = finished.poll()) {
+            kept.decrementAndGet();
+            spans.add(span);
+        }
+        try {
+            if (!spanFileStarted) {
+                Files.write(spanFile.toPath(), toZipkinJson(spans).getBytes(StandardCharsets.UTF_8));
+                spanFileStarted = true;
+            } else if (!spans.isEmpty()) {
+                try (RandomAccessFile file = new RandomAccessFile(spanFile, "rw")) {
+                    // over the "]\n" that closes the array
+                    file.seek(file.length() - 2);
+                    String json = (spanFileHasSpans ? ",\n" : "") + toZipkinJson(spans).substring(1);
+                    file.write(json.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            spanFileHasSpans |= !spans.isEmpty();
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Can't write spans to " + spanFile, e);
+        }
+    }
+
+    /**
+     * @return the finished spans not yet written, as a Zipkin v2 JSON array
+     */
+    public String toZipkinJson() {
+        return toZipkinJson(finished);
+    }
+
+    private String toZipkinJson(Iterable<Span> spans) {
+        StringBuilder sb = new StringBuilder("[");
+        for (Span span : spans) {
+            if (sb.length() > 1) {
+                sb.append(",\n");
+            }
+            sb.append("{\"traceId\":\"").append(span.traceId)
+                    .append("\",\"id\":\"").append(span.spanId).append('"');
+            if (span.parentId != null) {
+                sb.append(",\"parentId\":\"").append(span.parentId).append('"');
+            }
+            sb.append(",\"name\":");
+            jsonString(sb, span.name);
+            sb.append(",\"kind\":\"").append(span.kind)
+                    .append("\",\"timestamp\":").append(span.startMicros)
+                    .append(",\"duration\":").append(Math.max(1, span.durationMicros))
+                    .append(",\"localEndpoint\":{\"serviceName\":");
+            jsonString(sb, serviceName);
+            sb.append("},\"tags\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> tag : span.tags.entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                jsonString(sb, tag.getKey());
+                sb.append(':');
+                jsonString(sb, tag.getValue());
+            }
+            sb.append("}}");
+        }
+        return sb.append("]\n").toString();
+    }
+
+    static void jsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    public static class Span {
+
+        private final Tracing tracing;
+        private final String traceId;
+        private final String spanId;
+        private final String parentId;
+        private final String flags;
+        private final String tracestate;
+        private final String name;
+        private final Map<String, String> tags = new LinkedHashMap<>();
+        private String kind;
+        private final long startMicros;
+        private final long startNanos;
+        private volatile long durationMicros = -1;
+
+        private Span(Tracing tracing, String traceId, String spanId, String parentId, String flags, String tracestate, String name) {
+            this.tracing = tracing;
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentId = parentId;
+            this.flags = flags;
+            this.tracestate = tracestate;
+            this.name = name;
+            this.startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+            this.startNanos = System.nanoTime();
+        }
+
+        private Span kind(String kind) {
+            this.kind = kind;
+            return this;
+        }
+
+        public boolean isTraced() {
+            return tracing != null;
+        }
+
+        /**
+         * @return a started span within this one, of kind CLIENT, SERVER, PRODUCER or CONSUMER
+         */
+        public Span startChild(String name, String kind) {
+            if (tracing == null) {
+                return this;
+            }
+            return new Span(tracing, traceId, randomHex(8), spanId, flags, tracestate, name).kind(kind);
+        }
+
+        /**
+         * @return this
+         */
+        public Span tag(String key, Object value) {
+            if (tracing != null && value != null) {
+                synchronized (tags) {
+                    tags.put(key, String.valueOf(value));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Finish the span, once - later calls do nothing.
+         */
+        public void end() {
+            if (tracing != null && durationMicros == -1) {
+                synchronized (this) {
+                    if (durationMicros == -1) {
+                        durationMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+                        tracing.finished(this);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Make this the span that currentSpan() returns on this thread, until the Scope is closed.
+         */
+        public Scope makeCurrent() {
+            Span previous = CURRENT.get();
+            CURRENT.set(this);
+            return () -> {
+                if (previous == null) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(previous);
+                }
+            };
+        }
+
+        /**
+         * @return the traceparent header value for calls made within this span, or null if not traced
+         */
+        public String traceparent() {
+            return tracing == null ? null : "00-" + traceId + "-" + spanId + "-" + flags;
+        }
+
+        /**
+         * @return the client's tracestate, to pass on, or null
+         */
+        public String tracestate() {
+            return tracestate;
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        public String getSpanId() {
+            return spanId;
+        }
+
+        public String getParentId() {
+            return parentId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public Map<String, String> getTags() {
+            synchronized (tags) {
+                return new LinkedHashMap<>(tags);
+            }
+        }
+    }
+
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
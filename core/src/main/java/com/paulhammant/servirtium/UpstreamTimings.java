@@ -0,0 +1,63 @@
+package com.paulhammant.servirtium;
+
+import java.util.Locale;
+
+/**
+ * How long a call to the real service took, as measured by the ServiceInteroperation that made it.
+ * Durations are in nanoseconds, and -1 where not known. A phase that did not happen for the call
+ * (DNS and connect for a pooled connection, TLS for plain HTTP) is zero.
+ */
+public class UpstreamTimings {
+
+    public final long dnsNanos;
+    public final long connectNanos;
+    public final long tlsNanos;
+    public final long requestWriteNanos;
+    public final long timeToFirstByteNanos;
+    public final long bodyReadNanos;
+    public final long totalNanos;
+
+    public UpstreamTimings(long timeToFirstByteNanos, long totalNanos) {
+        this(-1, -1, -1, -1, timeToFirstByteNanos, -1, totalNanos);
+    }
+
+    public UpstreamTimings(long dnsNanos, long connectNanos, long tlsNanos, long requestWriteNanos,
+                           long timeToFirstByteNanos, long bodyReadNanos, long totalNanos) {
+        this.dnsNanos = dnsNanos;
+        this.connectNanos = connectNanos;
+        this.tlsNanos = tlsNanos;
+        this.requestWriteNanos = requestWriteNanos;
+        this.timeToFirstByteNanos = timeToFirstByteNanos;
+        this.bodyReadNanos = bodyReadNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * @return true if the individual phases were measured, rather than just the overall times.
+     */
+    public boolean hasPhases() {
+        return requestWriteNanos != -1;
+    }
+
+    /**
+     * @return one "phase-ms: n.nnn" line per known timing, for debug output.
+     */
+    public String toLines() {
+        StringBuilder sb = new StringBuilder();
+        line(sb, "dns-ms", dnsNanos);
+        line(sb, "connect-ms", connectNanos);
+        line(sb, "tls-ms", tlsNanos);
+        line(sb, "request-write-ms", requestWriteNanos);
+        line(sb, "time-to-first-byte-ms", timeToFirstByteNanos);
+        line(sb, "body-read-ms", bodyReadNanos);
+        line(sb, "total-ms", totalNanos);
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, long nanos) {
+        if (nanos != -1) {
+            sb.append(name).append(": ").append(String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0)).append("\n");
+        }
+    }
+
+}
@@ -0,0 +1,365 @@
+package com.paulhammant.servirtium;
+
+import com.github.underscore.lodash.U;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pretty-prints XML as it is read by a StAX parser, in one pass, with the same layout as
+ * Underscore-Java's U.formatXml() - which goes via a DOM and then a tree of Maps. Elements with
+ * only text stay on one line, others have their children on lines of their own, indented by three
+ * spaces. Elements written as &lt;x/&gt; and as &lt;x&gt;&lt;/x&gt; stay that way.
+ * <p>
+ * Things U.formatXml() has its own idea about - DTDs, CDATA sections, processing instructions,
+ * character references, text mixed with elements, xml: attributes - are left to it, so the output
+ * is the same either way. Those are rare in service payloads.
+ * <p>
+ * There's also a canonical form for comparisons, somewhat like C14N: no declaration, comments or
+ * whitespace between elements, attributes in order, and empty elements as &lt;x&gt;&lt;/x&gt;.
+ */
+public final class XmlFormatter {
+
+    private static final String INDENT = "   ";
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final String in;
+    private final boolean canonical;
+    private final StringBuilder out;
+    private final StringBuilder text = new StringBuilder();
+    private final List<String> prefixesInScope = new ArrayList<>();
+    private int[] prefixesInScopeAtDepth = new int[16];
+    private int depth;
+    private boolean startTagOpen;
+    private int startTagOffset;
+
+    private XmlFormatter(String in, boolean canonical) {
+        this.in = in;
+        this.canonical = canonical;
+        this.out = new StringBuilder(canonical ? in.length() : in.length() + (in.length() >> 1));
+    }
+
+    /**
+     * A quick look at the first and last chars, to not parse what can't be XML.
+     */
+    public static boolean mightBeXml(String doc) {
+        int first = 0;
+        int last = doc.length() - 1;
+        while (first <= last && Character.isWhitespace(doc.charAt(first))) {
+            first++;
+        }
+        while (last > first && Character.isWhitespace(doc.charAt(last))) {
+            last--;
+        }
+        return first < last && doc.charAt(first) == '<' && doc.charAt(last) == '>';
+    }
+
+    /**
+     * @return the XML pretty printed as U.formatXml() would
+     * @throws IllegalArgumentException if it isn't well-formed XML
+     */
+    public static String prettify(String xml) {
+        if (!mightBeXml(xml)) {
+            throw new IllegalArgumentException("Not XML");
+        }
+        if (xml.contains("&#") || xml.contains("<!DOCTYPE") || xml.contains("<![CDATA[") || xml.contains("xml:")
+                || hasAttributeValuesUnderscoreChanges(xml)) {
+            return U.formatXml(xml);
+        }
+        try {
+            return new XmlFormatter(xml, false).format();
+        } catch (LeftToUnderscore e) {
+            return U.formatXml(xml);
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Not XML: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the XML in canonical form, so that XML documents that differ only in layout,
+     * attribute order, comments or how they escape things are equal.
+     * @throws IllegalArgumentException if it isn't well-formed XML
+     */
+    public static String canonicalize(String xml) {
+        if (!mightBeXml(xml)) {
+            throw new IllegalArgumentException("Not XML");
+        }
+        try {
+            return new XmlFormatter(xml, true).format();
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Not XML: " + e.getMessage(), e);
+        }
+    }
+
+    // Tabs and line breaks in attribute values, or a double quote in a single quoted one.
+    private static boolean hasAttributeValuesUnderscoreChanges(String xml) {
+        boolean inTag = false;
+        char quote = 0;
+        for (int i = 0; i < xml.length(); i++) {
+            char c = xml.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (c == '\t' || c == '\n' || c == '\r' || c == '"') {
+                    return true;
+                }
+            } else if (inTag) {
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    inTag = false;
+                }
+            } else if (c == '<') {
+                if (xml.startsWith("<!--", i)) {
+                    int end = xml.indexOf("-->", i + 4);
+                    if (end < 0) {
+                        return false;
+                    }
+                    i = end + 2;
+                } else {
+                    inTag = true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String format() throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(new StringReader(in));
+        try {
+            if (!canonical && in.trim().startsWith("<?xml")) {
+                xmlDeclaration(reader);
+            }
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(reader);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement(reader);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (depth > 0) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        if (!canonical) {
+                            startChild();
+                            out.append("<!--").append(reader.getText()).append("-->");
+                        }
+                        break;
+                    case XMLStreamConstants.END_DOCUMENT:
+                        break;
+                    default:
+                        if (!canonical) {
+                            throw new LeftToUnderscore();
+                        }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return out.toString();
+    }
+
+    private void xmlDeclaration(XMLStreamReader reader) {
+        String encoding = reader.getCharacterEncodingScheme();
+        out.append("<?xml version=\"1.0\" encoding=\"")
+                .append(encoding == null ? "UTF-8" : encoding.toUpperCase())
+                .append('"');
+        if (reader.standaloneSet()) {
+            out.append(" standalone=\"").append(reader.isStandalone() ? "yes" : "no").append('"');
+        }
+        out.append("?>");
+    }
+
+    // An element or comment is next - which makes its parent one with children on their own lines
+    private void startChild() {
+        if (canonical) {
+            closeStartTag();
+            if (!isWhitespace(text)) {
+                escape(text, false);
+            }
+            text.setLength(0);
+            return;
+        }
+        if (depth > 0) {
+            if (!isWhitespace(text)) {
+                throw new LeftToUnderscore();
+            }
+            text.setLength(0);
+            if (startTagOpen) {
+                out.append('>');
+                startTagOpen = false;
+            }
+        }
+        if (out.length() > 0) {
+            out.append('\n');
+            for (int i = 0; i < depth; i++) {
+                out.append(INDENT);
+            }
+        }
+    }
+
+    private void startElement(XMLStreamReader reader) throws XMLStreamException {
+        startChild();
+        if (depth == prefixesInScopeAtDepth.length) {
+            prefixesInScopeAtDepth = Arrays.copyOf(prefixesInScopeAtDepth, depth * 2);
+        }
+        prefixesInScopeAtDepth[depth] = prefixesInScope.size();
+        int attributes = reader.getAttributeCount();
+        for (int i = 0; i < attributes; i++) {
+            if ("xmlns".equals(reader.getAttributePrefix(i))) {
+                prefixesInScope.add(reader.getAttributeLocalName(i));
+            }
+        }
+        String name = reader.getLocalName();
+        checkPrefix(name, reader);
+        out.append('<').append(name);
+        int[] order = canonical ? attributesInOrder(reader) : null;
+        for (int a = 0; a < attributes; a++) {
+            int i = canonical ? order[a] : a;
+            out.append(' ');
+            String prefix = reader.getAttributePrefix(i);
+            if (prefix != null && !prefix.isEmpty()) {
+                if (!prefix.equals("xmlns") && !prefixesInScope.contains(prefix)) {
+                    throw new XMLStreamException("Undeclared prefix " + prefix, reader.getLocation());
+                }
+                out.append(prefix).append(':');
+            }
+            out.append(reader.getAttributeLocalName(i)).append("=\"");
+            escape(reader.getAttributeValue(i), true);
+            out.append('"');
+        }
+        startTagOpen = true;
+        startTagOffset = reader.getLocation().getCharacterOffset();
+        depth++;
+    }
+
+    private static int[] attributesInOrder(XMLStreamReader reader) {
+        int attributes = reader.getAttributeCount();
+        Integer[] order = new Integer[attributes];
+        for (int i = 0; i < attributes; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> attributeName(reader, x).compareTo(attributeName(reader, y)));
+        int[] rv = new int[attributes];
+        for (int i = 0; i < attributes; i++) {
+            rv[i] = order[i];
+        }
+        return rv;
+    }
+
+    private static String attributeName(XMLStreamReader reader, int i) {
+        String prefix = reader.getAttributePrefix(i);
+        return prefix == null || prefix.isEmpty() ? reader.getAttributeLocalName(i) : prefix + ":" + reader.getAttributeLocalName(i);
+    }
+
+    // Without namespace awareness the parser takes any name with colons, where U.formatXml() would not
+    private void checkPrefix(String name, XMLStreamReader reader) throws XMLStreamException {
+        int colon = name.indexOf(':');
+        if (colon >= 0 && (colon == 0 || colon == name.length() - 1 || name.indexOf(':', colon + 1) >= 0
+                || !prefixesInScope.contains(name.substring(0, colon)))) {
+            throw new XMLStreamException("Undeclared prefix in " + name, reader.getLocation());
+        }
+    }
+
+    private void endElement(XMLStreamReader reader) {
+        depth--;
+        prefixesInScope.subList(prefixesInScopeAtDepth[depth], prefixesInScope.size()).clear();
+        String name = reader.getLocalName();
+        if (canonical) {
+            if (startTagOpen || !isWhitespace(text)) {
+                closeStartTag();
+                escape(text, false);
+            }
+            out.append("</").append(name).append('>');
+        } else if (startTagOpen) {
+            startTagOpen = false;
+            if (text.length() > 0) {
+                out.append('>');
+                escape(text, false);
+                out.append("</").append(name).append('>');
+            } else if (reader.getLocation().getCharacterOffset() == startTagOffset) {
+                out.append("/>");
+            } else {
+                out.append("></").append(name).append('>');
+            }
+        } else {
+            if (!isWhitespace(text)) {
+                throw new LeftToUnderscore();
+            }
+            out.append('\n');
+            for (int i = 0; i < depth; i++) {
+                out.append(INDENT);
+            }
+            out.append("</").append(name).append('>');
+        }
+        text.setLength(0);
+    }
+
+    private void closeStartTag() {
+        if (startTagOpen) {
+            out.append('>');
+            startTagOpen = false;
+        }
+    }
+
+    private void escape(CharSequence s, boolean attribute) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append(attribute ? "&quot;" : "\"");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static boolean isWhitespace(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isWhitespace(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Something to leave to U.formatXml(), to get the same output.
+     */
+    private static class LeftToUnderscore extends RuntimeException {
+        LeftToUnderscore() {
+            super(null, null, false, false);
+        }
+    }
+
+}
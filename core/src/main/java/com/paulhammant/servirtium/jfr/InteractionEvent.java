@@ -0,0 +1,65 @@
+package com.paulhammant.servirtium.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A ServirtiumServer handling one interaction, from the request arriving to the response being
+ * sent (or the interaction failing).
+ */
+@Name("com.paulhammant.servirtium.Interaction")
+@Label("Interaction")
+@Category("Servirtium")
+@Description("An interaction handled by a ServirtiumServer")
+@StackTrace(false)
+public class InteractionEvent extends jdk.jfr.Event {
+
+    @Label("Interaction Number")
+    int interactionNum;
+
+    @Label("Context")
+    String context;
+
+    @Label("Method")
+    String method;
+
+    @Label("URL")
+    String url;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Request Body Size")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Response Body Size")
+    @DataAmount
+    long responseBytes;
+
+    @Label("Failed")
+    boolean failed;
+
+    /**
+     * Commit the event, if JFR is recording it.
+     */
+    public void end(int interactionNum, String context, String method, String url, int statusCode,
+                    long requestBytes, long responseBytes, boolean failed) {
+        end();
+        if (shouldCommit()) {
+            this.interactionNum = interactionNum;
+            this.context = context;
+            this.method = method;
+            this.url = url;
+            this.statusCode = statusCode;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            this.failed = failed;
+            commit();
+        }
+    }
+}
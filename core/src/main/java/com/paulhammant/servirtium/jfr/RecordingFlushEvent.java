@@ -0,0 +1,42 @@
+package com.paulhammant.servirtium.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * MarkdownRecorder writing out the interactions of a script at finishedScript().
+ */
+@Name("com.paulhammant.servirtium.RecordingFlush")
+@Label("Recording Flush")
+@Category("Servirtium")
+@Description("A recording being written out at the end of a script")
+@StackTrace(false)
+public class RecordingFlushEvent extends jdk.jfr.Event {
+
+    @Label("Filename")
+    String filename;
+
+    @Label("Interactions")
+    int interactions;
+
+    @Label("Size")
+    @DataAmount
+    long chars;
+
+    /**
+     * Commit the event, if JFR is recording it.
+     */
+    public void end(String filename, int interactions, long chars) {
+        end();
+        if (shouldCommit()) {
+            this.filename = filename;
+            this.interactions = interactions;
+            this.chars = chars;
+            commit();
+        }
+    }
+}
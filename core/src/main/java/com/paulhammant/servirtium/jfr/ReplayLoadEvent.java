@@ -0,0 +1,42 @@
+package com.paulhammant.servirtium.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * MarkdownReplayer reading and splitting a recording into interactions.
+ */
+@Name("com.paulhammant.servirtium.ReplayLoad")
+@Label("Replay Load")
+@Category("Servirtium")
+@Description("A recording being read and parsed for playback")
+@StackTrace(false)
+public class ReplayLoadEvent extends jdk.jfr.Event {
+
+    @Label("Filename")
+    String filename;
+
+    @Label("Interactions")
+    int interactions;
+
+    @Label("Size")
+    @DataAmount
+    long chars;
+
+    /**
+     * Commit the event, if JFR is recording it.
+     */
+    public void end(String filename, int interactions, long chars) {
+        end();
+        if (shouldCommit()) {
+            this.filename = filename;
+            this.interactions = interactions;
+            this.chars = chars;
+            commit();
+        }
+    }
+}
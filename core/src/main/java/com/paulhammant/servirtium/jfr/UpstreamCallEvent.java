@@ -0,0 +1,54 @@
+package com.paulhammant.servirtium.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * MarkdownRecorder calling the real service for an interaction.
+ */
+@Name("com.paulhammant.servirtium.UpstreamCall")
+@Label("Upstream Call")
+@Category("Servirtium")
+@Description("A call to the real service, while recording")
+@StackTrace(false)
+public class UpstreamCallEvent extends jdk.jfr.Event {
+
+    @Label("Interaction Number")
+    int interactionNum;
+
+    @Label("Context")
+    String context;
+
+    @Label("Method")
+    String method;
+
+    @Label("URL")
+    String url;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Response Body Size")
+    @DataAmount
+    long responseBytes;
+
+    /**
+     * Commit the event, if JFR is recording it.
+     */
+    public void end(int interactionNum, String context, String method, String url, int statusCode, long responseBytes) {
+        end();
+        if (shouldCommit()) {
+            this.interactionNum = interactionNum;
+            this.context = context;
+            this.method = method;
+            this.url = url;
+            this.statusCode = statusCode;
+            this.responseBytes = responseBytes;
+            commit();
+        }
+    }
+}
@@ -31,30 +31,15 @@
 
 package com.paulhammant.servirtium.svn;
 
+import com.paulhammant.servirtium.HeaderRules;
 import com.paulhammant.servirtium.SimpleInteractionManipulations;
 
-import java.util.List;
-
 public class SubversionInteractionManipulations extends SimpleInteractionManipulations {
 
     public SubversionInteractionManipulations(String fromUrl, String toUrl) {
         super(fromUrl, toUrl);
-    }
-
-    @Override
-    public void changeSingleHeaderForRequestToRealService(String currentHeader, List<String> clientRequestHeaders) {
-        if (currentHeader.startsWith("User-Agent:")) {
-            for (int i = 0; i < clientRequestHeaders.size(); i++) {
-                String s = clientRequestHeaders.get(i);
-                if (s.startsWith("User-Agent:")) {
-                    clientRequestHeaders.remove(s);
-                    clientRequestHeaders.add(i, "User-Agent: " + getUserAgentString());
-                    break;
-                }
-            }
-        }
-
-        super.changeSingleHeaderForRequestToRealService(currentHeader, clientRequestHeaders);
+        withClientRequestHeaderRules(new HeaderRules()
+                .changeValue("User-Agent", userAgent -> getUserAgentString()));
     }
 
     protected String getUserAgentString() {
@@ -0,0 +1,243 @@
+package com.paulhammant.servirtium;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class AdminServerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String scriptFilename = "first.md";
+    private String unfinished;
+    private ServirtiumServer servirtiumServer;
+
+    @Before
+    public void startServer() throws Exception {
+        InteractionMonitor interactionMonitor = new InteractionMonitor.NullObject() {
+            @Override
+            public void setScriptFilename(String filename) {
+                scriptFilename = filename;
+            }
+
+            @Override
+            public String getScriptFilename() {
+                return scriptFilename;
+            }
+
+            @Override
+            public void finishedScript(int interactionNum, boolean failed) {
+                if (unfinished != null) {
+                    throw new AssertionError(unfinished);
+                }
+            }
+        };
+        servirtiumServer = adminServed(interactionMonitor);
+        servirtiumServer.setContext("admin test");
+    }
+
+    private static ServirtiumServer adminServed(InteractionMonitor interactionMonitor) throws Exception {
+        return new ServirtiumServer(new InteractionManipulations.NullObject(), interactionMonitor) {
+            @Override
+            public ServirtiumServer start() {
+                startAdminServer();
+                return this;
+            }
+
+            @Override
+            public void stop() {
+                stopAdminServer();
+            }
+
+            @Override
+            public void finishedScript() {
+                interactionMonitor.finishedScript(getInteractionNum(), false);
+            }
+        }.withAdminPort(0).start();
+    }
+
+    @After
+    public void stopServer() {
+        servirtiumServer.stop();
+        assertNull(servirtiumServer.getAdminServer());
+    }
+
+    @Test
+    public void metricsAreInPrometheusTextFormat() throws IOException {
+        servirtiumServer.getStats().requestStarted();
+        servirtiumServer.getStats().requestEnded(false, 10, 200);
+
+        HttpURLConnection connection = call("GET", "/metrics", null);
+        assertEquals(200, connection.getResponseCode());
+        assertThat(connection.getContentType(), containsString("version=0.0.4"));
+        String metrics = body(connection);
+        assertThat(metrics, containsString("# TYPE servirtium_interactions_served_total counter\n"
+                + "servirtium_interactions_served_total 1\n"));
+        assertThat(metrics, containsString("servirtium_response_body_bytes_total 200\n"));
+        assertThat(metrics, containsString("servirtium_interaction_number -1\n"));
+    }
+
+    @Test
+    public void healthAndSessionCanBeSeen() throws IOException {
+        assertEquals("{\"status\":\"UP\"}", body(call("GET", "/health", null)));
+        assertEquals("{\"context\":\"admin test\",\"scriptFilename\":\"first.md\",\"interactionNum\":-1,"
+                        + "\"inFlight\":0,\"pendingRecorderInteractions\":0,\"interactionsServed\":0,\"failures\":0}",
+                body(call("GET", "/session", null)));
+    }
+
+    @Test
+    public void contextScriptAndInteractionNumberCanBeChanged() throws IOException {
+        servirtiumServer.bumpInteractionNum();
+        servirtiumServer.bumpInteractionNum();
+
+        assertEquals(200, call("POST", "/context", "another \"test\"").getResponseCode());
+        assertEquals("another \"test\"", servirtiumServer.getContext());
+
+        assertEquals(200, call("POST", "/script", "second.md").getResponseCode());
+        assertEquals("second.md", scriptFilename);
+        assertEquals(-1, servirtiumServer.getInteractionNum());
+        assertThat(body(call("GET", "/session", null)), containsString("{\"context\":\"another \\\"test\\\"\",\"scriptFilename\":\"second.md\""));
+
+        servirtiumServer.bumpInteractionNum();
+        assertEquals(200, call("POST", "/interaction-number/reset", "").getResponseCode());
+        assertEquals(-1, servirtiumServer.getInteractionNum());
+
+        assertEquals(400, call("POST", "/script", "").getResponseCode());
+    }
+
+    @Test
+    public void aScriptIsNotSwitchedWhileInteractionsAreBeingServed() throws IOException {
+        servirtiumServer.getStats().requestStarted();
+
+        HttpURLConnection refused = call("POST", "/script", "second.md");
+        assertEquals(409, refused.getResponseCode());
+        assertEquals("1 interaction(s) being served now. Let them finish first", errorBody(refused));
+        assertEquals("first.md", scriptFilename);
+
+        servirtiumServer.getStats().requestEnded(false, 0, 0);
+        assertEquals(200, call("POST", "/script", "second.md").getResponseCode());
+        assertEquals("second.md", scriptFilename);
+    }
+
+    @Test
+    public void flushReportsAnUnfinishedReplayAsAConflict() throws IOException {
+        assertEquals("Flushed", body(call("POST", "/flush", "")));
+
+        unfinished = "2 interactions not replayed";
+        HttpURLConnection connection = call("POST", "/flush", "");
+        assertEquals(409, connection.getResponseCode());
+        assertEquals("2 interactions not replayed", errorBody(connection));
+    }
+
+    @Test
+    public void aReplayCanBeSwitchedToAnotherScript() throws Exception {
+        File a = tmp.newFile("a.md");
+        Files.write(a.toPath(), (getInteraction(0, "/a", "from a 0") + getInteraction(1, "/a", "from a 1")).getBytes(StandardCharsets.UTF_8));
+        File b = tmp.newFile("b.md");
+        Files.write(b.toPath(), getInteraction(0, "/b", "from b 0").getBytes(StandardCharsets.UTF_8));
+        MarkdownReplayer replayer = new MarkdownReplayer();
+        replayer.setScriptFilename(a.getPath());
+        servirtiumServer.stop();
+        servirtiumServer = adminServed(replayer);
+
+        servirtiumServer.bumpInteractionNum();
+        assertEquals("from a 0", replay(replayer, "/a"));
+        assertEquals(409, call("POST", "/flush", "").getResponseCode());
+
+        assertEquals(200, call("POST", "/script", b.getPath()).getResponseCode());
+        servirtiumServer.bumpInteractionNum();
+        assertEquals("from b 0", replay(replayer, "/b"));
+        assertEquals("Flushed", body(call("POST", "/flush", "")));
+    }
+
+    @Test
+    public void aRecordingIsNotSwitchedWithInteractionsYetToBeWritten() throws Exception {
+        MarkdownRecorder recorder = new MarkdownRecorder((method, body, contentType, url, headers, manipulations, lowerCase) -> null,
+                new InteractionManipulations.NullObject());
+        File first = tmp.newFile("first.md");
+        recorder.setScriptFilename(first.getPath());
+        servirtiumServer.stop();
+        servirtiumServer = adminServed(recorder);
+
+        servirtiumServer.bumpInteractionNum();
+        InteractionMonitor.Interaction interaction = recorder.newInteraction(0, "ctx", "GET", "/a", "http://example.com/a");
+        interaction.noteClientRequestHeadersAndBody(new InteractionManipulations.NullObject(), asList("Accept: */*"), null, "", "GET", false);
+        interaction.noteServiceResponseHeaders("Content-Type: text/plain");
+        interaction.noteServiceResponseBody("hello", 200, "text/plain");
+        interaction.complete();
+
+        HttpURLConnection refused = call("POST", "/script", tmp.getRoot() + "/second.md");
+        assertEquals(409, refused.getResponseCode());
+        assertThat(errorBody(refused), containsString("1 interaction(s) not yet written to " + first.getPath()));
+
+        assertEquals(200, call("POST", "/flush", "").getResponseCode());
+        assertEquals(200, call("POST", "/script", tmp.getRoot() + "/second.md").getResponseCode());
+        assertThat(new String(Files.readAllBytes(first.toPath()), StandardCharsets.UTF_8), containsString("## Interaction 0: GET /a"));
+    }
+
+    private static String getInteraction(int interactionNum, String path, String responseBody) {
+        return "## Interaction " + interactionNum + ": GET " + path + "\n\n"
+                + "### Request headers recorded for playback:\n\n```\nAccept: */*\n```\n\n"
+                + "### Request body recorded for playback ():\n\n```\n\n```\n\n"
+                + "### Response headers recorded for playback:\n\n```\nContent-Type: text/plain\n```\n\n"
+                + "### Response body recorded for playback (200: text/plain):\n\n```\n" + responseBody + "\n```\n\n";
+    }
+
+    private String replay(MarkdownReplayer replayer, String path) {
+        MarkdownReplayer.ReplayingInteraction interaction = replayer.newInteraction(servirtiumServer.getInteractionNum(),
+                "ctx", "GET", path, "http://example.com" + path);
+        interaction.noteClientRequestHeadersAndBody(new InteractionManipulations.NullObject(), asList("Accept: */*"), null, "", "GET", false);
+        return replayer.getServiceResponseForRequest("GET", "http://example.com" + path, interaction, false).body.text();
+    }
+
+    @Test
+    public void wrongMethodsAndPathsAreRefused() throws IOException {
+        HttpURLConnection connection = call("GET", "/flush", null);
+        assertEquals(405, connection.getResponseCode());
+        assertEquals("POST", connection.getHeaderField("Allow"));
+        assertEquals(404, call("GET", "/metrics/more", null).getResponseCode());
+    }
+
+    private HttpURLConnection call(String method, String path, String body) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + servirtiumServer.getAdminServer().getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return connection;
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        try (InputStream is = connection.getInputStream()) {
+            return new String(ServirtiumServer.readFully(is), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String errorBody(HttpURLConnection connection) throws IOException {
+        try (InputStream is = connection.getErrorStream()) {
+            return new String(ServirtiumServer.readFully(is), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BinaryReplacementTest {
+
+    @Test
+    public void replacesEveryOccurrenceWhetherLongerOrShorter() {
+        byte[] body = {0x0a, 't', 'o', 'k', 0, 'x', 't', 'o', 'k', 't', 'o', 'k', (byte) 0xff};
+
+        ByteBuffer longer = BinaryReplacement.of("tok", "REDACTED").replaceAllIn(ByteBuffer.wrap(body));
+        ByteBuffer shorter = BinaryReplacement.of("tok", "").replaceAllIn(ByteBuffer.wrap(body));
+
+        assertEquals("\nREDACTED\0xREDACTEDREDACTED\uFFFD", StandardCharsets.UTF_8.decode(longer).toString());
+        assertArrayEquals(new byte[] {0x0a, 0, 'x', (byte) 0xff}, HttpBody.ofBytes(shorter).toByteArray());
+
+        ByteBuffer without = ByteBuffer.wrap(new byte[] {1, 2, 3});
+        assertSame(without, BinaryReplacement.of("tok", "X").replaceAllIn(without));
+    }
+
+    @Test
+    public void binaryBodiesGoToTheByteBufferManipulations() {
+        BinaryReplacement redaction = BinaryReplacement.of("secret", "******");
+        InteractionManipulations im = new InteractionManipulations() {
+            @Override
+            public ByteBuffer changeBinaryBodyForRequestToRealService(ByteBuffer body) {
+                return redaction.replaceAllIn(body);
+            }
+        };
+
+        HttpBody body = HttpBody.ofBytes("\u0001secret\u0002".getBytes(StandardCharsets.UTF_8));
+        HttpBody unchanged = HttpBody.ofBytes(new byte[] {1, 2});
+
+        assertEquals("\u0001******\u0002", new String(
+                StreamingInteractionManipulations.changeBodyForRequestToRealService(im, body).toByteArray(),
+                StandardCharsets.UTF_8));
+        assertSame(unchanged, StreamingInteractionManipulations.changeBodyForRequestToRealService(im, unchanged));
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CachingServiceInteropTest {
+
+    private static final InteractionManipulations.NullObject NO_MANIPULATIONS = new InteractionManipulations.NullObject();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final LinkedList<ServiceResponse> responsesFromService = new LinkedList<>();
+    private final List<List<String>> requestHeadersToService = new ArrayList<>();
+
+    private final ServiceInteroperation service = (method, body, contentType, url, headers, manipulations, lowerCase) -> {
+        requestHeadersToService.add(headers);
+        return responsesFromService.removeFirst();
+    };
+
+    @Test
+    public void freshResponsesAreServedFromCacheUntilMaxAgeElapses() {
+        CachingServiceInterop cache = new CachingServiceInterop(service, 100_000, now::get);
+        responsesFromService.add(new ServiceResponse("one", "text/plain", 200, "Cache-Control: max-age=60"));
+        responsesFromService.add(new ServiceResponse("two", "text/plain", 200, "Cache-Control: max-age=60"));
+
+        assertEquals("one", get(cache, "Accept: */*").body.text());
+        now.addAndGet(59_000);
+        ServiceResponse hit = get(cache, "Accept: */*");
+        assertEquals("one", hit.body.text());
+        assertEquals("59", hit.headers.joined("Age"));
+        now.addAndGet(2_000);
+        assertEquals("two", get(cache, "Accept: */*").body.text());
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void staleResponsesAreRevalidatedWithTheirETag() {
+        CachingServiceInterop cache = new CachingServiceInterop(service, 100_000, now::get);
+        responsesFromService.add(new ServiceResponse("body", "text/plain", 200, "ETag: \"v1\"", "Cache-Control: no-cache"));
+        responsesFromService.add(new ServiceResponse("", null, 304, "ETag: \"v1\"", "Cache-Control: max-age=10"));
+
+        get(cache, "Accept: */*");
+        ServiceResponse revalidated = get(cache, "Accept: */*");
+
+        assertEquals(200, revalidated.statusCode);
+        assertEquals("body", revalidated.body.text());
+        assertEquals(asList("Accept: */*", "If-None-Match: \"v1\""), requestHeadersToService.get(1));
+        assertEquals(1, cache.getRevalidations());
+        // the 304's Cache-Control replaced the stored one, so now it's fresh for 10 secs
+        assertEquals("body", get(cache, "Accept: */*").body.text());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void varyAndNoStoreAreHonoured() {
+        CachingServiceInterop cache = new CachingServiceInterop(service, 100_000, now::get);
+        responsesFromService.add(new ServiceResponse("json", "application/json", 200, "Cache-Control: max-age=60", "Vary: Accept"));
+        responsesFromService.add(new ServiceResponse("xml", "application/xml", 200, "Cache-Control: max-age=60", "Vary: Accept"));
+        responsesFromService.add(new ServiceResponse("secret", "text/plain", 200, "Cache-Control: no-store"));
+        responsesFromService.add(new ServiceResponse("secret2", "text/plain", 200, "Cache-Control: no-store"));
+
+        assertEquals("json", get(cache, "Accept: application/json").body.text());
+        assertEquals("xml", get(cache, "Accept: application/xml").body.text());
+        assertEquals("json", get(cache, "Accept: application/json").body.text());
+        assertEquals("xml", get(cache, "Accept: application/xml").body.text());
+
+        assertEquals("secret", get(cache, "http://example.com/other", "Accept: */*").body.text());
+        assertEquals("secret2", get(cache, "http://example.com/other", "Accept: */*").body.text());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesOverflowToDiskAndComeBack() throws Exception {
+        CachingServiceInterop cache = new CachingServiceInterop(service, 600, now::get)
+                .withDiskOverflow(tmp.newFolder(), 100_000);
+        for (int i = 0; i < 3; i++) {
+            responsesFromService.add(new ServiceResponse(new byte[200], "image/png", 200, "Cache-Control: max-age=60"));
+        }
+
+        get(cache, "http://example.com/0", "Accept: */*");
+        get(cache, "http://example.com/1", "Accept: */*");
+        get(cache, "http://example.com/2", "Accept: */*");
+
+        assertTrue(cache.getMemoryBytes() <= 600);
+        assertTrue(cache.getDiskBytes() > 0);
+        assertEquals(200, get(cache, "http://example.com/0", "Accept: */*").body.byteLength());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    private ServiceResponse get(CachingServiceInterop cache, String header) {
+        return get(cache, "http://example.com/a", header);
+    }
+
+    private ServiceResponse get(CachingServiceInterop cache, String url, String header) {
+        return cache.invokeServiceEndpoint("GET", null, "", url, asList(header), NO_MANIPULATIONS, false);
+    }
+
+}
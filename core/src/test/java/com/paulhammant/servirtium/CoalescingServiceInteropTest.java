@@ -0,0 +1,134 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class CoalescingServiceInteropTest {
+
+    private static final InteractionManipulations.NullObject NO_MANIPULATIONS = new InteractionManipulations.NullObject();
+
+    @Test
+    public void concurrentIdenticalGetsShareOneUpstreamCall() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger realCalls = new AtomicInteger();
+        final AtomicInteger coalescedNotifications = new AtomicInteger();
+
+        final CoalescingServiceInterop interop = new CoalescingServiceInterop(
+                (method, body, contentType, url, headers, manipulations, lowerCase) -> {
+                    realCalls.incrementAndGet();
+                    await(release);
+                    return new ServiceResponse("hello", "text/plain", 200, "Content-Length: 5");
+                }, new ServiceMonitor() {
+                    @Override
+                    public void upstreamCallCoalesced(String method, String url) {
+                        coalescedNotifications.incrementAndGet();
+                    }
+                });
+
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        List<Future<ServiceResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(pool.submit(() -> interop.invokeServiceEndpoint("GET", null, "",
+                    "http://example.com/a", asList("Accept: */*"), NO_MANIPULATIONS, false)));
+        }
+        while (interop.getUpstreamCalls() + interop.getCoalescedCalls() < 5) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        List<ServiceResponse> responses = new ArrayList<>();
+        for (Future<ServiceResponse> f : futures) {
+            responses.add(f.get(5, TimeUnit.SECONDS));
+        }
+        pool.shutdown();
+
+        assertEquals(1, realCalls.get());
+        assertEquals(1, interop.getUpstreamCalls());
+        assertEquals(4, interop.getCoalescedCalls());
+        assertEquals(4, coalescedNotifications.get());
+        for (ServiceResponse response : responses) {
+            assertEquals("hello", response.body.text());
+            assertEquals("Content-Length: 5", response.headers.get(0));
+        }
+        assertNotSame(responses.get(0).headers, responses.get(1).headers);
+    }
+
+    @Test
+    public void differentHeadersAndNonGetsAreNotCoalesced() {
+        final AtomicInteger realCalls = new AtomicInteger();
+        final CoalescingServiceInterop interop = new CoalescingServiceInterop(
+                (method, body, contentType, url, headers, manipulations, lowerCase) -> {
+                    realCalls.incrementAndGet();
+                    return new ServiceResponse("", "text/plain", 200);
+                });
+
+        interop.invokeServiceEndpoint("GET", null, "", "http://example.com/a", asList("Accept: a/b"), NO_MANIPULATIONS, false);
+        interop.invokeServiceEndpoint("GET", null, "", "http://example.com/a", asList("Accept: c/d"), NO_MANIPULATIONS, false);
+        interop.invokeServiceEndpoint("POST", HttpBody.of("x", "text/plain"), "text/plain", "http://example.com/a", Collections.emptyList(), NO_MANIPULATIONS, false);
+
+        assertEquals(3, realCalls.get());
+        assertEquals(0, interop.getCoalescedCalls());
+    }
+
+    @Test
+    public void requestsDifferingOnlyInRequestIdsAreCoalescedUnlessThoseHeadersAreKeyedOn() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingServiceInterop interop = new CoalescingServiceInterop(blockingUntil(release));
+        concurrentGetsWithRequestIds(interop, release, "x-request-id: 1", "X-Request-Id: 2");
+        assertEquals(1, interop.getUpstreamCalls());
+        assertEquals(1, interop.getCoalescedCalls());
+
+        release = new CountDownLatch(1);
+        interop = new CoalescingServiceInterop(blockingUntil(release)).withHeadersIgnoredInKey();
+        concurrentGetsWithRequestIds(interop, release, "x-request-id: 1", "X-Request-Id: 2");
+        assertEquals(2, interop.getUpstreamCalls());
+        assertEquals(0, interop.getCoalescedCalls());
+    }
+
+    private static ServiceInteroperation blockingUntil(CountDownLatch release) {
+        return (method, body, contentType, url, headers, manipulations, lowerCase) -> {
+            await(release);
+            return new ServiceResponse("hello", "text/plain", 200);
+        };
+    }
+
+    private static void concurrentGetsWithRequestIds(CoalescingServiceInterop interop, CountDownLatch release,
+                                                     String... requestIds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(requestIds.length);
+        List<Future<ServiceResponse>> futures = new ArrayList<>();
+        for (String requestId : requestIds) {
+            futures.add(pool.submit(() -> interop.invokeServiceEndpoint("GET", null, "",
+                    "http://example.com/a", asList("Accept: */*", requestId), NO_MANIPULATIONS, false)));
+        }
+        while (interop.getUpstreamCalls() + interop.getCoalescedCalls() < requestIds.length) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (Future<ServiceResponse> f : futures) {
+            assertEquals("hello", f.get(5, TimeUnit.SECONDS).body.text());
+        }
+        pool.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
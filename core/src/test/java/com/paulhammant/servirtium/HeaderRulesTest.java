@@ -0,0 +1,40 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class HeaderRulesTest {
+
+    @Test
+    public void rulesAreAppliedInOnePassOverTheHeaders() {
+        HeaderRules rules = new HeaderRules()
+                .removeWithPrefix("X-")
+                .removeWithPrefix("Expires: Thu")
+                .remove("cookie")
+                .rename("Authorization", "X-Was-Authorization")
+                .replaceAllInValue("User-Agent", "[0-9.]+", "N");
+
+        HttpHeaders headers = HttpHeaders.of("X-Trace: 1", "Cookie: a=1", "Expires: Thu, 01 Jan 1970", "Expires: 0",
+                "AUTHORIZATION: Bearer x", "User-Agent: curl/7.64.1");
+
+        assertEquals(asList("Expires: 0", "X-Was-Authorization: Bearer x", "User-Agent: curl/N"),
+                rules.applyTo(headers));
+    }
+
+    @Test
+    public void simpleInteractionManipulationsRewriteTheHostAndRemoveByPrefix() {
+        SimpleInteractionManipulations im = new SimpleInteractionManipulations("http://localhost:8080", "https://example.com")
+                .withHeaderPrefixesToRemoveFromClientRequest("accept-encoding")
+                .withClientRequestHeaderRules(new HeaderRules().setValue("User-Agent", "servirtium"));
+
+        HttpHeaders headers = HttpHeaders.of("Host: localhost:8080", "Accept-Encoding: gzip", "User-Agent: curl");
+
+        assertEquals(asList("host: example.com", "user-agent: servirtium"),
+                im.changeHeadersForRequestToRealService(headers, true));
+        assertEquals(asList("Host: example.com", "Accept-Encoding: gzip", "User-Agent: servirtium"),
+                im.changeHeadersForRequestToRealService(headers, false));
+    }
+
+}
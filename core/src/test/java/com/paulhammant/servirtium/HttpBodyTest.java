@@ -0,0 +1,86 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HttpBodyTest {
+
+    @Test
+    public void textIsDecodedPerTheContentTypeCharsetAndLengthsAreInBytes() {
+        byte[] latin1 = "café".getBytes(StandardCharsets.ISO_8859_1);
+        HttpBody body = HttpBody.fromWire(latin1, "text/plain; charset=ISO-8859-1", StandardCharsets.UTF_8);
+
+        assertTrue(body.isText());
+        assertEquals("café", body.text());
+        assertEquals(4, body.byteLength());
+        assertSame(latin1, body.array());
+
+        HttpBody revised = body.withText("éé");
+        assertEquals(2, revised.byteLength());
+        assertEquals(StandardCharsets.ISO_8859_1, revised.charset());
+
+        assertFalse(HttpBody.fromWire(new byte[] {1, 2}, "image/png", StandardCharsets.UTF_8).isText());
+    }
+
+    @Test
+    public void equalBodiesHaveEqualHashCodes() {
+        byte[] bytes = {(byte) 0xC3, (byte) 0xA9};
+        HttpBody utf8 = HttpBody.ofEncodedText(bytes, StandardCharsets.UTF_8);
+        HttpBody latin1 = HttpBody.ofEncodedText(bytes, StandardCharsets.ISO_8859_1);
+
+        assertNotEquals(utf8, latin1);
+        assertNotEquals(utf8, HttpBody.ofBytes(bytes));
+        assertEquals(utf8, HttpBody.ofEncodedText(bytes.clone(), StandardCharsets.UTF_8));
+        assertEquals(utf8.hashCode(), HttpBody.ofEncodedText(bytes.clone(), StandardCharsets.UTF_8).hashCode());
+        assertEquals(HttpBody.ofBytes(bytes), HttpBody.ofBytes(bytes.clone()));
+    }
+
+    @Test
+    public void revisedBodiesGetAContentLengthInBytesInCopiedHeaders() {
+        ServiceResponse original = new ServiceResponse("abc", "text/plain; charset=UTF-8", 200, "content-length: 3");
+
+        ServiceResponse revised = original.withRevisedBody("été");
+
+        assertEquals("5", revised.headers.first("Content-Length"));
+        assertEquals("3", original.headers.first("Content-Length"));
+        assertSame(original, original.withRevisedBody("abc"));
+    }
+
+    @Test
+    public void streamingManipulationsReplaceAcrossChunksAndOthersGetStrings() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 8190) {
+            sb.append('x');
+        }
+        HttpBody big = HttpBody.fromWire(sb.append("SECRET and SECRET").toString().getBytes(StandardCharsets.UTF_8),
+                "application/json", StandardCharsets.UTF_8);
+
+        StreamingInteractionManipulations streaming = new StreamingInteractionManipulations() {
+            @Override
+            public BodyTransformer bodyTransformerForRequestToRealService() {
+                return BodyTransformer.replacing("SECRET", "******");
+            }
+        };
+        HttpBody redacted = StreamingInteractionManipulations.changeBodyForRequestToRealService(streaming, big);
+
+        assertTrue(redacted.text().endsWith("xx****** and ******"));
+        assertEquals(big.byteLength(), redacted.byteLength());
+
+        InteractionManipulations strings = new InteractionManipulations() {
+            @Override
+            public String changeBodyForRequestToRealService(String body) {
+                return body.toLowerCase();
+            }
+        };
+        assertEquals("abc", StreamingInteractionManipulations.changeBodyForRequestToRealService(
+                strings, HttpBody.of("ABC", "text/plain")).text());
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class HttpHeadersTest {
+
+    @Test
+    public void lookupsIgnoreCaseAndOrderIsKept() {
+        HttpHeaders headers = new HttpHeaders()
+                .add("Content-Type", "text/plain")
+                .add("Set-Cookie", "a=1")
+                .add("set-cookie", "b=2");
+
+        assertEquals("text/plain", headers.first("CONTENT-TYPE"));
+        assertEquals(asList("a=1", "b=2"), headers.all("Set-Cookie"));
+        assertEquals("a=1, b=2", headers.joined("SET-COOKIE"));
+        assertNull(headers.first("Content-Length"));
+        assertSame(headers.lowerCaseName(1), headers.lowerCaseName(2));
+
+        headers.set("Set-Cookie", "c=3");
+        assertEquals(asList("Content-Type: text/plain", "Set-Cookie: c=3"), headers);
+
+        assertEquals(1, headers.removeNamed("content-type"));
+        assertEquals(asList("Set-Cookie: c=3"), headers);
+    }
+
+    @Test
+    public void canBeChangedAsNameColonValueLines() {
+        HttpHeaders headers = HttpHeaders.of("Date: Tue, 12 Mar 2019 10:00:00 GMT", "", "DAV:   1,2");
+
+        assertEquals(2, headers.size());
+        assertEquals("Tue, 12 Mar 2019 10:00:00 GMT", headers.value(0));
+        assertEquals("DAV:   1,2", headers.get(1));
+
+        headers.add("ETag: \"x\"");
+        headers.set(0, "Age: 5");
+        headers.removeIf(h -> h.startsWith("DAV"));
+
+        assertEquals(asList("Age: 5", "ETag: \"x\""), headers);
+        assertEquals("\"x\"", headers.first("etag"));
+        assertEquals(asList("Age: 5", "ETag: \"x\""), asList(headers.copy().toLines()));
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InteractionJournalTest {
+
+    @Test
+    public void theLatestInteractionsAreKeptOldestFirst() {
+        InteractionJournal journal = new InteractionJournal(3, false);
+        for (int i = 0; i < 5; i++) {
+            add(journal, i, "GET", "http://localhost/todos/" + i, 200, false);
+        }
+
+        assertEquals("[2 GET http://localhost/todos/2 200, 3 GET http://localhost/todos/3 200, 4 GET http://localhost/todos/4 200]",
+                journal.getEntries().toString());
+        assertEquals(5, journal.getAdded());
+        assertNull(journal.getEntries().get(0).responseBody);
+
+        journal.clear();
+        assertTrue(journal.getEntries().isEmpty());
+        add(journal, 5, "GET", "http://localhost/todos/5", 200, false);
+        assertEquals(1, journal.getEntries().size());
+    }
+
+    @Test
+    public void entriesCanBeQueried() {
+        InteractionJournal journal = new InteractionJournal(10, true);
+        add(journal, 0, "GET", "http://localhost/todos", 200, false);
+        add(journal, 1, "POST", "http://localhost/todos", 201, false);
+        add(journal, 2, "GET", "http://localhost/todos/7?x=1", 200, false);
+        add(journal, 3, "DELETE", "http://localhost/todos/7", 500, true);
+
+        assertEquals(2, journal.query().method("get").count());
+        assertEquals(2, journal.query().method("GET").last().interactionNum);
+        assertEquals(0, journal.query().urlContains("/todos").first().interactionNum);
+        assertEquals(2, journal.query().urlMatches("/todos/\\d+").count());
+        assertEquals(3, journal.query().failed().first().interactionNum);
+        assertEquals(1, journal.query().status(201).count());
+        assertFalse(journal.query().method("PUT").any());
+        assertNull(journal.query().method("PUT").first());
+        assertEquals("ok 1", journal.query().method("POST").first().responseBody.text());
+        assertEquals(4, journal.query().context("ctx").count());
+        assertEquals(0, journal.query().context("other").count());
+    }
+
+    @Test
+    public void entriesKeepTheTimingsAsTheyWereWhenAdded() throws InterruptedException {
+        InteractionJournal journal = new InteractionJournal(1, false);
+        InteractionTimings timings = new InteractionTimings();
+        journal.add(0, "ctx", "GET", "http://localhost/", 200, timings, null, null, false);
+        Thread.sleep(2);
+        timings.lap(InteractionTimings.Stage.RESPONSE_WRITE);
+
+        assertEquals(0, journal.getEntries().get(0).timings.nanos(InteractionTimings.Stage.RESPONSE_WRITE));
+    }
+
+    @Test
+    public void nothingIsKeptWithNoCapacity() {
+        InteractionJournal journal = new InteractionJournal(0, false);
+        add(journal, 0, "GET", "http://localhost/", 200, false);
+        assertTrue(journal.getEntries().isEmpty());
+    }
+
+    private static void add(InteractionJournal journal, int interactionNum, String method, String url, int status, boolean failed) {
+        InteractionTimings timings = new InteractionTimings();
+        timings.setResponseBodyBytes(4);
+        journal.add(interactionNum, "ctx", method, url, status, timings, null,
+                HttpBody.of("ok " + interactionNum, "text/plain"), failed);
+    }
+}
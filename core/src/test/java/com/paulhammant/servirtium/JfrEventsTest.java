@@ -0,0 +1,39 @@
+package com.paulhammant.servirtium;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class JfrEventsTest {
+
+    @Test
+    public void replayLoadIsRecordedWhenJfrIsOn() throws IOException {
+        File file = File.createTempFile("servirtium", ".jfr");
+        file.deleteOnExit();
+        try (Recording recording = new Recording()) {
+            recording.enable("com.paulhammant.servirtium.ReplayLoad");
+            recording.start();
+            new MarkdownReplayer().setPlaybackConversation("## Interaction 0: GET /foo\n\n" +
+                    "### Request headers recorded for playback:\n\n```\n```\n\n" +
+                    "### Request body recorded for playback ():\n\n```\n```\n\n" +
+                    "### Response headers recorded for playback:\n\n```\n```\n\n" +
+                    "### Response body recorded for playback (200: text/plain):\n\n```\nhi\n```\n\n");
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath()).stream()
+                .filter(e -> e.getEventType().getName().equals("com.paulhammant.servirtium.ReplayLoad"))
+                .collect(Collectors.toList());
+        assertEquals(1, events.size());
+        assertEquals(1, events.get(0).getInt("interactions"));
+        assertEquals("no filename set", events.get(0).getString("filename"));
+    }
+}
@@ -0,0 +1,25 @@
+package com.paulhammant.servirtium;
+
+import com.github.underscore.lodash.U;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonFormatterTest {
+
+    @Test
+    public void prettifiesTheSameAsUnderscore() {
+        String json = " {\"a\":1, \"b\" : [1.50, 1e3, -0, 12345678901234567890, 1E400, {}, []],\n" +
+                "\"c\":{\"d\":null,\"e\":true},\"f\":\"x\\/y\\u00e9\\n\\u2028\\\"\", \"a\": {\"g\": \"\\u00zz\"}}";
+
+        assertEquals(U.formatJson(json), JsonFormatter.prettify(json));
+        assertEquals(U.formatJson("[]"), JsonFormatter.prettify("[]"));
+    }
+
+    @Test
+    public void canonicalFormHasKeysInOrderAndNoWhitespace() {
+        assertEquals("{\"a\":[1.0,{\"x\":1,\"y\":2}],\"b\":\"\u00e9\",\"c\":3}",
+                JsonFormatter.canonicalize("{ \"c\": 1, \"b\": \"\\u00e9\", \"a\": [ 1.0, {\"y\":2, \"x\":1} ], \"c\": 3 }"));
+    }
+
+}
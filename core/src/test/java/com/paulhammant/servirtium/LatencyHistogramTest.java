@@ -0,0 +1,38 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000_000L, histogram.getMaxNanos());
+        assertEquals(500_500_000L, histogram.getMeanNanos());
+        assertWithin(500_000_000L, histogram.getPercentileNanos(50));
+        assertWithin(990_000_000L, histogram.getPercentileNanos(99));
+        assertEquals(1_000_000_000L, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void everyValueFallsInABucketWhoseRangeContainsIt() {
+        for (long v : new long[] {0, 1, 31, 32, 33, 1000, 123_456_789L, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketFor(v);
+            assertTrue(v + " in " + bucket, v <= LatencyHistogram.highestValueIn(bucket));
+            assertTrue(v + " in " + bucket, bucket == 0 || v > LatencyHistogram.highestValueIn(bucket - 1));
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " vs " + expected, Math.abs(actual - expected) <= expected * 0.07);
+    }
+
+}
@@ -19,7 +19,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void canRecordASimpleScript() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         when(im.headerValueManipulation("ZZZZ", "ZZ")).thenReturn("Z-Z");
@@ -41,6 +41,7 @@ public class MarkdownRecorderTest {
         verify(im).headerValueManipulation("REQ_HEADER_KEY", "VAL");
         verify(im).changeSingleHeaderForRequestToRealService(eq("req_header_key: V-A-L"), any(List.class));
         verify(im).changeSingleHeaderForRequestToRealService(eq("zzzz: Z-Z"), any(List.class));
+        verify(im).changeHeadersForRequestToRealService(any(HttpHeaders.class), eq(true));
         verify(im).changeAnyHeadersForRequestToRealService(any(List.class));
         verify(im).changeBodyForRequestToRealService("REQ_BODY");
         verify(im).headerValueManipulation("RSP_HEADER_KEY", "RSP_VAL");
@@ -76,7 +77,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void canRecordASimpleScriptWithQueryString() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
 
@@ -92,6 +93,7 @@ public class MarkdownRecorderTest {
         i.complete();
         mr.finishedScript(0, false);
 
+        verify(im).changeHeadersForRequestToRealService(any(HttpHeaders.class), eq(true));
         verify(im).changeAnyHeadersForRequestToRealService(any(List.class));
         verify(im).changeBodyForRequestToRealService("REQ_BODY");
         verifyNoMoreInteractions(im, si);
@@ -168,7 +170,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void canRecordASimpleScriptWithDebugging() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         when(im.headerValueManipulation("ZZZZ", "ZZ")).thenReturn("Z-Z");
@@ -191,6 +193,7 @@ public class MarkdownRecorderTest {
         verify(im).headerValueManipulation("REQ_HEADER_KEY", "VAL");
         verify(im).changeSingleHeaderForRequestToRealService(eq("req_header_key: V-A-L"), any(List.class));
         verify(im).changeSingleHeaderForRequestToRealService(eq("zzzz: Z-Z"), any(List.class));
+        verify(im).changeHeadersForRequestToRealService(any(HttpHeaders.class), eq(true));
         verify(im).changeAnyHeadersForRequestToRealService(any(List.class));
         verify(im).changeBodyForRequestToRealService("REQ_BODY");
         verify(im).headerValueManipulation("RSP_HEADER_KEY", "RSP_VAL");
@@ -239,7 +242,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void canRecordASimpleScriptAndAlphaSortHeaders() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         when(im.headerValueManipulation("ZZZZ", "ZZ")).thenReturn("Z-Z");
@@ -262,6 +265,7 @@ public class MarkdownRecorderTest {
         verify(im).headerValueManipulation("REQ_HEADER_KEY", "VAL");
         verify(im).changeSingleHeaderForRequestToRealService(eq("req_header_key: V-A-L"), any(List.class));
         verify(im).changeSingleHeaderForRequestToRealService(eq("zzzz: Z-Z"), any(List.class));
+        verify(im).changeHeadersForRequestToRealService(any(HttpHeaders.class), eq(true));
         verify(im).changeAnyHeadersForRequestToRealService(any(List.class));
         verify(im).changeBodyForRequestToRealService("REQ_BODY");
         verify(im).headerValueManipulation("RSP_HEADER_KEY", "RSP_VAL");
@@ -297,7 +301,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void canRecordASimpleScriptWithNotes() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         when(im.changeBodyForRequestToRealService("REQ_BODY")).thenReturn("R-E-Q__B-O-D-Y");
@@ -311,6 +315,7 @@ public class MarkdownRecorderTest {
         i.complete();
         mr.finishedScript(0, false);
 
+        verify(im).changeHeadersForRequestToRealService(any(HttpHeaders.class), eq(true));
         verify(im).changeAnyHeadersForRequestToRealService(any(List.class));
         verify(im).changeBodyForRequestToRealService("REQ_BODY");
         verifyNoMoreInteractions(im, si);
@@ -335,7 +340,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void canRecordASimpleScriptWithCodeNotes() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         when(im.changeBodyForRequestToRealService("REQ_BODY")).thenReturn("R-E-Q__B-O-D-Y");
@@ -349,6 +354,7 @@ public class MarkdownRecorderTest {
         i.complete();
         mr.finishedScript(0, false);
 
+        verify(im).changeHeadersForRequestToRealService(any(HttpHeaders.class), eq(true));
         verify(im).changeAnyHeadersForRequestToRealService(any(List.class));
         verify(im).changeBodyForRequestToRealService("REQ_BODY");
         verifyNoMoreInteractions(im, si);
@@ -376,7 +382,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void canPerformBodyReplacementsInRecording() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         when(im.changeBodyForRequestToRealService("Mary had a little lamb")).thenReturn("Mary had a little lamb");
@@ -391,6 +397,7 @@ public class MarkdownRecorderTest {
         i.complete();
         mr.finishedScript(0, false);
 
+        verify(im).changeHeadersForRequestToRealService(any(HttpHeaders.class), eq(true));
         verify(im).changeAnyHeadersForRequestToRealService(any(List.class));
         verify(im).changeBodyForRequestToRealService("Mary had a little lamb");
         verifyNoMoreInteractions(im, si);
@@ -421,7 +428,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void canPerformHeaderReplacementsInRecording() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
 
@@ -439,6 +446,7 @@ public class MarkdownRecorderTest {
         i.complete();
         mr.finishedScript(0, false);
 
+        verify(im).changeHeadersForRequestToRealService(any(HttpHeaders.class), eq(true));
         verify(im).changeAnyHeadersForRequestToRealService(any(List.class));
         verify(im).changeSingleHeaderForRequestToRealService(eq("mary: had a little lamb"), any(List.class));
 
@@ -475,7 +483,7 @@ public class MarkdownRecorderTest {
 
     @Test
     public void debugChunksCanBeRecorded() {
-        final InteractionManipulations im = mock(InteractionManipulations.class);
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
         final ServiceInteroperation si = mock(ServiceInteroperation.class);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         when(im.headerValueManipulation("A", "a")).thenReturn("a");
@@ -541,6 +549,43 @@ public class MarkdownRecorderTest {
                 "\n", out.toString());
     }
 
+    @Test
+    public void upstreamPhaseTimingsAreADebugChunk() {
+        final InteractionManipulations im = spy(new InteractionManipulations.NullObject());
+        final ServiceInteroperation si = mock(ServiceInteroperation.class);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        when(si.invokeServiceEndpoint(eq("GET"), any(), any(String.class), eq("http://foo.com/bar"), any(List.class), eq(im), eq(false)))
+                .thenReturn(new ServiceResponse("", "text/plain", 200).withUpstreamTimings(
+                        new UpstreamTimings(1_000_000, 2_000_000, 0, 250_000, 10_000_000, 500_000, 11_000_000)));
 
+        MarkdownRecorder mr = new MarkdownRecorder(si, im).withExtraDebugOutput();
+        mr.setOutputStream("foo", out);
+        InteractionMonitor.Interaction i = mr.newInteraction(0, "ctx", "GET", "/bar", "http://foo.com/bar");
+        mr.getServiceResponseForRequest("GET", "http://foo.com/bar", i, false);
+        i.noteServiceResponseBody("", 200, "text/plain");
+        i.complete();
+        mr.finishedScript(0, false);
+
+        assertEquals("## Interaction 0: GET /bar\n" +
+                "\n" +
+                "### Response body recorded for playback (200: text/plain):\n" +
+                "\n" +
+                "```\n" +
+                "\n" +
+                "```\n" +
+                "\n" +
+                "### DEBUG: Upstream call timings, by phase:\n" +
+                "\n" +
+                "```\n" +
+                "dns-ms: 1.000\n" +
+                "connect-ms: 2.000\n" +
+                "tls-ms: 0.000\n" +
+                "request-write-ms: 0.250\n" +
+                "time-to-first-byte-ms: 10.000\n" +
+                "body-read-ms: 0.500\n" +
+                "total-ms: 11.000\n" +
+                "```\n" +
+                "\n", out.toString());
+    }
 
 }
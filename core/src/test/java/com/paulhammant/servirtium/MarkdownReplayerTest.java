@@ -62,10 +62,67 @@ public class MarkdownReplayerTest {
                 "not used in playback", "not used in playback");
         interaction.noteClientRequestHeadersAndBody(NO_MANIPULATIONS, Arrays.asList("foo: aaa", "bar: bbb"), "", "", "GET", false);
         ServiceResponse x = m.getServiceResponseForRequest("GET", "http://example.com/hello/how/are/you.json", interaction, false);
-        assertEquals(2, x.headers.length);
-        assertEquals("h1: one", x.headers[0]);
-        assertEquals("h2: two", x.headers[1]);
-        assertEquals("{\n   \"hello\": \"how-are-you\"\n}", x.body);
+        assertEquals(2, x.headers.size());
+        assertEquals("h1: one", x.headers.get(0));
+        assertEquals("h2: two", x.headers.get(1));
+        assertEquals("{\n   \"hello\": \"how-are-you\"\n}", x.body.text());
+    }
+
+    @Test
+    public void requestBodiesCanMatchStructurally() {
+        MarkdownReplayer m = new MarkdownReplayer().withStructuralMatchingOfRequestBodies();
+        m.setPlaybackConversation(postInteraction(0, "{\n   \"a\": 1,\n   \"b\": [true, null]\n}")
+                + postInteraction(1, "<a x=\"1\" y=\"2\">\n   <b/>\n</a>"));
+
+        final MarkdownReplayer.ReplayingInteraction interaction = m.newInteraction(0, "json", "not used in playback",
+                "not used in playback", "not used in playback");
+        interaction.noteClientRequestHeadersAndBody(NO_MANIPULATIONS, Arrays.asList("foo: aaa"), "{\"b\":[true,null],\"a\":1}", "application/json", "POST", false);
+        assertEquals("ok", m.getServiceResponseForRequest("POST", "http://example.com/hello", interaction, false).body.text());
+
+        final MarkdownReplayer.ReplayingInteraction interaction1 = m.newInteraction(1, "xml", "not used in playback",
+                "not used in playback", "not used in playback");
+        interaction1.noteClientRequestHeadersAndBody(NO_MANIPULATIONS, Arrays.asList("foo: aaa"), "<a y='2' x='1'><b></b></a>", "application/json", "POST", false);
+        assertEquals("ok", m.getServiceResponseForRequest("POST", "http://example.com/hello", interaction1, false).body.text());
+
+        final MarkdownReplayer.ReplayingInteraction interaction2 = m.newInteraction(0, "json", "not used in playback",
+                "not used in playback", "not used in playback");
+        interaction2.noteClientRequestHeadersAndBody(NO_MANIPULATIONS, Arrays.asList("foo: aaa"), "{\"b\":[null,true],\"a\":1}", "application/json", "POST", false);
+        try {
+            m.getServiceResponseForRequest("POST", "http://example.com/hello", interaction2, false);
+            fail("should have barfed");
+        } catch (AssertionError e) {
+            assertThat(e.getMessage(), equalTo("Interaction 0 (method: POST) in file 'no filename set' (context: json), body " +
+                    "from the client that should be sent to real server are not the same those previously recorded"));
+        }
+    }
+
+    private String postInteraction(int interactionNum, String requestBody) {
+        return "## Interaction " + interactionNum + ": POST /hello\n" +
+                "\n" +
+                "### Request headers recorded for playback:\n" +
+                "\n" +
+                "```\n" +
+                "foo: aaa\n" +
+                "```\n" +
+                "\n" +
+                "### Request body recorded for playback (application/json):\n" +
+                "\n" +
+                "```\n" +
+                requestBody + "\n" +
+                "```\n" +
+                "\n" +
+                "### Response headers recorded for playback:\n" +
+                "\n" +
+                "```\n" +
+                "h1: one\n" +
+                "```\n" +
+                "\n" +
+                "### Response body recorded for playback (200: text/plain):\n" +
+                "\n" +
+                "```\n" +
+                "ok\n" +
+                "```\n" +
+                "\n";
     }
 
     @Test
@@ -207,10 +264,10 @@ public class MarkdownReplayerTest {
                 "not used in playback", "not used in playback");
         interaction.noteClientRequestHeadersAndBody(NO_MANIPULATIONS, Arrays.asList("abc: aaa", "bar: bbb"), "", "", "GET", false);
         ServiceResponse x = m.getServiceResponseForRequest("GET", "http://example.com/hello/how/are/you.json", interaction, false);
-        assertEquals(2, x.headers.length);
-        assertEquals("h1: one", x.headers[0]);
-        assertEquals("h2: two", x.headers[1]);
-        assertEquals("{\n   \"hello\": \"how-are-you\"\n}", x.body);
+        assertEquals(2, x.headers.size());
+        assertEquals("h1: one", x.headers.get(0));
+        assertEquals("h2: two", x.headers.get(1));
+        assertEquals("{\n   \"hello\": \"how-are-you\"\n}", x.body.text());
     }
 
     @Test
@@ -252,9 +309,9 @@ public class MarkdownReplayerTest {
         final List<String> clientRequestHeaders = Arrays.asList("foo: aaa", "bar: bbb");
         interaction.noteClientRequestHeadersAndBody(NO_MANIPULATIONS, clientRequestHeaders, "smack", "text/plain", "GET", false);
         ServiceResponse x = m.getServiceResponseForRequest("POST", "http://example.com/hello/how/are/you.json", interaction, false);
-        assertEquals(2, x.headers.length);
-        assertEquals("h1: one", x.headers[0]);
-        assertEquals("h2: two", x.headers[1]);
-        assertEquals("{\n   \"hello\": \"how-are-you\"\n}", x.body);
+        assertEquals(2, x.headers.size());
+        assertEquals("h1: one", x.headers.get(0));
+        assertEquals("h2: two", x.headers.get(1));
+        assertEquals("{\n   \"hello\": \"how-are-you\"\n}", x.body.text());
     }
 }
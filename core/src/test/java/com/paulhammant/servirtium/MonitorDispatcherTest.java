@@ -0,0 +1,96 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MonitorDispatcherTest {
+
+    @Test
+    public void eventsFromManyThreadsAreAllRunInOrderPerThread() throws InterruptedException {
+        List<String> seen = Collections.synchronizedList(new ArrayList<>());
+        try (MonitorDispatcher dispatcher = new MonitorDispatcher(16, 1, MonitorDispatcher.WhenFull.BLOCK)) {
+            Thread[] producers = new Thread[4];
+            for (int p = 0; p < producers.length; p++) {
+                int producer = p;
+                producers[p] = new Thread(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        int event = i;
+                        dispatcher.publish(() -> seen.add(producer + ":" + event));
+                    }
+                });
+                producers[p].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            assertTrue(dispatcher.awaitDrained(10_000));
+            assertEquals(0, dispatcher.getDropped());
+        }
+        assertEquals(4000, seen.size());
+        int[] next = new int[4];
+        for (String s : seen) {
+            String[] parts = s.split(":");
+            int producer = Integer.parseInt(parts[0]);
+            assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    @Test
+    public void eventsAreDroppedWhenFullAndSoConfigured() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        try (MonitorDispatcher dispatcher = new MonitorDispatcher(4, 1, MonitorDispatcher.WhenFull.DROP)) {
+            CountDownLatch started = new CountDownLatch(1);
+            dispatcher.publish(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                ran.incrementAndGet();
+            });
+            started.await();
+            for (int i = 0; i < 4; i++) {
+                assertTrue(dispatcher.publish(ran::incrementAndGet));
+            }
+            assertFalse(dispatcher.publish(ran::incrementAndGet));
+            assertEquals(1, dispatcher.getDropped());
+            release.countDown();
+            assertTrue(dispatcher.awaitDrained(10_000));
+        }
+        assertEquals(5, ran.get());
+    }
+
+    @Test
+    public void asyncServiceMonitorPassesEventsOnBeforeFinishedScript() {
+        List<String> seen = Collections.synchronizedList(new ArrayList<>());
+        ServiceMonitor.Async monitor = new ServiceMonitor.Async(new ServiceMonitor() {
+            @Override
+            public void interactionFinished(int interactionNum, String method, String url, String context) {
+                seen.add(Thread.currentThread().getName() + " finished " + interactionNum);
+            }
+
+            @Override
+            public void finishedScript(int interactionNum, boolean failed, String context) {
+                seen.add("finishedScript " + interactionNum);
+            }
+        });
+        monitor.interactionFinished(0, "GET", "/a", "ctx");
+        monitor.interactionFinished(1, "GET", "/b", "ctx");
+        monitor.finishedScript(1, false, "ctx");
+        monitor.close();
+        monitor.interactionFinished(2, "GET", "/c", "ctx");
+
+        assertEquals("[servirtium-monitor-0 finished 0, servirtium-monitor-0 finished 1, finishedScript 1]", seen.toString());
+        assertEquals(1, monitor.getDispatcher().getDropped());
+    }
+}
@@ -0,0 +1,67 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class PerformanceSummaryMonitorTest {
+
+    @Test
+    public void pathsAreMadeIntoTemplates() {
+        assertEquals("/todos/{}/items", PerformanceSummaryMonitor.pathTemplate("http://localhost:8080/todos/123/items?x=1"));
+        assertEquals("/a/{}", PerformanceSummaryMonitor.pathTemplate("http://localhost/a/0f8fad5b-d9cb-469f-a165-70867728950e"));
+        assertEquals("/repos/svn-1.7/", PerformanceSummaryMonitor.pathTemplate("https://example.com/repos/svn-1.7/"));
+        assertEquals("/", PerformanceSummaryMonitor.pathTemplate("http://localhost:8080"));
+    }
+
+    @Test
+    public void summaryIsWrittenAtFinishedScript() throws Exception {
+        File file = File.createTempFile("servirtium-summary", ".txt");
+        file.deleteOnExit();
+        PerformanceSummaryMonitor monitor = new PerformanceSummaryMonitor().withSummaryFile(file);
+
+        for (int i = 0; i < 3; i++) {
+            InteractionTimings timings = new InteractionTimings().lap(InteractionTimings.Stage.SERVICE);
+            timings.setResponseBodyBytes(100);
+            monitor.interactionTimed(i, "GET", "http://localhost:8080/todos/" + i, timings, "ctx");
+        }
+        monitor.finishedScript(2, false, "ctx");
+
+        String summary = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertThat(summary, containsString("all: n=3 "));
+        assertThat(summary, containsString("\nservice: n=3 "));
+        assertThat(summary, containsString("\nGET /todos/{}: n=3 "));
+        assertThat(summary, containsString(" request-bytes=0 response-bytes=300\n"));
+        assertEquals(3, monitor.getStage(InteractionTimings.Stage.RESPONSE_WRITE).getCount());
+    }
+
+    @Test
+    public void resourcesUsedAreInTheSummary() {
+        ResourceUsage.enableMeasuring();
+        PerformanceSummaryMonitor monitor = new PerformanceSummaryMonitor();
+
+        ResourceUsage usage = ResourceUsage.measuringThisThread();
+        byte[][] garbage = new byte[64][];
+        for (int i = 0; i < garbage.length; i++) {
+            garbage[i] = new byte[16 * 1024];
+        }
+        usage.pause();
+        assertThat(usage.getAllocatedBytes(), greaterThanOrEqualTo(64L * 16 * 1024));
+
+        monitor.interactionResourcesUsed(0, "GET", "http://localhost:8080/todos/1", usage, "ctx");
+        monitor.finishedScriptResourcesUsed(usage, "ctx");
+
+        String summary = monitor.getSummary();
+        assertThat(summary, containsString("\nGET /todos/{}: n=0 "));
+        assertThat(summary, containsString(" response-bytes=0 mean cpu-ms="));
+        assertThat(summary, containsString(" allocated-bytes=" + usage.getAllocatedBytes() + "\nfinished-script: cpu-ms="));
+    }
+
+}
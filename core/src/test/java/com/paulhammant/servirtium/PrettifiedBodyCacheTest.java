@@ -0,0 +1,36 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrettifiedBodyCacheTest {
+
+    @Test
+    public void repeatedBodiesArePrettifiedOnceAndTheLeastRecentlyUsedGoFirst() {
+        AtomicInteger prettifications = new AtomicInteger();
+        PrettifiedBodyCache cache = new PrettifiedBodyCache(35, body -> {
+            prettifications.incrementAndGet();
+            return JsonAndXmlUtilities.prettifyDocOrNot(body);
+        });
+
+        assertEquals("{\n   \"a\": 1\n}", cache.prettify("{\"a\":1}"));
+        assertEquals("{\n   \"a\": 1\n}", cache.prettify(new String("{\"a\":1}")));
+        assertEquals(1, prettifications.get());
+        assertEquals(7 + 13, cache.getChars());
+
+        assertEquals("<b/>", cache.prettify("<b/>"));
+        assertEquals("{\n   \"a\": 1\n}", cache.prettify("{\"a\":1}"));
+        assertEquals("[\n   2\n]", cache.prettify("[2]"));
+        assertEquals(2, cache.size());
+        assertEquals("<b/>", cache.prettify("<b/>"));
+
+        assertEquals(4, prettifications.get());
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(1.0 / 3, cache.getHitRate(), 0.0001);
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.paulhammant.servirtium;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceInteropViaOkHttpTest {
+
+    private HttpServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void eachPhaseOfTheUpstreamCallIsTimed() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "hello".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+
+        ServiceResponse response = new ServiceInteropViaOkHttp().invokeServiceEndpoint("GET", null, "",
+                "http://localhost:" + server.getAddress().getPort() + "/a", asList("Accept: */*"),
+                new InteractionManipulations.NullObject(), false);
+
+        assertEquals("hello", response.body.text());
+        UpstreamTimings timings = response.upstreamTimings;
+        assertTrue(timings.hasPhases());
+        assertTrue(timings.connectNanos > 0);
+        assertEquals(0, timings.tlsNanos);
+        assertTrue(timings.requestWriteNanos > 0);
+        assertTrue(timings.timeToFirstByteNanos >= 50_000_000);
+        assertTrue(timings.bodyReadNanos >= 0);
+        assertTrue(timings.totalNanos >= timings.timeToFirstByteNanos + timings.bodyReadNanos);
+        assertTrue(timings.toLines().startsWith("dns-ms: "));
+    }
+
+    @Test
+    public void theUpstreamCallIsASpanWithinTheCurrentOneAndGetsATraceparent() throws Exception {
+        String[] traceparentSent = new String[1];
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            traceparentSent[0] = exchange.getRequestHeaders().getFirst("traceparent");
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+
+        Tracing tracing = new Tracing();
+        Tracing.Span serverSpan = tracing.startServerSpan("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01", null, "GET /a");
+        try (Tracing.Scope scope = serverSpan.makeCurrent()) {
+            new ServiceInteropViaOkHttp().invokeServiceEndpoint("GET", null, "",
+                    "http://localhost:" + server.getAddress().getPort() + "/a/123", asList("Accept: */*"),
+                    new InteractionManipulations.NullObject(), false);
+        }
+        serverSpan.end();
+
+        Tracing.Span upstream = tracing.getSpans().get(0);
+        assertEquals("CLIENT", upstream.getKind());
+        assertEquals("GET /a/{}", upstream.getName());
+        assertEquals(serverSpan.getSpanId(), upstream.getParentId());
+        assertEquals("204", upstream.getTags().get("http.status_code"));
+        assertEquals(upstream.traceparent(), traceparentSent[0]);
+        assertTrue(traceparentSent[0].startsWith("00-0af7651916cd43dd8448eb211c80319c-"));
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ServirtiumServerStatsTest {
+
+    @Test
+    public void countersCanBeSeenAndResetOverJmx() throws Exception {
+        ServirtiumServer server = new ServirtiumServer.NullObject().withMBean("stats test");
+        server.setContext("a test");
+        ServirtiumServerStats stats = server.getStats();
+        stats.requestStarted();
+        stats.requestStarted();
+        stats.requestEnded(false, 10, 200);
+        stats.requestStarted();
+        stats.requestEnded(true, 5, 0);
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.paulhammant.servirtium:type=ServirtiumServer,name=\"stats test\"");
+        assertEquals(1L, mBeanServer.getAttribute(name, "InteractionsServed"));
+        assertEquals(1L, mBeanServer.getAttribute(name, "Failures"));
+        assertEquals(1L, mBeanServer.getAttribute(name, "InFlight"));
+        assertEquals(15L, mBeanServer.getAttribute(name, "BytesIn"));
+        assertEquals(200L, mBeanServer.getAttribute(name, "BytesOut"));
+        assertEquals("a test", mBeanServer.getAttribute(name, "Context"));
+
+        mBeanServer.invoke(name, "resetCounters", null, null);
+        assertEquals(0L, mBeanServer.getAttribute(name, "InteractionsServed"));
+        assertEquals(1L, mBeanServer.getAttribute(name, "InFlight"));
+
+        server.stop();
+        assertFalse(mBeanServer.isRegistered(name));
+    }
+
+}
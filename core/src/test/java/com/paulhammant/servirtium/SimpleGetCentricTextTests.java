@@ -34,6 +34,11 @@ package com.paulhammant.servirtium;
 import com.paulhammant.servirtium.svn.SubversionInteractionManipulations;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 
 import static com.paulhammant.servirtium.JsonAndXmlUtilities.jsonEqualTo;
 import static io.restassured.RestAssured.given;
@@ -44,6 +49,7 @@ import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public abstract class SimpleGetCentricTextTests {
@@ -1163,10 +1169,147 @@ public abstract class SimpleGetCentricTextTests {
 
         checkGetOfApacheNoticeFileOverHttpViaRestAssured();
 
+        // the client can have the response before the server has journaled the interaction
+        long deadline = System.currentTimeMillis() + 1000;
+        while (servirtiumServer.getStats().getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        InteractionJournal.Entry notice = servirtiumServer.getJournal().query().method("GET").urlContains("/META-INF/NOTICE").last();
+        assertEquals(0, notice.interactionNum);
+        assertEquals(200, notice.statusCode);
+        assertEquals(1, servirtiumServer.getJournal().query().count());
+
         servirtiumServer.finishedScript();
 
     }
 
+    public void canReplayWithRecordedLatencyScaled() throws Exception {
+
+        MarkdownReplayer replayer = new MarkdownReplayer(new MarkdownReplayer.ReplayMonitor.Console())
+                .withRecordedLatency(0.5);
+        replayer.setPlaybackConversation(EXPECTED_1 + EXPECTED_2a + EXPECTED_3 +
+                "### Upstream timings recorded for playback:\n" +
+                "\n" +
+                "```\n" +
+                "time-to-first-byte-ms: 300\n" +
+                "total-ms: 500\n" +
+                "```\n" +
+                "\n");
+
+        servirtiumServer = makeServirtiumServer(new ServiceMonitor.Console(),
+                new SubversionInteractionManipulations("localhost:8080", "svn.apache.org")
+                        .withHeaderPrefixesToRemoveFromClientRequest("Accept-Encoding")
+                , replayer, 8080);
+
+        servirtiumServer.start();
+
+        long start = System.currentTimeMillis();
+        checkGetOfApacheNoticeFileOverHttpViaRestAssured();
+        long elapsed = System.currentTimeMillis() - start;
+
+        servirtiumServer.finishedScript();
+
+        assertTrue("took " + elapsed + "ms", elapsed >= 250);
+    }
+
+    public void canReplayWithABandwidthLimit() throws Exception {
+
+        // the 170 or so bytes of body at 500 bytes/sec, 20 bytes at a time
+        MarkdownReplayer replayer = new MarkdownReplayer(new MarkdownReplayer.ReplayMonitor.Console())
+                .withBandwidthLimit(500, 20);
+        replayer.setPlaybackConversation(EXPECTED_1 + EXPECTED_2a + EXPECTED_3);
+
+        servirtiumServer = makeServirtiumServer(new ServiceMonitor.Console(),
+                new SubversionInteractionManipulations("localhost:8080", "svn.apache.org")
+                        .withHeaderPrefixesToRemoveFromClientRequest("Accept-Encoding")
+                , replayer, 8080);
+
+        servirtiumServer.start();
+
+        long start = System.currentTimeMillis();
+        checkGetOfApacheNoticeFileOverHttpViaRestAssured();
+        long elapsed = System.currentTimeMillis() - start;
+
+        servirtiumServer.finishedScript();
+
+        assertTrue("took " + elapsed + "ms", elapsed >= 250);
+    }
+
+    public void canReplayWithAnInjectedServerError() throws Exception {
+
+        MarkdownReplayer replayer = new MarkdownReplayer(new MarkdownReplayer.ReplayMonitor.Console());
+        replayer.setPlaybackConversation(EXPECTED_1 + EXPECTED_2a + EXPECTED_3);
+
+        servirtiumServer = makeServirtiumServer(new ServiceMonitor.Console(),
+                new SubversionInteractionManipulations("localhost:8080", "svn.apache.org")
+                        .withHeaderPrefixesToRemoveFromClientRequest("Accept-Encoding")
+                , replayer, 8080)
+                .withFaultInjection(new FaultInjection()
+                        .withFaultForInteraction(0, FaultInjection.Fault.serverError(503)));
+
+        servirtiumServer.start();
+
+        given()
+                .header("Connection", "keep-alive")
+                .header("User-Agent", "RestAssured")
+        .when()
+                .get("/repos/asf/synapse/tags/3.0.0/modules/core/src/main/resources/META-INF/NOTICE")
+        .then()
+                .assertThat()
+                .statusCode(503)
+                .body(containsString("injected fault"));
+
+        servirtiumServer.finishedScript();
+    }
+
+    public void canReplayWithInjectedConnectionResetsAndTruncations() throws Exception {
+
+        MarkdownReplayer replayer = new MarkdownReplayer(new MarkdownReplayer.ReplayMonitor.Console());
+        String interaction = EXPECTED_1 + EXPECTED_2a + EXPECTED_3;
+        replayer.setPlaybackConversation(interaction + interaction.replace("## Interaction 0:", "## Interaction 1:"));
+
+        servirtiumServer = makeServirtiumServer(new ServiceMonitor.Console(),
+                new SubversionInteractionManipulations("localhost:8080", "svn.apache.org")
+                        .withHeaderPrefixesToRemoveFromClientRequest("Accept-Encoding")
+                , replayer, 8080)
+                .withFaultInjection(new FaultInjection()
+                        .withFaultForInteraction(0, FaultInjection.Fault.connectionReset())
+                        .withFaultForInteraction(1, FaultInjection.Fault.truncatedBody(0.5)));
+
+        servirtiumServer.start();
+
+        // Raw sockets, as HTTP client libraries would retry the GET after the reset
+
+        assertEquals("", rawGetOfApacheNoticeFile());
+
+        String truncated = rawGetOfApacheNoticeFile();
+        assertThat(truncated, containsString("Content-Length: 172"));
+        assertThat(truncated, containsString("\r\n\r\n\tApache Synapse\n"));
+        assertTrue(truncated, truncated.endsWith("Foundation\n\t\n\tThis product in"));
+
+        servirtiumServer.finishedScript();
+    }
+
+    private String rawGetOfApacheNoticeFile() throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        try (Socket socket = new Socket("localhost", 8080)) {
+            socket.getOutputStream().write(("GET /repos/asf/synapse/tags/3.0.0/modules/core/src/main/resources/META-INF/NOTICE HTTP/1.1\r\n" +
+                    "Accept: */*\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "User-Agent: RestAssured\r\n" +
+                    "Host: localhost:8080\r\n" +
+                    "\r\n").getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                received.write(b);
+            }
+        } catch (SocketException e) {
+            // reset by Servirtium
+        }
+        return new String(received.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     private void checkGetOfApacheNoticeFileOverHttpViaRestAssured() {
 
         given()
@@ -0,0 +1,109 @@
+package com.paulhammant.servirtium;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class TracingTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void onlyValidTraceparentsAreContinued() {
+        assertArrayEquals(new String[] {"0af7651916cd43dd8448eb211c80319c", "b7ad6b7169203331", "01"},
+                Tracing.parseTraceparent("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01"));
+        assertNull(Tracing.parseTraceparent(null));
+        assertNull(Tracing.parseTraceparent("00-0AF7651916CD43DD8448EB211C80319C-b7ad6b7169203331-01"));
+        assertNull(Tracing.parseTraceparent("00-00000000000000000000000000000000-b7ad6b7169203331-01"));
+        assertNull(Tracing.parseTraceparent("00-0af7651916cd43dd8448eb211c80319c-0000000000000000-01"));
+        assertNull(Tracing.parseTraceparent("ff-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01"));
+        assertNull(Tracing.parseTraceparent("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01-extra"));
+        assertEquals("01", Tracing.parseTraceparent("01-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01-extra")[2]);
+    }
+
+    @Test
+    public void serverSpansContinueTheClientsTraceOrStartOne() {
+        Tracing tracing = new Tracing();
+        Tracing.Span continued = tracing.startServerSpan("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01", "k=v", "GET /a");
+        assertEquals("0af7651916cd43dd8448eb211c80319c", continued.getTraceId());
+        assertEquals("b7ad6b7169203331", continued.getParentId());
+        assertThat(continued.traceparent(), startsWith("00-0af7651916cd43dd8448eb211c80319c-" + continued.getSpanId()));
+        assertEquals("k=v", continued.startChild("x", "CLIENT").tracestate());
+
+        Tracing.Span started = tracing.startServerSpan("garbage", null, "GET /a");
+        assertNotEquals("0af7651916cd43dd8448eb211c80319c", started.getTraceId());
+        assertNull(started.getParentId());
+        assertEquals("00-" + started.getTraceId() + "-" + started.getSpanId() + "-01", started.traceparent());
+    }
+
+    @Test
+    public void traceContextIsTakenOutOfHeaders() {
+        HttpHeaders headers = HttpHeaders.of("Accept: */*", "TraceParent: 00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01", "tracestate: k=v");
+        assertEquals(2, Tracing.removeTraceContext(headers));
+        assertEquals("[Accept: */*]", headers.toString());
+    }
+
+    @Test
+    public void finishedSpansAreZipkinJson() {
+        Tracing tracing = new Tracing("svc");
+        Tracing.Span server = tracing.startServerSpan(null, null, "GET /\"a\"").tag("http.status_code", 200);
+        Tracing.Span client = server.startChild("GET /b", "CLIENT");
+        client.end();
+        server.end();
+        server.end();
+
+        String json = tracing.toZipkinJson();
+        assertEquals(2, tracing.getSpans().size());
+        assertThat(json, startsWith("[{\"traceId\":\"" + server.getTraceId() + "\",\"id\":\"" + client.getSpanId()
+                + "\",\"parentId\":\"" + server.getSpanId() + "\",\"name\":\"GET /b\",\"kind\":\"CLIENT\",\"timestamp\":"));
+        assertThat(json, containsString(",\n{\"traceId\":\"" + server.getTraceId() + "\",\"id\":\"" + server.getSpanId()
+                + "\",\"name\":\"GET /\\\"a\\\"\",\"kind\":\"SERVER\""));
+        assertThat(json, containsString("\"localEndpoint\":{\"serviceName\":\"svc\"},\"tags\":{\"http.status_code\":\"200\"}}]\n"));
+    }
+
+    @Test
+    public void spansAreAppendedToTheSpanFileAndLetGo() throws Exception {
+        File spanFile = tmp.newFile("spans.json");
+        Tracing tracing = new Tracing("svc", 2).withSpanFile(spanFile);
+        tracing.writeSpans();
+        assertEquals("[]\n", new String(Files.readAllBytes(spanFile.toPath()), StandardCharsets.UTF_8));
+
+        tracing.startServerSpan(null, null, "GET /a").end();
+        tracing.writeSpans();
+        assertEquals(0, tracing.getSpans().size());
+        for (String path : new String[] {"/b", "/c", "/d"}) {
+            tracing.startServerSpan(null, null, "GET " + path).end();
+        }
+        assertEquals(2, tracing.getSpans().size());
+        assertEquals(1, tracing.getDropped());
+        tracing.writeSpans();
+
+        String json = new String(Files.readAllBytes(spanFile.toPath()), StandardCharsets.UTF_8);
+        assertThat(json, startsWith("[{\"traceId\""));
+        assertThat(json, containsString("\"name\":\"GET /a\""));
+        assertThat(json, containsString("}},\n{\"traceId\""));
+        assertThat(json, containsString("\"name\":\"GET /d\""));
+        assertEquals(3, json.split("\"traceId\"").length - 1);
+        assertThat(json.substring(json.length() - 4), containsString("}}]\n"));
+    }
+
+    @Test
+    public void withoutTracingThereIsNoSpan() {
+        assertEquals(Tracing.NO_SPAN, Tracing.currentSpan());
+        assertEquals(Tracing.NO_SPAN, Tracing.currentSpan().startChild("x", "CLIENT"));
+        assertNull(Tracing.NO_SPAN.traceparent());
+    }
+}
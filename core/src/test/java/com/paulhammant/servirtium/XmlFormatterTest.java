@@ -0,0 +1,44 @@
+package com.paulhammant.servirtium;
+
+import com.github.underscore.lodash.U;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class XmlFormatterTest {
+
+    @Test
+    public void prettifiesTheSameAsUnderscore() {
+        String xml = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<!-- propfind -->" +
+                "<D:multistatus xmlns:D=\"DAV:\"><D:response> <D:href>/a&amp;b</D:href>" +
+                "<D:propstat><D:prop><D:getcontentlength>12</D:getcontentlength><D:resourcetype/>" +
+                "<D:creationdate></D:creationdate><!-- x --></D:prop>\n<D:status a=\"&quot;'&lt;\">1 &gt; 0</D:status>" +
+                "</D:propstat></D:response></D:multistatus>";
+
+        assertEquals(U.formatXml(xml), XmlFormatter.prettify(xml));
+    }
+
+    @Test
+    public void leavesMixedContentAndCdataToUnderscoreAndRejectsWhatIsNotXml() {
+        String mixed = "<a>t<b>u</b><![CDATA[<v>]]></a>";
+        assertEquals(U.formatXml(mixed), XmlFormatter.prettify(mixed));
+
+        for (String notXml : new String[] {"<a>", "<a></b>", "<a/>x", "<D:a/>", "hello"}) {
+            try {
+                XmlFormatter.prettify(notXml);
+                fail(notXml);
+            } catch (IllegalArgumentException e) {
+            }
+            assertEquals(notXml, JsonAndXmlUtilities.prettifyDocOrNot(notXml));
+        }
+    }
+
+    @Test
+    public void canonicalFormIgnoresLayoutAttributeOrderAndComments() {
+        assertEquals("<D:a b=\"2\" c=\"&quot;\" xmlns:D=\"DAV:\"><e></e><f>x &amp; y</f></D:a>",
+                XmlFormatter.canonicalize("<?xml version=\"1.0\"?>\n<D:a xmlns:D=\"DAV:\" c='\"' b=\"2\">\n" +
+                        "   <!-- c -->\n   <e/>\n   <f><![CDATA[x & y]]></f>\n</D:a>"));
+    }
+
+}
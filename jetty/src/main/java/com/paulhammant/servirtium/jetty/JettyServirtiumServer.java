@@ -1,36 +1,50 @@
 package com.paulhammant.servirtium.jetty;
 
+import com.paulhammant.servirtium.FaultInjection;
+import com.paulhammant.servirtium.HttpBody;
+import com.paulhammant.servirtium.HttpHeaders;
 import com.paulhammant.servirtium.InteractionManipulations;
 import com.paulhammant.servirtium.InteractionMonitor;
+import com.paulhammant.servirtium.InteractionTimings;
+import com.paulhammant.servirtium.InteractionTimings.Stage;
+import com.paulhammant.servirtium.PacedResponse;
+import com.paulhammant.servirtium.ResourceUsage;
+import com.paulhammant.servirtium.ResponsePacing;
 import com.paulhammant.servirtium.ServiceMonitor;
 import com.paulhammant.servirtium.ServiceResponse;
 import com.paulhammant.servirtium.ServirtiumServer;
+import com.paulhammant.servirtium.StreamingInteractionManipulations;
+import com.paulhammant.servirtium.Tracing;
+import com.paulhammant.servirtium.jfr.InteractionEvent;
+import org.eclipse.jetty.io.EndPoint;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.log.Logger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static com.paulhammant.servirtium.JsonAndXmlUtilities.prettifyDocOrNot;
 
 public class JettyServirtiumServer extends ServirtiumServer {
 
     private Server jettyServer;
     boolean failed = false;
+    private final ServiceMonitor monitor;
 
     public JettyServirtiumServer(ServiceMonitor monitor, int port,
                                  InteractionManipulations interactionManipulations,
                                  InteractionMonitor interactionMonitor) {
         super(interactionManipulations, interactionMonitor);
+        this.monitor = monitor;
 
         jettyServer = new Server(port);
         // How the f*** do you turn off Embedded Jetty's logging???
@@ -50,6 +64,12 @@ public class JettyServirtiumServer extends ServirtiumServer {
                                 ServiceMonitor monitor) throws IOException {
 
         bumpInteractionNum();
+        InteractionTimings timings = new InteractionTimings();
+        AtomicBoolean ended = new AtomicBoolean();
+        ResourceUsage resources = newResourceUsage();
+        getStats().requestStarted();
+        InteractionEvent event = new InteractionEvent();
+        event.begin();
 
         String method = request.getMethod();
 
@@ -71,18 +91,22 @@ public class JettyServirtiumServer extends ServirtiumServer {
 
 //        List<String> clientRequestHeaders = new ArrayList<>();
 
+        Tracing.Span span = startServerSpan(request.getHeader(Tracing.TRACEPARENT), request.getHeader(Tracing.TRACESTATE), method, url);
+
         try {
 
             if (method.equals("CONNECT")) {
                 response.getWriter().write("Servirtium does not support CONNECT yet");
                 response.setContentType("text/plain");
                 response.setStatus(500);
+                interactionEnded(ended, getInteractionNum(), getContext(), method, url, 500, timings, event, span, null, null, true);
                 return;
             }
 
             InteractionMonitor.Interaction interaction = interactionMonitor.newInteraction(getInteractionNum(), getContext(), method, uri, url);
 
             monitor.interactionStarted(getInteractionNum(), interaction);
+            timings.lap(Stage.REQUEST_MANIPULATION);
 
             String clientRequestContentType = request.getContentType();
             if (clientRequestContentType == null) {
@@ -100,46 +124,60 @@ public class JettyServirtiumServer extends ServirtiumServer {
 //
 
             final UrlAndHeaders urlAndHeaders = prepareHeadersAndBodyForService(request, method, url,
-                    interaction, clientRequestContentType, interactionManipulations);
+                    interaction, clientRequestContentType, interactionManipulations, timings);
 
             // INTERACTION
-            ServiceResponse serviceResponse = interactionMonitor.getServiceResponseForRequest(method, urlAndHeaders.url,
-                    interaction, useLowerCaseHeaders());
-
-            serviceResponse = processHeadersAndBodyBackFromRealService(interaction, serviceResponse);
+            ServiceResponse serviceResponse;
+            try (Tracing.Scope scope = span.makeCurrent()) {
+                serviceResponse = interactionMonitor.getServiceResponseForRequest(method, urlAndHeaders.url,
+                        interaction, useLowerCaseHeaders());
+            }
+            timings.lap(Stage.SERVICE);
 
-            interaction.complete();
+            if (serviceResponse.upstreamTimings != null) {
+                monitor.upstreamCallTimed(getInteractionNum(), method, url, serviceResponse.upstreamTimings, getContext());
+            }
 
-            response.setStatus(serviceResponse.statusCode);
+            serviceResponse = processHeadersAndBodyBackFromRealService(interaction, serviceResponse, timings);
 
-            for (String header : serviceResponse.headers) {
-                int ix = header.indexOf(": ");
-                String hdrKey = header.substring(0, ix);
-                String hdrVal = header.substring(ix + 2);
-                if (!header.contains("Content-Length")) {
-                    response.setHeader(hdrKey, hdrVal);
-                }
+            interaction.complete();
+            timings.lap(Stage.RECORDING);
+
+            ResponsePacing pacing = interaction.getResponsePacing();
+            FaultInjection.Fault fault = faultForInteraction();
+            if (fault != null) {
+                monitor.faultInjected(getInteractionNum(), method, url, fault, getContext());
+                serviceResponse = fault.applyTo(serviceResponse);
+                pacing = fault.applyTo(pacing);
             }
-
-            if (serviceResponse.contentType != null) {
-                response.setContentType(serviceResponse.contentType);
+            timings.setResponseBodyBytes(serviceResponse.body.byteLength());
+            timings.lap(Stage.RESPONSE_MANIPULATION);
+            if (!pacing.isImmediate()) {
+                sendPacedResponse(request, response, serviceResponse, pacing, monitor, method, url, timings,
+                        resources.pause(), span, event, interaction, ended);
+                return;
             }
 
-            if (serviceResponse.body instanceof String) {
-                response.getWriter().write((String) serviceResponse.body);
-            } else {
-                response.getOutputStream().write((byte[]) serviceResponse.body);
-            }
+            setStatusAndHeaders(response, serviceResponse);
+
+            serviceResponse.body.writeTo(response.getOutputStream());
 
+            timings.lap(Stage.RESPONSE_WRITE);
+            interactionEnded(ended, getInteractionNum(), getContext(), method, url, serviceResponse.statusCode, timings,
+                    event, span, interaction.getClientRequestBody(), serviceResponse.body, false);
+            monitor.interactionTimed(getInteractionNum(), method, url, timings, getContext());
+            interactionResourcesUsed(monitor, getInteractionNum(), method, url, resources, getContext());
             monitor.interactionFinished(getInteractionNum(), method, url, getContext());
         } catch (AssertionError assertionError) {
             failed = true;
+            interactionEnded(ended, getInteractionNum(), getContext(), method, url, 500, timings, event, span, null, null, true);
             response.setStatus(500);
             response.setContentType("text/plain");
             response.getWriter().write("JettyServirtiumServer AssertionError: " + assertionError.getMessage());
             monitor.interactionFailed(getInteractionNum(), method, url, assertionError, getContext());
         } catch (Throwable throwable) {
             failed = true;
+            interactionEnded(ended, getInteractionNum(), getContext(), method, url, 500, timings, event, span, null, null, true);
             response.setStatus(500);
             response.setContentType("text/plain");
             response.getWriter().write("JettyServirtiumServer unexpected Throwable: " + throwable.getMessage());
@@ -151,64 +189,144 @@ public class JettyServirtiumServer extends ServirtiumServer {
         }
     }
 
-    private ServiceResponse processHeadersAndBodyBackFromRealService(InteractionMonitor.Interaction interaction, ServiceResponse serviceResponse) {
+    private void setStatusAndHeaders(HttpServletResponse response, ServiceResponse serviceResponse) {
 
-        interaction.debugOriginalServiceResponseHeaders(serviceResponse.headers);
+        response.setStatus(serviceResponse.statusCode);
 
-        ServiceResponse originalResponse = serviceResponse;
+        HttpHeaders headers = serviceResponse.headers;
+        for (int i = 0; i < headers.size(); i++) {
+            if (!headers.lowerCaseName(i).equals("content-length")) {
+                response.setHeader(headers.name(i), headers.value(i));
+            }
+        }
 
-        List<String> newHeaders = new ArrayList<>();
-        Collections.addAll(newHeaders, serviceResponse.headers);
+        if (serviceResponse.contentType != null) {
+            response.setContentType(serviceResponse.contentType);
+        }
+    }
 
-        // Change of headers back from service
+    private void sendPacedResponse(HttpServletRequest request, HttpServletResponse response,
+                                   ServiceResponse serviceResponse, ResponsePacing pacing,
+                                   ServiceMonitor monitor, String method, String url, InteractionTimings timings,
+                                   ResourceUsage resources, Tracing.Span span, InteractionEvent event,
+                                   InteractionMonitor.Interaction interaction, AtomicBoolean ended) {
 
-        ArrayList<String> newHeadersTmp = new ArrayList<>();
-        for (int i = 0; i < newHeaders.size(); i++) {
-            String headerBackFromService = newHeaders.get(i);
-            String potentiallyChangedHeader = interactionManipulations.changeSingleHeaderReturnedBackFromRealServiceForRecording(i, headerBackFromService);
-            if (potentiallyChangedHeader != null) {
-                newHeadersTmp.add(potentiallyChangedHeader);
+        final int interactionNum = getInteractionNum();
+        final String context = getContext();
+        final AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+
+        new PacedResponse(pacing, serviceResponse.body, timerWheel()) {
+
+            @Override
+            protected void sendStatusAndHeaders(int contentLength) throws IOException {
+                setStatusAndHeaders(response, serviceResponse);
+                response.setContentLength(contentLength);
+                response.flushBuffer();
             }
-        }
 
-        newHeaders = newHeadersTmp;
+            @Override
+            protected void sendBody(byte[] body, int offset, int length) throws IOException {
+                response.getOutputStream().write(body, offset, length);
+                response.getOutputStream().flush();
+            }
+
+            @Override
+            protected void complete() {
+                timings.lap(Stage.RESPONSE_WRITE);
+                monitor.interactionTimed(interactionNum, method, url, timings, context);
+                interactionResourcesUsed(monitor, interactionNum, method, url, resources, context);
+                async.complete();
+                interactionEnded(ended, interactionNum, context, method, url, serviceResponse.statusCode, timings,
+                        event, span, interaction.getClientRequestBody(), serviceResponse.body, false);
+                monitor.interactionFinished(interactionNum, method, url, context);
+            }
+
+            @Override
+            protected void resetConnection() {
+                timings.lap(Stage.RESPONSE_WRITE);
+                monitor.interactionTimed(interactionNum, method, url, timings, context);
+                interactionResourcesUsed(monitor, interactionNum, method, url, resources, context);
+                EndPoint endPoint = Request.getBaseRequest(request).getHttpChannel().getEndPoint();
+                if (endPoint.getTransport() instanceof SocketChannel) {
+                    try {
+                        // no lingering, so the client gets a RST rather than a FIN
+                        ((SocketChannel) endPoint.getTransport()).socket().setSoLinger(true, 0);
+                    } catch (IOException e) {
+                        // it's being closed anyway
+                    }
+                }
+                endPoint.close();
+                async.complete();
+                interactionEnded(ended, interactionNum, context, method, url, serviceResponse.statusCode, timings,
+                        event, span, interaction.getClientRequestBody(), serviceResponse.body, false);
+                monitor.interactionFinished(interactionNum, method, url, context);
+            }
+
+            @Override
+            protected void failed(Throwable throwable) {
+                interactionEnded(ended, interactionNum, context, method, url, serviceResponse.statusCode, timings,
+                        event, span, null, null, true);
+                JettyServirtiumServer.this.failed = true;
+                async.complete();
+                monitor.unexpectedRequestError(throwable, context);
+            }
+        }.start();
+    }
+
+    private ServiceResponse processHeadersAndBodyBackFromRealService(InteractionMonitor.Interaction interaction, ServiceResponse serviceResponse,
+                                                                     InteractionTimings timings) {
+
+        interaction.debugOriginalServiceResponseHeaders(serviceResponse.headers);
 
-        interactionManipulations.changeAnyHeadersReturnedBackFromRealServiceForRecording(newHeaders);
+        ServiceResponse originalResponse = serviceResponse;
+
+        // Change of headers back from service
 
-        if (serviceResponse.body instanceof String) {
-            serviceResponse = serviceResponse.withRevisedBody(
-                    interactionManipulations.changeBodyReturnedBackFromRealServiceForRecording((String) serviceResponse.body));
-            // recreate response
+        HttpHeaders newHeaders = interactionManipulations.changeHeadersReturnedBackFromRealServiceForRecording(serviceResponse.headers);
 
+        serviceResponse = serviceResponse.withRevisedBody(
+                StreamingInteractionManipulations.changeBodyReturnedBackFromRealServiceForRecording(
+                        interactionManipulations, serviceResponse.body));
+        // recreate response
+        timings.lap(Stage.RESPONSE_MANIPULATION);
+
+        if (serviceResponse.body.isText()) {
             if (shouldHavePrettyPrintedTextBodies()) {
-                String body = prettifyDocOrNot((String) serviceResponse.body);
-                if (!body.equals(serviceResponse.body)) {
+                String body = prettifyDocOrNot(serviceResponse.body.text());
+                if (!body.equals(serviceResponse.body.text())) {
 //                                realResponse.headers
                     serviceResponse = serviceResponse.withRevisedBody(body);
                 }
+                timings.lap(Stage.PRETTIFICATION);
             }
         }
 
-        serviceResponse = serviceResponse.withRevisedHeaders(newHeaders.toArray(new String[0]));
+        serviceResponse = serviceResponse.withRevisedHeaders(newHeaders);
+        timings.lap(Stage.RESPONSE_MANIPULATION);
 
         interaction.noteServiceResponseHeaders(serviceResponse.headers);
+        timings.lap(Stage.RECORDING);
 
         serviceResponse = serviceResponse.withRevisedHeaders(
                 interactionManipulations.changeHeadersForClientResponseAfterRecording(serviceResponse.headers));
+        timings.lap(Stage.RESPONSE_MANIPULATION);
 
         interaction.debugClientsServiceResponseHeaders(serviceResponse.headers);
 
         interaction.debugOriginalServiceResponseBody(originalResponse.body, originalResponse.statusCode, originalResponse.contentType);
 
         interaction.noteServiceResponseBody(serviceResponse.body, serviceResponse.statusCode, serviceResponse.contentType);
+        timings.lap(Stage.RECORDING);
 
 
-        if (serviceResponse.body instanceof String) {
-            final String b = (String) serviceResponse.body;
-            serviceResponse = serviceResponse.withRevisedBody(interactionManipulations.changeBodyForClientResponseAfterRecording(b));
-        }
+        serviceResponse = serviceResponse.withRevisedBody(
+                StreamingInteractionManipulations.changeBodyForClientResponseAfterRecording(
+                        interactionManipulations, serviceResponse.body));
+        timings.lap(Stage.RESPONSE_MANIPULATION);
 
         interaction.debugClientsServiceResponseBody(originalResponse.body, originalResponse.statusCode, originalResponse.contentType);
+        timings.lap(Stage.RECORDING);
 
         return serviceResponse;
     }
@@ -226,44 +344,36 @@ public class JettyServirtiumServer extends ServirtiumServer {
     private UrlAndHeaders prepareHeadersAndBodyForService(HttpServletRequest request, String method, String url,
                                                    InteractionMonitor.Interaction interaction,
                                                    String clientRequestContentType,
-                                                   InteractionManipulations interactionManipulations) throws IOException {
+                                                   InteractionManipulations interactionManipulations,
+                                                   InteractionTimings timings) throws IOException {
         Enumeration<String> hdrs = request.getHeaderNames();
 
         ServletInputStream is = request.getInputStream();
 
-        Object clientRequestBody = null;
+        HttpBody clientRequestBody = null;
 
         if (is.available() > 0) {
-
-            if (isText(clientRequestContentType)) {
-                clientRequestBody = null;
-                String characterEncoding = request.getCharacterEncoding();
-                if (characterEncoding == null) {
-                    characterEncoding = "utf-8";
-                }
-                try (Scanner scanner = new Scanner(is, characterEncoding)) {
-                    clientRequestBody = scanner.useDelimiter("\\A").next();
-                }
-                if (shouldHavePrettyPrintedTextBodies() && clientRequestBody != null) {
-                    clientRequestBody = prettifyDocOrNot((String) clientRequestBody);
-                }
-            } else {
-                byte[] targetArray = new byte[is.available()];
-                is.read(targetArray);
-                clientRequestBody = targetArray;
+            clientRequestBody = HttpBody.fromWire(readFully(is), clientRequestContentType, StandardCharsets.UTF_8);
+            timings.setRequestBodyBytes(clientRequestBody.byteLength());
+            timings.lap(Stage.BODY_READ);
+            if (clientRequestBody.isText() && shouldHavePrettyPrintedTextBodies()) {
+                clientRequestBody = clientRequestBody.withText(prettifyDocOrNot(clientRequestBody.text()));
+                timings.lap(Stage.PRETTIFICATION);
             }
         }
 
-        List<String> clientRequestHeaders = new ArrayList<>();
+        HttpHeaders clientRequestHeaders = new HttpHeaders();
          while (hdrs.hasMoreElements()) {
             String hdrName = hdrs.nextElement();
             Enumeration<String> hdrVals = request.getHeaders(hdrName);
             while (hdrVals.hasMoreElements()) {
                 String s = hdrVals.nextElement();
-                clientRequestHeaders.add(hdrName + ": " + s);
+                clientRequestHeaders.add(hdrName, s);
             }
         }
 
+        removeTraceContext(clientRequestHeaders);
+
         List<String> clientRequestHeaders2 = interaction.noteClientRequestHeadersAndBody(interactionManipulations, clientRequestHeaders, clientRequestBody, clientRequestContentType, method, useLowerCaseHeaders());
 
         final String chgdURL = interactionManipulations.changeUrlForRequestToRealService(url);
@@ -275,14 +385,23 @@ public class JettyServirtiumServer extends ServirtiumServer {
             interaction.noteChangedResourceForRequestToClient(url.substring(ixU), chgdURL.substring(ixC));
         }
 
+        timings.lap(Stage.REQUEST_MANIPULATION);
+
         return new UrlAndHeaders(chgdURL, clientRequestHeaders2);
     }
 
     public ServirtiumServer start() throws Exception {
         jettyServer.start();
+        startAdminServer();
         return this;
     }
 
+    @Override
+    protected void resetInteractionNumber() {
+        super.resetInteractionNumber();
+        failed = false;
+    }
+
     public void stop() {
         try {
             interactionMonitor.finishedScript(getInteractionNum(), failed); // just in case
@@ -292,12 +411,20 @@ public class JettyServirtiumServer extends ServirtiumServer {
                 jettyServer.stop();
             } catch (Exception e) {
                 throw new RuntimeException(e);
+            } finally {
+                stopTimerWheel();
+                unregisterMBean();
+                stopAdminServer();
             }
         }
     }
 
     public void finishedScript() {
-        interactionMonitor.finishedScript(getInteractionNum(), failed);
+        try {
+            interactionMonitorFinishedScript(monitor, failed);
+        } finally {
+            monitor.finishedScript(getInteractionNum(), failed, getContext());
+        }
     }
 
     public static void disableJettyLogging() {
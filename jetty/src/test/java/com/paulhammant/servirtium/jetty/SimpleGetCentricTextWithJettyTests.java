@@ -85,4 +85,24 @@ public class SimpleGetCentricTextWithJettyTests extends SimpleGetCentricTextTest
     public void canReplayASimpleGetFromApachesSubversion() throws Exception {
         super.canReplayASimpleGetFromApachesSubversion();
     }
+
+    @Override @Test
+    public void canReplayWithRecordedLatencyScaled() throws Exception {
+        super.canReplayWithRecordedLatencyScaled();
+    }
+
+    @Override @Test
+    public void canReplayWithABandwidthLimit() throws Exception {
+        super.canReplayWithABandwidthLimit();
+    }
+
+    @Override @Test
+    public void canReplayWithAnInjectedServerError() throws Exception {
+        super.canReplayWithAnInjectedServerError();
+    }
+
+    @Override @Test
+    public void canReplayWithInjectedConnectionResetsAndTruncations() throws Exception {
+        super.canReplayWithInjectedConnectionResetsAndTruncations();
+    }
 }
@@ -0,0 +1,233 @@
+package com.paulhammant.servirtium.loadgen;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.paulhammant.servirtium.ServirtiumServer.isText;
+
+/**
+ * Re-issues the client requests held in Markdown recordings against a target service - a real
+ * one, or a local stand-in - so that recordings made for contract tests can double as a
+ * performance regression workload. Each recording is played in order as one conversation, many
+ * conversations at once, and every response is compared with the one recorded.
+ * <p>
+ * Recordings whose bodies were changed by InteractionManipulations or replacements in recording
+ * (redactions, prettification) will show as mismatches where those changes were made.
+ */
+public class LoadGenerator {
+
+    private static final List<String> HEADERS_NOT_RESENT = Arrays.asList(
+            "host", "content-length", "connection", "transfer-encoding", "accept-encoding");
+
+    private final String target;
+    private final Map<String, List<RecordedInteraction>> recordings = new LinkedHashMap<>();
+    private int concurrency = 1;
+    private int iterations = 1;
+    private double requestsPerSecond;
+    private int timeout = 30; // secs
+
+    /**
+     * @param target scheme, host and port to send the recorded requests to, like "http://localhost:8080"
+     */
+    public LoadGenerator(String target) {
+        this.target = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+    }
+
+    public LoadGenerator withRecording(String name, String markdown) {
+        recordings.put(name, RecordedInteraction.fromRecording(markdown));
+        return this;
+    }
+
+    public LoadGenerator withRecordingFile(String filename) {
+        try {
+            return withRecording(Paths.get(filename).getFileName().toString(),
+                    new String(Files.readAllBytes(Paths.get(filename)), "UTF-8"));
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Can't read contents of " + filename, e);
+        }
+    }
+
+    /**
+     * @param concurrency how many recordings to play at the same time
+     * @return this
+     */
+    public LoadGenerator withConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param iterations how many times to play each recording
+     * @return this
+     */
+    public LoadGenerator withIterations(int iterations) {
+        this.iterations = iterations;
+        return this;
+    }
+
+    /**
+     * Pace requests to a steady overall rate, rather than as fast as responses come back. Latencies
+     * are then measured from when each request was due, so that a service that stalls is not
+     * flattered by the requests that queued up behind it.
+     * @param requestsPerSecond the rate across all concurrent plays, or 0 for as fast as possible
+     * @return this
+     */
+    public LoadGenerator withRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+        return this;
+    }
+
+    /**
+     * @param timeout for connect, write and read, in seconds
+     * @return this
+     */
+    public LoadGenerator withTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Usage: LoadGenerator target concurrency iterations requestsPerSecond recording.md [recording2.md ...]
+     */
+    public static void main(String[] args) {
+        if (args.length < 5) {
+            System.err.println("Usage: LoadGenerator <target> <concurrency> <iterations> <requestsPerSecond, 0 for unpaced> <recording.md>...");
+            System.exit(1);
+        }
+        LoadGenerator loadGenerator = new LoadGenerator(args[0])
+                .withConcurrency(Integer.parseInt(args[1]))
+                .withIterations(Integer.parseInt(args[2]))
+                .withRequestsPerSecond(Double.parseDouble(args[3]));
+        for (int i = 4; i < args.length; i++) {
+            loadGenerator.withRecordingFile(args[i]);
+        }
+        LoadReport report = loadGenerator.run();
+        System.out.print(report);
+        System.exit(report.getMismatches() + report.getErrors() == 0 ? 0 : 2);
+    }
+
+    public LoadReport run() {
+        List<String> keys = new ArrayList<>();
+        ConcurrentLinkedQueue<String> plays = new ConcurrentLinkedQueue<>();
+        for (Map.Entry<String, List<RecordedInteraction>> recording : recordings.entrySet()) {
+            for (RecordedInteraction interaction : recording.getValue()) {
+                keys.add(key(recording.getKey(), interaction));
+            }
+        }
+        for (int i = 0; i < iterations; i++) {
+            plays.addAll(recordings.keySet());
+        }
+
+        final LoadReport report = new LoadReport(keys);
+        final OkHttpClient client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(concurrency, 1, TimeUnit.MINUTES))
+                .connectTimeout(timeout, TimeUnit.SECONDS)
+                .readTimeout(timeout, TimeUnit.SECONDS)
+                .writeTimeout(timeout, TimeUnit.SECONDS)
+                .followRedirects(false)
+                .build();
+        final AtomicLong issued = new AtomicLong();
+        final long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            pool.execute(() -> {
+                String name;
+                while ((name = plays.poll()) != null) {
+                    for (RecordedInteraction interaction : recordings.get(name)) {
+                        long due = System.nanoTime();
+                        if (requestsPerSecond > 0) {
+                            due = start + (long) (issued.getAndIncrement() * 1_000_000_000.0 / requestsPerSecond);
+                            long wait;
+                            while ((wait = due - System.nanoTime()) > 0) {
+                                LockSupport.parkNanos(wait);
+                            }
+                        }
+                        play(client, key(name, interaction), interaction, due, report);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        client.connectionPool().evictAll();
+        report.finished(System.nanoTime() - start);
+        return report;
+    }
+
+    private void play(OkHttpClient client, String key, RecordedInteraction interaction, long due, LoadReport report) {
+        try (Response response = client.newCall(request(interaction)).execute()) {
+            ResponseBody body = response.body();
+            String contentType = body.contentType() == null ? "" : body.contentType().toString();
+            Object responseBody = isText(contentType) ? body.string() : body.bytes();
+            report.record(key, System.nanoTime() - due);
+            if (response.code() != interaction.statusCode) {
+                report.mismatch(key, "status " + response.code() + " not " + interaction.statusCode);
+            } else if (!sameBody(interaction.responseBody, responseBody)) {
+                report.mismatch(key, "body differs from the recording");
+            }
+        } catch (IOException | RuntimeException e) {
+            report.error(key, e);
+        }
+    }
+
+    private Request request(RecordedInteraction interaction) {
+        Headers.Builder headers = new Headers.Builder();
+        for (String header : interaction.requestHeaders) {
+            int ix = header.indexOf(":");
+            if (ix > 0 && !HEADERS_NOT_RESENT.contains(header.substring(0, ix).trim().toLowerCase())) {
+                headers.add(header);
+            }
+        }
+        RequestBody body = null;
+        if (!interaction.method.equals("GET") && !interaction.method.equals("HEAD")) {
+            MediaType mediaType = interaction.requestContentType.isEmpty() ? null : MediaType.parse(interaction.requestContentType);
+            body = interaction.requestBody instanceof byte[]
+                    ? RequestBody.create(mediaType, (byte[]) interaction.requestBody)
+                    : RequestBody.create(mediaType, interaction.requestBody == null ? "" : (String) interaction.requestBody);
+        }
+        return new Request.Builder().url(target + interaction.path).method(interaction.method, body)
+                .headers(headers.build()).build();
+    }
+
+    private static boolean sameBody(Object recorded, Object actual) {
+        if (recorded instanceof byte[] && actual instanceof byte[]) {
+            return Arrays.equals((byte[]) recorded, (byte[]) actual);
+        }
+        if (recorded instanceof String && actual instanceof String) {
+            return recorded.equals(actual);
+        }
+        return false;
+    }
+
+    private static String key(String recordingName, RecordedInteraction interaction) {
+        return recordingName + "#" + interaction.interactionNum + " " + interaction.method + " " + interaction.path;
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.paulhammant.servirtium.loadgen;
+
+import com.paulhammant.servirtium.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What happened in a LoadGenerator run: latencies overall and per recorded interaction, and how
+ * many responses differed from the recording or failed altogether.
+ */
+public class LoadReport {
+
+    private static final int MAX_FAILURES_KEPT = 20;
+
+    private final LatencyHistogram overall = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> byInteraction = new LinkedHashMap<>();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private volatile long elapsedNanos;
+
+    LoadReport(List<String> interactionKeys) {
+        for (String key : interactionKeys) {
+            byInteraction.put(key, new LatencyHistogram());
+        }
+    }
+
+    void record(String interactionKey, long latencyNanos) {
+        overall.record(latencyNanos);
+        byInteraction.get(interactionKey).record(latencyNanos);
+    }
+
+    void mismatch(String interactionKey, String description) {
+        mismatches.incrementAndGet();
+        keep(interactionKey + ": " + description);
+    }
+
+    void error(String interactionKey, Throwable throwable) {
+        errors.incrementAndGet();
+        keep(interactionKey + ": " + throwable);
+    }
+
+    private void keep(String failure) {
+        if (failures.size() < MAX_FAILURES_KEPT) {
+            failures.add(failure);
+        }
+    }
+
+    void finished(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public LatencyHistogram getOverall() {
+        return overall;
+    }
+
+    /**
+     * @return a histogram per interaction, keyed "recording#n METHOD /path", in recording order
+     */
+    public Map<String, LatencyHistogram> getByInteraction() {
+        return Collections.unmodifiableMap(byInteraction);
+    }
+
+    public long getRequests() {
+        return overall.getCount() + errors.get();
+    }
+
+    /**
+     * @return responses whose status or body differed from the recording
+     */
+    public long getMismatches() {
+        return mismatches.get();
+    }
+
+    /**
+     * @return requests that got no response at all
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return the first few mismatches and errors, described
+     */
+    public List<String> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests: ").append(getRequests())
+                .append(", mismatches: ").append(getMismatches())
+                .append(", errors: ").append(getErrors())
+                .append(", elapsed: ").append(elapsedNanos / 1_000_000).append("ms\n");
+        sb.append("all: ").append(overall).append("\n");
+        for (Map.Entry<String, LatencyHistogram> entry : byInteraction.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        for (String failure : getFailures()) {
+            sb.append("FAILED ").append(failure).append("\n");
+        }
+        return sb.toString();
+    }
+
+}
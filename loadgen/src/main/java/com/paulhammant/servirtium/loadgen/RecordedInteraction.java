@@ -0,0 +1,113 @@
+package com.paulhammant.servirtium.loadgen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static com.paulhammant.servirtium.MarkdownReplayer.SERVIRTIUM_INTERACTION;
+
+/**
+ * One interaction of a Markdown recording, as needed to send its request again and check the
+ * response: the client's request, and the status and body that the real service gave back.
+ */
+public class RecordedInteraction {
+
+    private static final String REQUEST_HEADERS = "### Request headers recorded for playback";
+    private static final String REQUEST_BODY = "### Request body recorded for playback";
+    private static final String RESPONSE_BODY = "### Response body recorded for playback";
+    private static final String BASE64_REQUEST_BODY = "//SERVIRTIUM+Base64: ";
+
+    public final int interactionNum;
+    public final String method;
+    public final String path;
+    public final List<String> requestHeaders;
+    public final String requestContentType;
+    public final Object requestBody;
+    public final int statusCode;
+    public final Object responseBody;
+
+    RecordedInteraction(int interactionNum, String method, String path, List<String> requestHeaders,
+                        String requestContentType, Object requestBody, int statusCode, Object responseBody) {
+        this.interactionNum = interactionNum;
+        this.method = method;
+        this.path = path;
+        this.requestHeaders = requestHeaders;
+        this.requestContentType = requestContentType;
+        this.requestBody = requestBody;
+        this.statusCode = statusCode;
+        this.responseBody = responseBody;
+    }
+
+    /**
+     * @param recording the Markdown of a whole recording, as written by MarkdownRecorder
+     * @return its interactions, in order
+     */
+    public static List<RecordedInteraction> fromRecording(String recording) {
+        List<RecordedInteraction> interactions = new ArrayList<>();
+        int ctr = 0;
+        int start = recording.indexOf(SERVIRTIUM_INTERACTION + ctr + ":");
+        while (start != -1) {
+            int end = recording.indexOf(SERVIRTIUM_INTERACTION + (ctr + 1) + ":", start);
+            interactions.add(parse(ctr, recording.substring(start, end == -1 ? recording.length() : end)));
+            start = end;
+            ctr++;
+        }
+        return interactions;
+    }
+
+    private static RecordedInteraction parse(int interactionNum, String text) {
+        String[] methodAndPath = text.substring(text.indexOf(":") + 1, text.indexOf("\n")).trim().split(" ", 2);
+
+        List<String> headers = Collections.emptyList();
+        int ix = text.indexOf(REQUEST_HEADERS);
+        if (ix != -1) {
+            String block = codeBlock(text, ix);
+            headers = block.isEmpty() ? Collections.emptyList() : Arrays.asList(block.split("\n"));
+        }
+
+        String requestContentType = "";
+        Object requestBody = null;
+        ix = text.indexOf(REQUEST_BODY);
+        if (ix != -1) {
+            requestContentType = inParens(text, ix);
+            String block = codeBlock(text, ix);
+            if (block.startsWith(BASE64_REQUEST_BODY)) {
+                requestBody = Base64.getDecoder().decode(block.substring(BASE64_REQUEST_BODY.length()).replace("\n", ""));
+            } else {
+                requestBody = block;
+            }
+        }
+
+        ix = text.indexOf(RESPONSE_BODY);
+        if (ix == -1) {
+            throw new IllegalArgumentException("Interaction " + interactionNum + " has no '" + RESPONSE_BODY + "' section");
+        }
+        String[] statusAndContentType = inParens(text, ix).split(": ", 2);
+        String block = codeBlock(text, ix);
+        Object responseBody = statusAndContentType.length > 1 && statusAndContentType[1].endsWith("- Base64 below")
+                ? Base64.getDecoder().decode(block.replace("\n", ""))
+                : block;
+
+        return new RecordedInteraction(interactionNum, methodAndPath[0], methodAndPath.length > 1 ? methodAndPath[1] : "/",
+                headers, requestContentType, requestBody, Integer.parseInt(statusAndContentType[0].trim()), responseBody);
+    }
+
+    private static String inParens(String text, int ix) {
+        String line = text.substring(ix, text.indexOf("\n", ix));
+        return line.substring(line.indexOf("(") + 1, line.lastIndexOf(")"));
+    }
+
+    private static String codeBlock(String text, int ix) {
+        int start = text.indexOf("\n```\n", ix);
+        int end = text.indexOf("\n```\n", start + 4);
+        return start + 5 > end ? "" : text.substring(start + 5, end);
+    }
+
+    @Override
+    public String toString() {
+        return "Interaction " + interactionNum + ": " + method + " " + path;
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.paulhammant.servirtium.loadgen;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+
+    private static final String RECORDING = "## Interaction 0: GET /greeting\n" +
+            "\n" +
+            "### Request headers recorded for playback:\n" +
+            "\n" +
+            "```\n" +
+            "Accept: text/plain\n" +
+            "Host: example.com\n" +
+            "```\n" +
+            "\n" +
+            "### Request body recorded for playback ():\n" +
+            "\n" +
+            "```\n" +
+            "\n" +
+            "```\n" +
+            "\n" +
+            "### Response headers recorded for playback:\n" +
+            "\n" +
+            "```\n" +
+            "Content-Type: text/plain\n" +
+            "```\n" +
+            "\n" +
+            "### Response body recorded for playback (200: text/plain):\n" +
+            "\n" +
+            "```\n" +
+            "Hello\n" +
+            "```\n" +
+            "\n" +
+            "## Interaction 1: POST /echo\n" +
+            "\n" +
+            "### Request headers recorded for playback:\n" +
+            "\n" +
+            "```\n" +
+            "Content-Type: text/plain\n" +
+            "```\n" +
+            "\n" +
+            "### Request body recorded for playback (text/plain):\n" +
+            "\n" +
+            "```\n" +
+            "ping\n" +
+            "```\n" +
+            "\n" +
+            "### Response headers recorded for playback:\n" +
+            "\n" +
+            "```\n" +
+            "Content-Type: text/plain\n" +
+            "```\n" +
+            "\n" +
+            "### Response body recorded for playback (201: text/plain):\n" +
+            "\n" +
+            "```\n" +
+            "ping\n" +
+            "```\n" +
+            "\n";
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile String greeting = "Hello";
+
+    @Before
+    public void startStandInService() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/greeting", exchange -> {
+            requests.incrementAndGet();
+            respond(exchange, 200, greeting.getBytes(StandardCharsets.UTF_8));
+        });
+        server.createContext("/echo", exchange -> {
+            requests.incrementAndGet();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream is = exchange.getRequestBody()) {
+                int b;
+                while ((b = is.read()) != -1) {
+                    body.write(b);
+                }
+            }
+            respond(exchange, 201, body.toByteArray());
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+    }
+
+    @After
+    public void stopStandInService() {
+        server.stop(0);
+    }
+
+    @Test
+    public void recordedInteractionsAreParsedFromTheMarkdown() {
+        List<RecordedInteraction> interactions = RecordedInteraction.fromRecording(RECORDING);
+
+        assertEquals(2, interactions.size());
+        assertEquals("GET", interactions.get(0).method);
+        assertEquals("/greeting", interactions.get(0).path);
+        assertEquals("Hello", interactions.get(0).responseBody);
+        assertEquals("POST", interactions.get(1).method);
+        assertEquals("ping", interactions.get(1).requestBody);
+        assertEquals("text/plain", interactions.get(1).requestContentType);
+        assertEquals(201, interactions.get(1).statusCode);
+    }
+
+    @Test
+    public void recordingsArePlayedConcurrentlyAndResponsesCompared() {
+        LoadReport report = new LoadGenerator("http://localhost:" + server.getAddress().getPort())
+                .withRecording("hello", RECORDING)
+                .withConcurrency(4)
+                .withIterations(10)
+                .run();
+
+        assertEquals(report.toString(), 20, report.getRequests());
+        assertEquals(20, requests.get());
+        assertEquals(report.toString(), 0, report.getMismatches());
+        assertEquals(0, report.getErrors());
+        assertEquals(10, report.getByInteraction().get("hello#0 GET /greeting").getCount());
+        assertEquals(10, report.getByInteraction().get("hello#1 POST /echo").getCount());
+    }
+
+    @Test
+    public void responsesThatDifferFromTheRecordingAreReported() {
+        greeting = "Goodbye";
+
+        LoadReport report = new LoadGenerator("http://localhost:" + server.getAddress().getPort())
+                .withRecording("hello", RECORDING)
+                .withIterations(3)
+                .withRequestsPerSecond(50)
+                .run();
+
+        assertEquals(3, report.getMismatches());
+        assertTrue(report.getFailures().get(0), report.getFailures().get(0).startsWith("hello#0 GET /greeting: body differs"));
+        // six requests at 50 a second
+        assertTrue(report.getElapsedNanos() >= 100_000_000);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+}
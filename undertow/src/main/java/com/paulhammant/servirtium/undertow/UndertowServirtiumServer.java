@@ -1,34 +1,46 @@
 package com.paulhammant.servirtium.undertow;
 
+import com.paulhammant.servirtium.FaultInjection;
+import com.paulhammant.servirtium.HttpBody;
+import com.paulhammant.servirtium.HttpHeaders;
 import com.paulhammant.servirtium.InteractionManipulations;
 import com.paulhammant.servirtium.InteractionMonitor;
+import com.paulhammant.servirtium.InteractionTimings;
+import com.paulhammant.servirtium.InteractionTimings.Stage;
+import com.paulhammant.servirtium.PacedResponse;
+import com.paulhammant.servirtium.ResourceUsage;
+import com.paulhammant.servirtium.ResponsePacing;
 import com.paulhammant.servirtium.ServiceMonitor;
 import com.paulhammant.servirtium.ServiceResponse;
 import com.paulhammant.servirtium.ServirtiumServer;
+import com.paulhammant.servirtium.StreamingInteractionManipulations;
+import com.paulhammant.servirtium.Tracing;
+import com.paulhammant.servirtium.jfr.InteractionEvent;
 import io.undertow.Undertow;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.BlockingHandler;
 import io.undertow.util.HeaderValues;
 import io.undertow.util.Headers;
 import io.undertow.util.HttpString;
+import io.undertow.util.SameThreadExecutor;
+import org.xnio.IoUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Scanner;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static com.paulhammant.servirtium.JsonAndXmlUtilities.prettifyDocOrNot;
 
 public class UndertowServirtiumServer extends ServirtiumServer {
 
     private Undertow undertowServer;
     private boolean failed = false;
+    private final ServiceMonitor monitor;
 
     public UndertowServirtiumServer(ServiceMonitor monitor, int port,
                                     InteractionManipulations interactionManipulations, InteractionMonitor interactionMonitor) {
         super(interactionManipulations, interactionMonitor);
+        this.monitor = monitor;
 
         undertowServer = Undertow.builder()
                 .addHttpListener(port, "localhost")
@@ -39,6 +51,12 @@ public class UndertowServirtiumServer extends ServirtiumServer {
 
     private void handleExchange(HttpServerExchange exchange, ServiceMonitor monitor) throws IOException {
         bumpInteractionNum();
+        InteractionTimings timings = new InteractionTimings();
+        AtomicBoolean ended = new AtomicBoolean();
+        ResourceUsage resources = newResourceUsage();
+        getStats().requestStarted();
+        InteractionEvent event = new InteractionEvent();
+        event.begin();
 
         String method = exchange.getRequestMethod().toString();
 
@@ -59,7 +77,10 @@ public class UndertowServirtiumServer extends ServirtiumServer {
         url = (url.startsWith("http://") || url.startsWith("https://")) ? url : "http://" + exchange.getHostAndPort() + uri;
 
         //String clientRequestBody = "";
-        List<String> clientRequestHeaders = new ArrayList<>();
+        HttpHeaders clientRequestHeaders = new HttpHeaders();
+
+        Tracing.Span span = startServerSpan(exchange.getRequestHeaders().getFirst(Tracing.TRACEPARENT),
+                exchange.getRequestHeaders().getFirst(Tracing.TRACESTATE), method, url);
 
         try {
 
@@ -67,12 +88,14 @@ public class UndertowServirtiumServer extends ServirtiumServer {
                 exchange.getResponseSender().send("Servirtium does not support CONNECT yet");
                 exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, "text/plain");
                 exchange.setStatusCode(500);
+                interactionEnded(ended, getInteractionNum(), getContext(), method, url, 500, timings, event, span, null, null, true);
                 return;
             }
 
             InteractionMonitor.Interaction interaction = interactionMonitor.newInteraction(getInteractionNum(), getContext(), method, uri, url);
 
             monitor.interactionStarted(getInteractionNum(), interaction);
+            timings.lap(Stage.REQUEST_MANIPULATION);
 
             final HeaderValues headerValues = exchange.getRequestHeaders().get(Headers.CONTENT_TYPE_STRING);
             String clientRequestContentType;
@@ -95,44 +118,60 @@ public class UndertowServirtiumServer extends ServirtiumServer {
 //
 
             final String requestUrl = prepareHeadersAndBodyForService(exchange, method, url, clientRequestHeaders,
-                    interaction, clientRequestContentType, interactionManipulations);
+                    interaction, clientRequestContentType, interactionManipulations, timings);
 
             // INTERACTION
-            ServiceResponse serviceResponse = interactionMonitor.getServiceResponseForRequest(method, requestUrl,
-                    interaction, useLowerCaseHeaders());
-
-            serviceResponse = processHeadersAndBodyBackFromService(interaction, serviceResponse, interactionManipulations);
+            ServiceResponse serviceResponse;
+            try (Tracing.Scope scope = span.makeCurrent()) {
+                serviceResponse = interactionMonitor.getServiceResponseForRequest(method, requestUrl,
+                        interaction, useLowerCaseHeaders());
+            }
+            timings.lap(Stage.SERVICE);
 
-            interaction.complete();
+            if (serviceResponse.upstreamTimings != null) {
+                monitor.upstreamCallTimed(getInteractionNum(), method, url, serviceResponse.upstreamTimings, getContext());
+            }
 
-            exchange.setStatusCode(serviceResponse.statusCode);
+            serviceResponse = processHeadersAndBodyBackFromService(interaction, serviceResponse, interactionManipulations, timings);
 
-            for (String header : serviceResponse.headers) {
-                int ix = header.indexOf(": ");
-                String hdrKey = header.substring(0, ix);
-                String hdrVal = header.substring(ix + 2);
-                exchange.getResponseHeaders().add(new HttpString(hdrKey), hdrVal);
+            interaction.complete();
+            timings.lap(Stage.RECORDING);
+
+            ResponsePacing pacing = interaction.getResponsePacing();
+            FaultInjection.Fault fault = faultForInteraction();
+            if (fault != null) {
+                monitor.faultInjected(getInteractionNum(), method, url, fault, getContext());
+                serviceResponse = fault.applyTo(serviceResponse);
+                pacing = fault.applyTo(pacing);
             }
-
-            if (serviceResponse.contentType != null) {
-                exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, serviceResponse.contentType);
+            timings.setResponseBodyBytes(serviceResponse.body.byteLength());
+            timings.lap(Stage.RESPONSE_MANIPULATION);
+            if (!pacing.isImmediate()) {
+                sendPacedResponse(exchange, serviceResponse, pacing, monitor, method, url, timings,
+                        resources.pause(), span, event, interaction, ended);
+                return;
             }
 
-            if (serviceResponse.body instanceof String) {
-                exchange.getResponseSender().send((String) serviceResponse.body);
-            } else {
-                exchange.getOutputStream().write((byte[]) serviceResponse.body);
-            }
+            setStatusAndHeaders(exchange, serviceResponse);
+
+            exchange.getResponseSender().send(serviceResponse.body.asByteBuffer());
 
+            timings.lap(Stage.RESPONSE_WRITE);
+            interactionEnded(ended, getInteractionNum(), getContext(), method, url, serviceResponse.statusCode, timings,
+                    event, span, interaction.getClientRequestBody(), serviceResponse.body, false);
+            monitor.interactionTimed(getInteractionNum(), method, url, timings, getContext());
+            interactionResourcesUsed(monitor, getInteractionNum(), method, url, resources, getContext());
             monitor.interactionFinished(getInteractionNum(), method, url, getContext());
         } catch (AssertionError assertionError) {
             failed = true;
+            interactionEnded(ended, getInteractionNum(), getContext(), method, url, 500, timings, event, span, null, null, true);
             exchange.setStatusCode(500);
             exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, "text/plain");
             exchange.getResponseSender().send("UndertowServirtiumServer AssertionError: " + assertionError.getMessage());
             monitor.interactionFailed(getInteractionNum(), method, url, assertionError, getContext());
         } catch (Throwable throwable) {
             failed = true;
+            interactionEnded(ended, getInteractionNum(), getContext(), method, url, 500, timings, event, span, null, null, true);
             exchange.setStatusCode(500);
             exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, "text/plain");
             exchange.getResponseSender().send("UndertowServirtiumServer unexpected Throwable: " + throwable.getMessage());
@@ -142,142 +181,206 @@ public class UndertowServirtiumServer extends ServirtiumServer {
         }
     }
 
+    private void setStatusAndHeaders(HttpServerExchange exchange, ServiceResponse serviceResponse) {
+
+        exchange.setStatusCode(serviceResponse.statusCode);
+
+        HttpHeaders headers = serviceResponse.headers;
+        for (int i = 0; i < headers.size(); i++) {
+            exchange.getResponseHeaders().add(new HttpString(headers.name(i)), headers.value(i));
+        }
+
+        if (serviceResponse.contentType != null) {
+            exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, serviceResponse.contentType);
+        }
+    }
+
+    private void sendPacedResponse(HttpServerExchange exchange, ServiceResponse serviceResponse,
+                                   ResponsePacing pacing, ServiceMonitor monitor, String method, String url,
+                                   InteractionTimings timings, ResourceUsage resources, Tracing.Span span, InteractionEvent event,
+                                   InteractionMonitor.Interaction interaction, AtomicBoolean ended) {
+
+        final int interactionNum = getInteractionNum();
+        final String context = getContext();
+
+        PacedResponse pacedResponse = new PacedResponse(pacing,
+                serviceResponse.body, timerWheel()) {
+
+            @Override
+            protected void sendStatusAndHeaders(int contentLength) throws IOException {
+                setStatusAndHeaders(exchange, serviceResponse);
+                exchange.setResponseContentLength(contentLength);
+                exchange.getOutputStream().flush();
+            }
+
+            @Override
+            protected void sendBody(byte[] body, int offset, int length) throws IOException {
+                exchange.getOutputStream().write(body, offset, length);
+                exchange.getOutputStream().flush();
+            }
+
+            @Override
+            protected void complete() {
+                timings.lap(Stage.RESPONSE_WRITE);
+                monitor.interactionTimed(interactionNum, method, url, timings, context);
+                interactionResourcesUsed(monitor, interactionNum, method, url, resources, context);
+                exchange.endExchange();
+                interactionEnded(ended, interactionNum, context, method, url, serviceResponse.statusCode, timings,
+                        event, span, interaction.getClientRequestBody(), serviceResponse.body, false);
+                monitor.interactionFinished(interactionNum, method, url, context);
+            }
+
+            @Override
+            protected void resetConnection() {
+                timings.lap(Stage.RESPONSE_WRITE);
+                monitor.interactionTimed(interactionNum, method, url, timings, context);
+                interactionResourcesUsed(monitor, interactionNum, method, url, resources, context);
+                IoUtils.safeClose(exchange.getConnection());
+                interactionEnded(ended, interactionNum, context, method, url, serviceResponse.statusCode, timings,
+                        event, span, interaction.getClientRequestBody(), serviceResponse.body, false);
+                monitor.interactionFinished(interactionNum, method, url, context);
+            }
+
+            @Override
+            protected void failed(Throwable throwable) {
+                interactionEnded(ended, interactionNum, context, method, url, serviceResponse.statusCode, timings,
+                        event, span, null, null, true);
+                UndertowServirtiumServer.this.failed = true;
+                exchange.endExchange();
+                monitor.unexpectedRequestError(throwable, context);
+            }
+        };
+
+        // Undertow won't end a dispatched exchange when the handler returns. The PacedResponse does that.
+        exchange.dispatch(SameThreadExecutor.INSTANCE, pacedResponse::start);
+    }
+
     private ServiceResponse processHeadersAndBodyBackFromService(InteractionMonitor.Interaction interaction,
                                                                  ServiceResponse serviceResponse,
-                                                                 InteractionManipulations interactionManipulations) {
+                                                                 InteractionManipulations interactionManipulations,
+                                                                 InteractionTimings timings) {
 
         interaction.debugOriginalServiceResponseHeaders(serviceResponse.headers);
 
         ServiceResponse originalResponse = serviceResponse;
 
-        List<String> newHeaders = new ArrayList<>();
-        Collections.addAll(newHeaders, serviceResponse.headers);
-
         // Change of headers back from service
 
-        ArrayList<String> newHeadersTmp = new ArrayList<>();
-        for (int i = 0; i < newHeaders.size(); i++) {
-            String headerBackFromService = newHeaders.get(i);
-            String potentiallyChangedHeader = interactionManipulations.changeSingleHeaderReturnedBackFromRealServiceForRecording(i, headerBackFromService);
-            if (potentiallyChangedHeader != null) {
-                newHeadersTmp.add(potentiallyChangedHeader);
-            }
-        }
-
-        newHeaders = newHeadersTmp;
-
-        interactionManipulations.changeAnyHeadersReturnedBackFromRealServiceForRecording(newHeaders);
+        HttpHeaders newHeaders = interactionManipulations.changeHeadersReturnedBackFromRealServiceForRecording(serviceResponse.headers);
 
-        if (serviceResponse.body instanceof String) {
-            serviceResponse = serviceResponse.withRevisedBody(
-                    interactionManipulations.changeBodyReturnedBackFromRealServiceForRecording((String) serviceResponse.body));
-            // recreate response
+        serviceResponse = serviceResponse.withRevisedBody(
+                StreamingInteractionManipulations.changeBodyReturnedBackFromRealServiceForRecording(
+                        interactionManipulations, serviceResponse.body));
+        // recreate response
+        timings.lap(Stage.RESPONSE_MANIPULATION);
 
+        if (serviceResponse.body.isText()) {
             if (shouldHavePrettyPrintedTextBodies()) {
-                String body = prettifyDocOrNot((String) serviceResponse.body);
-                if (!body.equals(serviceResponse.body)) {
+                String body = prettifyDocOrNot(serviceResponse.body.text());
+                if (!body.equals(serviceResponse.body.text())) {
 //                                realResponse.headers
                     serviceResponse = serviceResponse.withRevisedBody(body);
                 }
+                timings.lap(Stage.PRETTIFICATION);
             }
         }
 
-        serviceResponse = serviceResponse.withRevisedHeaders(newHeaders.toArray(new String[0]));
+        serviceResponse = serviceResponse.withRevisedHeaders(newHeaders);
+        timings.lap(Stage.RESPONSE_MANIPULATION);
 
         interaction.noteServiceResponseHeaders(serviceResponse.headers);
+        timings.lap(Stage.RECORDING);
 
         serviceResponse = serviceResponse.withRevisedHeaders(
                 interactionManipulations.changeHeadersForClientResponseAfterRecording(serviceResponse.headers));
+        timings.lap(Stage.RESPONSE_MANIPULATION);
 
         interaction.debugClientsServiceResponseHeaders(serviceResponse.headers);
 
         interaction.debugOriginalServiceResponseBody(originalResponse.body, originalResponse.statusCode, originalResponse.contentType);
 
         interaction.noteServiceResponseBody(serviceResponse.body, serviceResponse.statusCode, serviceResponse.contentType);
+        timings.lap(Stage.RECORDING);
 
-        if (serviceResponse.body instanceof String) {
-            final String b = (String) serviceResponse.body;
-
-            serviceResponse = serviceResponse.withRevisedBody(interactionManipulations.changeBodyForClientResponseAfterRecording(b));
-
-        }
+        serviceResponse = serviceResponse.withRevisedBody(
+                StreamingInteractionManipulations.changeBodyForClientResponseAfterRecording(
+                        interactionManipulations, serviceResponse.body));
+        timings.lap(Stage.RESPONSE_MANIPULATION);
 
         interaction.debugClientsServiceResponseBody(originalResponse.body, originalResponse.statusCode, originalResponse.contentType);
+        timings.lap(Stage.RECORDING);
 
         return serviceResponse;
     }
 
     private String prepareHeadersAndBodyForService(HttpServerExchange exchange, String method, String url,
-                                                   List<String> clientRequestHeaders, InteractionMonitor.Interaction interaction,
+                                                   HttpHeaders clientRequestHeaders, InteractionMonitor.Interaction interaction,
                                                    String clientRequestContentType,
-                                                   InteractionManipulations interactionManipulations) throws IOException {
+                                                   InteractionManipulations interactionManipulations,
+                                                   InteractionTimings timings) throws IOException {
 
         exchange.startBlocking();
         InputStream is = exchange.getInputStream();
 
-        Object clientRequestBody = null;
+        HttpBody clientRequestBody = HttpBody.EMPTY;
 
         if (is.available() > 0) {
-
-            if (isText(clientRequestContentType)) {
-                clientRequestBody = null;
-                String characterEncoding = exchange.getRequestCharset();
-                if (characterEncoding == null) {
-                    characterEncoding = "utf-8";
-                }
-                try (Scanner scanner = new Scanner(is, characterEncoding)) {
-                    clientRequestBody = scanner.useDelimiter("\\A").next();
-                }
-                if (shouldHavePrettyPrintedTextBodies() && clientRequestBody != null) {
-                    clientRequestBody = prettifyDocOrNot((String) clientRequestBody);
-                }
-            } else {
-                byte[] targetArray = new byte[is.available()];
-                is.read(targetArray);
-                clientRequestBody = targetArray;
-                ;
+            clientRequestBody = HttpBody.fromWire(readFully(is), clientRequestContentType, StandardCharsets.UTF_8);
+            timings.setRequestBodyBytes(clientRequestBody.byteLength());
+            timings.lap(Stage.BODY_READ);
+            if (clientRequestBody.isText() && shouldHavePrettyPrintedTextBodies()) {
+                clientRequestBody = clientRequestBody.withText(prettifyDocOrNot(clientRequestBody.text()));
+                timings.lap(Stage.PRETTIFICATION);
             }
         }
 
         exchange.getRequestHeaders().forEach(header -> {
             String hdrName = header.getHeaderName().toString();
-            header.forEach(hdrVal -> {
-                hdrVal = interactionManipulations.headerValueManipulation(hdrName, hdrVal);
-                final String newHeader = (useLowerCaseHeaders() ? hdrName.toLowerCase() : hdrName) + ": " + hdrVal;
-                clientRequestHeaders.add(newHeader);
-                interactionManipulations.changeSingleHeaderForRequestToRealService(newHeader, clientRequestHeaders);
-            });
+            header.forEach(hdrVal -> clientRequestHeaders.add(hdrName, hdrVal));
         });
 
 
-        if (clientRequestBody instanceof String) {
-            clientRequestBody = interactionManipulations.changeBodyForRequestToRealService((String) clientRequestBody);
-        }
+        clientRequestBody = StreamingInteractionManipulations.changeBodyForRequestToRealService(
+                interactionManipulations, clientRequestBody);
 
-        if (clientRequestBody == null) {
-            clientRequestBody = "";
-        }
+        removeTraceContext(clientRequestHeaders);
 
         interaction.noteClientRequestHeadersAndBody(interactionManipulations, clientRequestHeaders, clientRequestBody, clientRequestContentType, method, useLowerCaseHeaders());
 
-        return interactionManipulations.changeUrlForRequestToRealService(url);
+        String changedUrl = interactionManipulations.changeUrlForRequestToRealService(url);
+        timings.lap(Stage.REQUEST_MANIPULATION);
+        return changedUrl;
     }
 
     public ServirtiumServer start() throws Exception {
         undertowServer.start();
+        startAdminServer();
         return this;
     }
 
+    @Override
+    protected void resetInteractionNumber() {
+        super.resetInteractionNumber();
+        failed = false;
+    }
+
     public void stop() {
         try {
             interactionMonitor.finishedScript(getInteractionNum(), failed); // just in case
         } finally {
             undertowServer.stop();
+            stopTimerWheel();
+            unregisterMBean();
+            stopAdminServer();
         }
     }
 
     public void finishedScript() {
-        interactionMonitor.finishedScript(getInteractionNum(), failed);
+        try {
+            interactionMonitorFinishedScript(monitor, failed);
+        } finally {
+            monitor.finishedScript(getInteractionNum(), failed, getContext());
+        }
     }
 
 